@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.cardemulation;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable map from AID, or AID prefix, to the backend that answers it: the SIM, the embedded
+ * secure element or the host emulated applets of {@link HostEmvResponder}.
+ *
+ * <p>An exact entry wins over a prefix entry, and a longer prefix wins over a shorter one. AIDs
+ * that match nothing go to the default route. Entries live in an open addressed hash table
+ * keyed by the AID bytes, and only the prefix lengths that are actually configured are probed,
+ * so a lookup costs at most one probe per AID byte whatever the size of the table, and never
+ * allocates.
+ *
+ * <p>Tables are built with {@link Builder} and never change afterwards, so a new table can be
+ * handed to {@link CardService#setAidRoutingTable(AidRoutingTable)} at any time and readers on
+ * any thread see either the old or the new one.
+ */
+public final class AidRoutingTable {
+
+    /** Forward to the SIM chosen with {@link CardService#setSecureElementReader(String)}. */
+    public static final int ROUTE_SIM = 0;
+    /** Forward to the embedded secure element. */
+    public static final int ROUTE_ESE = 1;
+    /** Answer on the host, see {@link HostEmvResponder}. */
+    public static final int ROUTE_HOST = 2;
+    static final int ROUTE_COUNT = 3;
+    private static final String[] ROUTE_NAMES = { "SIM", "eSE", "host" };
+
+    // ISO/IEC 7816-4 limits AIDs to 16 bytes.
+    private static final int MAX_AID_LENGTH = 16;
+
+    private final int mDefaultRoute;
+    // Open addressed: mKeys[i] == null marks a free slot.
+    private final byte[][] mKeys;
+    private final boolean[] mPrefix;
+    private final int[] mRoutes;
+    private final int mMask;
+    // Bit n is set if some prefix entry is n bytes long.
+    private final int mPrefixLengths;
+    private final int mSize;
+
+    private AidRoutingTable(Builder builder) {
+        mDefaultRoute = builder.mDefaultRoute;
+        int entries = builder.mExact.size() + builder.mPrefixes.size();
+        int size = Integer.highestOneBit(Math.max(4, entries * 2 - 1)) << 1;
+        mKeys = new byte[size][];
+        mPrefix = new boolean[size];
+        mRoutes = new int[size];
+        mMask = size - 1;
+        int prefixLengths = 0;
+        for (Map.Entry<String, Integer> entry : builder.mExact.entrySet()) {
+            insert(CardApdu.HexStringToByteArray(entry.getKey()), false, entry.getValue());
+        }
+        for (Map.Entry<String, Integer> entry : builder.mPrefixes.entrySet()) {
+            byte[] prefix = CardApdu.HexStringToByteArray(entry.getKey());
+            insert(prefix, true, entry.getValue());
+            prefixLengths |= 1 << prefix.length;
+        }
+        mPrefixLengths = prefixLengths;
+        mSize = entries;
+    }
+
+    /**
+     * @return Table sending every AID to the SIM
+     */
+    public static AidRoutingTable simOnly() {
+        return new Builder().build();
+    }
+
+    /**
+     * Look up the route for a selected AID.
+     *
+     * @param aid Selected AID, may be null
+     * @return One of the ROUTE_ constants
+     */
+    public int route(byte[] aid) {
+        if (aid == null) {
+            return mDefaultRoute;
+        }
+        int slot = find(aid, aid.length, false);
+        if (slot >= 0) {
+            return mRoutes[slot];
+        }
+        // Longest configured prefix first.
+        int lengths = mPrefixLengths & ((2 << Math.min(aid.length, MAX_AID_LENGTH)) - 1);
+        while (lengths != 0) {
+            int length = 31 - Integer.numberOfLeadingZeros(lengths);
+            slot = find(aid, length, true);
+            if (slot >= 0) {
+                return mRoutes[slot];
+            }
+            lengths &= ~(1 << length);
+        }
+        return mDefaultRoute;
+    }
+
+    public int getDefaultRoute() {
+        return mDefaultRoute;
+    }
+
+    /**
+     * @return Number of exact and prefix entries
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return Builder holding every entry of this table, to derive a new table from it
+     */
+    public Builder toBuilder() {
+        Builder builder = new Builder().setDefaultRoute(mDefaultRoute);
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i] == null) {
+                continue;
+            }
+            String aid = CardApdu.ByteArrayToHexString(mKeys[i]);
+            if (mPrefix[i]) {
+                builder.routePrefix(aid, mRoutes[i]);
+            } else {
+                builder.route(aid, mRoutes[i]);
+            }
+        }
+        return builder;
+    }
+
+    static String routeName(int route) {
+        return ROUTE_NAMES[route];
+    }
+
+    private void insert(byte[] key, boolean prefix, int route) {
+        int slot = hash(key, key.length, prefix) & mMask;
+        while (mKeys[slot] != null) {
+            slot = (slot + 1) & mMask;
+        }
+        mKeys[slot] = key;
+        mPrefix[slot] = prefix;
+        mRoutes[slot] = route;
+    }
+
+    /**
+     * @return Slot holding the first {@code length} bytes of {@code aid}, or -1
+     */
+    private int find(byte[] aid, int length, boolean prefix) {
+        int slot = hash(aid, length, prefix) & mMask;
+        byte[] key;
+        while ((key = mKeys[slot]) != null) {
+            if (mPrefix[slot] == prefix && key.length == length && regionEquals(key, aid, length)) {
+                return slot;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    private static boolean regionEquals(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int length, boolean prefix) {
+        int h = prefix ? 1 : 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + bytes[i];
+        }
+        // Spread the low bits, the table is indexed by them.
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Collects routes for {@link AidRoutingTable}. Later calls for the same AID or prefix
+     * replace earlier ones.
+     */
+    public static final class Builder {
+        private int mDefaultRoute = ROUTE_SIM;
+        private final LinkedHashMap<String, Integer> mExact = new LinkedHashMap<String, Integer>();
+        private final LinkedHashMap<String, Integer> mPrefixes =
+                new LinkedHashMap<String, Integer>();
+
+        /**
+         * @param route Route for AIDs no entry matches, {@link #ROUTE_SIM} unless set
+         */
+        public Builder setDefaultRoute(int route) {
+            mDefaultRoute = checkRoute(route);
+            return this;
+        }
+
+        /**
+         * Route one AID.
+         *
+         * @param aid AID as a hexadecimal string
+         * @param route One of the ROUTE_ constants
+         */
+        public Builder route(String aid, int route) {
+            mExact.put(normalize(aid), checkRoute(route));
+            return this;
+        }
+
+        /**
+         * Route every AID starting with a prefix, e.g. a registered application provider
+         * identifier (RID).
+         *
+         * @param prefix AID prefix as a hexadecimal string
+         * @param route One of the ROUTE_ constants
+         */
+        public Builder routePrefix(String prefix, int route) {
+            mPrefixes.put(normalize(prefix), checkRoute(route));
+            return this;
+        }
+
+        /**
+         * Drop the exact entry for an AID, so it falls back to prefixes and the default route.
+         */
+        public Builder remove(String aid) {
+            mExact.remove(normalize(aid));
+            return this;
+        }
+
+        /**
+         * Drop the entry for a prefix.
+         */
+        public Builder removePrefix(String prefix) {
+            mPrefixes.remove(normalize(prefix));
+            return this;
+        }
+
+        public AidRoutingTable build() {
+            return new AidRoutingTable(this);
+        }
+
+        private static String normalize(String aid) {
+            byte[] bytes = CardApdu.HexStringToByteArray(aid);
+            if (bytes.length < 1 || bytes.length > MAX_AID_LENGTH) {
+                throw new IllegalArgumentException("AID must be 1 to 16 bytes: " + aid);
+            }
+            return CardApdu.ByteArrayToHexString(bytes);
+        }
+
+        private static int checkRoute(int route) {
+            if (route < 0 || route >= ROUTE_COUNT) {
+                throw new IllegalArgumentException("Unknown route " + route);
+            }
+            return route;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.cardemulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Byte level trie over every AID this service knows about, for resolving partial SELECT by name
+ * commands (ISO/IEC 7816-4 with P1 = 04).
+ *
+ * <p>A terminal may select with only the start of an AID, e.g. the RID, and step through the
+ * matching applications with P2 = 02 (next occurrence). AIDs are kept in unsigned lexical order,
+ * a shorter AID before the longer ones it is a prefix of, and every trie node knows the range of
+ * AIDs below it. Finding the first match is a walk down the prefix, finding the next one is a
+ * second walk down the current AID, so a lookup is at most 32 node steps and works on the
+ * command buffer in place, without copies or string conversion.
+ *
+ * <p>Tries are immutable. {@link #with(byte[])} returns a new trie including one more AID, so a
+ * trie held in a volatile field can be read from any thread while another adds AIDs.
+ */
+class AidTrie {
+
+    private static final class Node {
+        // Child edge labels in unsigned order, and the matching children.
+        byte[] keys = new byte[0];
+        Node[] children = new Node[0];
+        // AID ending here and its index, or null and -1.
+        byte[] value = null;
+        int aid = -1;
+        // Range [lo, hi) of the AIDs at or below this node.
+        int lo;
+        int hi;
+
+        Node child(byte key) {
+            byte[] keys = this.keys;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final AidTrie EMPTY = new AidTrie(new byte[0][]);
+
+    private final Node mRoot = new Node();
+    // Every AID, in trie order.
+    private final byte[][] mAids;
+
+    private AidTrie(byte[][] aids) {
+        List<byte[]> ordered = new ArrayList<byte[]>(aids.length);
+        for (byte[] aid : aids) {
+            insert(aid);
+        }
+        number(mRoot, ordered);
+        mAids = ordered.toArray(new byte[ordered.size()][]);
+    }
+
+    static AidTrie empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param aids AIDs to include, duplicates are ignored
+     */
+    static AidTrie of(List<byte[]> aids) {
+        return new AidTrie(aids.toArray(new byte[aids.size()][]));
+    }
+
+    /**
+     * @return Trie holding this trie's AIDs plus {@code aid}, or this trie if it already has it
+     */
+    AidTrie with(byte[] aid) {
+        if (aid == null || aid.length == 0 || contains(aid)) {
+            return this;
+        }
+        byte[][] aids = Arrays.copyOf(mAids, mAids.length + 1);
+        aids[mAids.length] = aid.clone();
+        return new AidTrie(aids);
+    }
+
+    boolean contains(byte[] aid) {
+        Node node = find(aid, 0, aid.length);
+        return node != null && node.aid >= 0;
+    }
+
+    int size() {
+        return mAids.length;
+    }
+
+    /**
+     * First AID, in lexical order, that starts with the given name.
+     *
+     * @param name Buffer holding the (possibly partial) AID, e.g. the command APDU
+     * @param offset Offset of the name in the buffer
+     * @param length Length of the name
+     * @return Matching AID, or null if none starts with the name
+     */
+    byte[] first(byte[] name, int offset, int length) {
+        Node node = find(name, offset, length);
+        // Only the root of an empty trie has no AID below it.
+        return node == null || node.lo == node.hi ? null : mAids[node.lo];
+    }
+
+    /**
+     * AID after {@code current} that starts with the given name. If {@code current} does not
+     * start with the name, or is not known, this is the same as
+     * {@link #first(byte[], int, int)}.
+     *
+     * @param name Buffer holding the (possibly partial) AID, e.g. the command APDU
+     * @param offset Offset of the name in the buffer
+     * @param length Length of the name
+     * @param current AID selected at the moment, may be null
+     * @return Matching AID, or null if no further AID starts with the name
+     */
+    byte[] next(byte[] name, int offset, int length, byte[] current) {
+        Node node = find(name, offset, length);
+        if (node == null || node.lo == node.hi) {
+            return null;
+        }
+        if (current != null) {
+            Node at = find(current, 0, current.length);
+            if (at != null && at.aid >= node.lo && at.aid < node.hi) {
+                return at.aid + 1 < node.hi ? mAids[at.aid + 1] : null;
+            }
+        }
+        return mAids[node.lo];
+    }
+
+    private Node find(byte[] name, int offset, int length) {
+        Node node = mRoot;
+        for (int i = 0; i < length && node != null; i++) {
+            node = node.child(name[offset + i]);
+        }
+        return node;
+    }
+
+    private void insert(byte[] aid) {
+        Node node = mRoot;
+        for (byte b : aid) {
+            Node child = node.child(b);
+            if (child == null) {
+                child = new Node();
+                int at = 0;
+                while (at < node.keys.length && (node.keys[at] & 0xFF) < (b & 0xFF)) {
+                    at++;
+                }
+                node.keys = insertAt(node.keys, at, b);
+                Node[] children = new Node[node.children.length + 1];
+                System.arraycopy(node.children, 0, children, 0, at);
+                children[at] = child;
+                System.arraycopy(node.children, at, children, at + 1, node.children.length - at);
+                node.children = children;
+            }
+            node = child;
+        }
+        node.value = aid;
+    }
+
+    /**
+     * Assign AID indexes and ranges in depth first order: an AID before every longer AID
+     * starting with it, siblings in unsigned byte order.
+     */
+    private static void number(Node node, List<byte[]> ordered) {
+        node.lo = ordered.size();
+        if (node.value != null) {
+            node.aid = ordered.size();
+            ordered.add(node.value);
+        }
+        for (Node child : node.children) {
+            number(child, ordered);
+        }
+        node.hi = ordered.size();
+    }
+
+    private static byte[] insertAt(byte[] array, int at, byte value) {
+        byte[] result = new byte[array.length + 1];
+        System.arraycopy(array, 0, result, 0, at);
+        result[at] = value;
+        System.arraycopy(array, at, result, at + 1, array.length - at);
+        return result;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.se.omapi.SEService;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link SecureElementBackend} on the platform Open Mobile API, {@code android.se.omapi}, which
+ * replaces the SIMalliance library from Android 9 (API 28) on. Reader names there are "SIM1",
+ * "SIM2", "eSE1" and so on.
+ */
+@TargetApi(Build.VERSION_CODES.P)
+public class AndroidSeBackend implements SecureElementBackend {
+
+    public static final CardService.BackendFactory FACTORY = new CardService.BackendFactory() {
+        @Override
+        public SecureElementBackend create(Context context) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+                throw new UnsupportedOperationException("android.se.omapi needs API 28");
+            }
+            return new AndroidSeBackend(context);
+        }
+    };
+
+    // Run the connected callback on whatever thread the platform delivers it on.
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final Context mContext;
+    private SEService mService = null;
+    // Bumped by every connect and shutdown, so callbacks of dropped bindings can be ignored.
+    private int mConnectId = 0;
+
+    public AndroidSeBackend(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public synchronized void connect(final Callback callback) {
+        shutdown();
+        final int connectId = ++mConnectId;
+        mService = new SEService(mContext, DIRECT_EXECUTOR, new SEService.OnConnectedListener() {
+            @Override
+            public void onConnected() {
+                synchronized (AndroidSeBackend.this) {
+                    if (connectId != mConnectId) {
+                        // Shut down before it connected.
+                        return;
+                    }
+                }
+                callback.onConnected();
+            }
+        });
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return mService != null && mService.isConnected();
+    }
+
+    @Override
+    public Reader[] getReaders() throws IOException {
+        SEService service;
+        synchronized (this) {
+            service = mService;
+        }
+        if (service == null) {
+            throw new IOException("SEService not bound");
+        }
+        android.se.omapi.Reader[] readers;
+        try {
+            readers = service.getReaders();
+        } catch (RuntimeException e) {
+            throw new IOException("getReaders failed", e);
+        }
+        Reader[] result = new Reader[readers == null ? 0 : readers.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = readers[i] == null ? null : new PlatformReader(readers[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        mConnectId++;
+        if (mService != null) {
+            SEService service = mService;
+            mService = null;
+            service.shutdown();
+        }
+    }
+
+    private static class PlatformReader implements Reader {
+        private final android.se.omapi.Reader mReader;
+
+        PlatformReader(android.se.omapi.Reader reader) {
+            mReader = reader;
+        }
+
+        @Override
+        public String getName() {
+            return mReader.getName();
+        }
+
+        @Override
+        public boolean isSecureElementPresent() {
+            return mReader.isSecureElementPresent();
+        }
+
+        @Override
+        public Session openSession() throws IOException {
+            android.se.omapi.Session session = mReader.openSession();
+            return session == null ? null : new PlatformSession(session);
+        }
+    }
+
+    private static class PlatformSession implements Session {
+        private final android.se.omapi.Session mSession;
+
+        PlatformSession(android.se.omapi.Session session) {
+            mSession = session;
+        }
+
+        @Override
+        public Channel openLogicalChannel(byte[] aid) throws IOException {
+            android.se.omapi.Channel channel = mSession.openLogicalChannel(aid);
+            return channel == null ? null : new PlatformChannel(channel);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mSession.isClosed();
+        }
+
+        @Override
+        public void close() {
+            mSession.close();
+        }
+    }
+
+    private static class PlatformChannel implements Channel {
+        private final android.se.omapi.Channel mChannel;
+
+        PlatformChannel(android.se.omapi.Channel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public byte[] transmit(byte[] command) throws IOException {
+            return mChannel.transmit(command);
+        }
+
+        @Override
+        public byte[] getSelectResponse() {
+            return mChannel.getSelectResponse();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return !mChannel.isOpen();
+        }
+
+        @Override
+        public void close() {
+            mChannel.close();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import com.example.android.cardemulation.SecureElementBackend.Channel;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Batch envelope: one command from the terminal carrying several APDUs for the selected applet,
+ * which are run back to back on the SE channel and answered together, so N commands cost one
+ * NFC exchange instead of N.
+ *
+ * <p>Envelope: {@code 80 EB P1 00 Lc [len(2) APDU]... Le}, short or extended length. Bit 1 of
+ * P1 stops the batch at the first item whose status word is not 9000.
+ *
+ * <p>Response: {@code [len(2) response]... SW}, each response with its own status word, in the
+ * order of the items. SW is 9000 if every item ran and {@link #BATCH_INCOMPLETE_SW} if the batch
+ * stopped early, either on an error with P1 bit 1 set or because the next item's response did
+ * not fit in what the envelope's Le allows; the terminal resubmits the remaining items. An item
+ * whose response did not fit has already run on the SE, so its response is kept and returned
+ * when the next envelope starts with the same item, or when the terminal sends that item on its
+ * own, instead of running it twice. A malformed
+ * envelope is answered with 6700 and nothing is run.
+ *
+ * <p>Envelopes are only recognised for AIDs enabled with {@link #setEnabled(byte[], boolean)},
+ * for any other applet 80EB is passed through like every other command.
+ */
+class ApduBatch {
+    static final byte CLA_BATCH = (byte) 0x80;
+    static final byte INS_BATCH = (byte) 0xEB;
+    static final int P1_STOP_ON_ERROR = 0x01;
+
+    // Not every item ran, 6310 "more data available".
+    static final byte[] BATCH_INCOMPLETE_SW = { (byte) 0x63, (byte) 0x10 };
+    private static final byte[] WRONG_LENGTH_SW = { (byte) 0x67, (byte) 0x00 };
+    private static final byte[] OK_SW = { (byte) 0x90, (byte) 0x00 };
+
+    // AIDs accepting envelopes. Replaced as a whole, so readers never need a lock.
+    private static volatile byte[][] sAids = new byte[0][];
+
+    private final StatusWordResolver mResolver;
+    private final AtomicInteger mBatches = new AtomicInteger();
+    private final AtomicInteger mItems = new AtomicInteger();
+    // Last item that ran but did not fit in its envelope, and its response. Only touched on the
+    // APDU thread.
+    private byte[] mCarriedItem;
+    private byte[] mCarriedResponse;
+
+    /**
+     * @param resolver Used for the items when status words are resolved locally
+     */
+    ApduBatch(StatusWordResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Choose whether batch envelopes are accepted while an AID is selected.
+     */
+    static synchronized void setEnabled(byte[] aid, boolean enabled) {
+        byte[][] current = sAids;
+        int index = -1;
+        for (int i = 0; i < current.length; i++) {
+            if (Arrays.equals(current[i], aid)) {
+                index = i;
+            }
+        }
+        if (enabled && index < 0) {
+            byte[][] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = aid.clone();
+            sAids = updated;
+        } else if (!enabled && index >= 0) {
+            byte[][] updated = new byte[current.length - 1][];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            sAids = updated;
+        }
+    }
+
+    /**
+     * @return true if the command is a batch envelope and the selected AID accepts them
+     */
+    static boolean isBatch(byte[] aid, byte[] commandApdu) {
+        if (commandApdu.length < 4 || commandApdu[0] != CLA_BATCH
+                || commandApdu[1] != INS_BATCH) {
+            return false;
+        }
+        for (byte[] enabled : sAids) {
+            if (Arrays.equals(enabled, aid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Run every item of an envelope on the channel.
+     *
+     * @param channel Channel to the selected applet
+     * @param envelope Batch envelope from the terminal
+     * @param resolveStatusWords Whether 61xx/6Cxx of the items are resolved locally
+     * @return Concatenated item responses and the overall status word
+     */
+    byte[] execute(Channel channel, byte[] envelope, boolean resolveStatusWords)
+            throws IOException {
+        int offset = CardApdu.getCommandDataOffset(envelope);
+        int end = offset + CardApdu.getCommandDataLength(envelope);
+        if (offset < 0 || !isWellFormed(envelope, offset, end)) {
+            return WRONG_LENGTH_SW.clone();
+        }
+        boolean stopOnError = (envelope[2] & P1_STOP_ON_ERROR) != 0;
+        int maxResponse = CardApdu.getExpectedLength(envelope);
+        if (maxResponse == 0) {
+            maxResponse = CardApdu.MAX_SHORT_LE;
+        }
+        mBatches.incrementAndGet();
+        byte[] out = new byte[Math.min(maxResponse, 1024) + 2];
+        int length = 0;
+        boolean complete = true;
+        // Only the first item of an envelope can be one resubmitted after it did not fit.
+        byte[] carriedItem = mCarriedItem;
+        byte[] carriedResponse = mCarriedResponse;
+        mCarriedItem = null;
+        mCarriedResponse = null;
+        while (offset < end) {
+            int itemLength = ((envelope[offset] & 0xFF) << 8) | (envelope[offset + 1] & 0xFF);
+            byte[] item = Arrays.copyOfRange(envelope, offset + 2, offset + 2 + itemLength);
+            byte[] rsp;
+            if (carriedItem != null && Arrays.equals(carriedItem, item)) {
+                rsp = carriedResponse;
+            } else {
+                rsp = resolveStatusWords
+                        ? mResolver.transmit(channel, item)
+                        : channel.transmit(item);
+                mItems.incrementAndGet();
+                if (rsp == null || rsp.length < 2) {
+                    throw new IOException("Empty response to batch item");
+                }
+            }
+            carriedItem = null;
+            // The real response, with its length prefix, has to fit in the envelope's Le.
+            if (length + 2 + rsp.length > maxResponse) {
+                mCarriedItem = item;
+                mCarriedResponse = rsp;
+                complete = false;
+                break;
+            }
+            if (length + 2 + rsp.length + 2 > out.length) {
+                out = Arrays.copyOf(out, Math.max(length + 2 + rsp.length + 2, out.length * 2));
+            }
+            out[length] = (byte) (rsp.length >> 8);
+            out[length + 1] = (byte) rsp.length;
+            System.arraycopy(rsp, 0, out, length + 2, rsp.length);
+            length += 2 + rsp.length;
+            offset += 2 + itemLength;
+            if (stopOnError && (rsp[rsp.length - 2] != OK_SW[0] || rsp[rsp.length - 1] != OK_SW[1])
+                    && offset < end) {
+                complete = false;
+                break;
+            }
+        }
+        byte[] sw = complete ? OK_SW : BATCH_INCOMPLETE_SW;
+        byte[] result = Arrays.copyOf(out, length + 2);
+        result[length] = sw[0];
+        result[length + 1] = sw[1];
+        return result;
+    }
+
+    /**
+     * Return the response of an item that ran in the previous envelope but did not fit, if the
+     * terminal now sends that item on its own. Whatever was kept is dropped either way.
+     *
+     * @param commandApdu Command from the terminal, not an envelope
+     * @return Response of the item, or null if the command has to run on the SE
+     */
+    byte[] takeCarried(byte[] commandApdu) {
+        byte[] item = mCarriedItem;
+        if (item == null) {
+            return null;
+        }
+        byte[] rsp = mCarriedResponse;
+        discardCarried();
+        return Arrays.equals(item, commandApdu) ? rsp : null;
+    }
+
+    /**
+     * Drop the kept response, e.g. when another applet is selected or the tap is over.
+     */
+    void discardCarried() {
+        mCarriedItem = null;
+        mCarriedResponse = null;
+    }
+
+    int getBatches() {
+        return mBatches.get();
+    }
+
+    int getItems() {
+        return mItems.get();
+    }
+
+    /**
+     * Check that the items exactly fill the data field and each is at least a header.
+     */
+    private static boolean isWellFormed(byte[] envelope, int offset, int end) {
+        if (offset == end) {
+            return false;
+        }
+        while (offset < end) {
+            if (offset + 2 > end) {
+                return false;
+            }
+            int itemLength = ((envelope[offset] & 0xFF) << 8) | (envelope[offset + 1] & 0xFF);
+            if (itemLength < 4 || offset + 2 + itemLength > end) {
+                return false;
+            }
+            offset += 2 + itemLength;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-stage APDU latency histograms, kept per instruction byte (INS) and per selected AID.
+ *
+ * <p>{@link CardService} timestamps each command when it is received, when the APDU thread
+ * dequeues it, around the SE transmit and when the response is handed to
+ * {@link android.nfc.cardemulation.HostApduService#sendResponseApdu(byte[])}. The intervals are
+ * recorded here into fixed power-of-two microsecond buckets, so recording is a couple of atomic
+ * increments and never allocates. Percentiles are read from the buckets and are accurate to
+ * within a factor of two, which is enough to tell where a tap spends its time.
+ *
+ * <p>The app reads the numbers through {@link #getInstance()}, e.g. {@link #report()}, and
+ * clears them with {@link #reset()}.
+ */
+public class ApduLatencyStats {
+
+    /** Received in processCommandApdu until dequeued on the APDU thread. */
+    public static final int STAGE_QUEUE = 0;
+    /** Time spent in the SE transmit. */
+    public static final int STAGE_TRANSMIT = 1;
+    /** Response ready on the APDU thread until sendResponseApdu returned. */
+    public static final int STAGE_DELIVERY = 2;
+    /** Received until the response was handed back, whichever way it was answered. */
+    public static final int STAGE_TOTAL = 3;
+    private static final int STAGE_COUNT = 4;
+    private static final String[] STAGE_NAMES = { "queue", "transmit", "delivery", "total" };
+
+    // Bucket i counts samples in [2^i, 2^(i+1)) microseconds, the last one everything above.
+    private static final int BUCKET_COUNT = 25;
+    // Distinct INS values and AIDs tracked individually, more share the overflow slot.
+    private static final int MAX_INS = 32;
+    private static final int MAX_AIDS = 16;
+
+    private static final ApduLatencyStats sInstance = new ApduLatencyStats();
+
+    // Slot per INS value, -1 while unassigned.
+    private final AtomicIntegerArray mInsSlots = new AtomicIntegerArray(256);
+    private final int[] mSlotIns = new int[MAX_INS];
+    private int mInsCount = 0;
+    private volatile byte[][] mAids = new byte[0][];
+
+    private final AtomicLongArray mAll = new AtomicLongArray(STAGE_COUNT * BUCKET_COUNT);
+    private final AtomicLongArray mByIns = new AtomicLongArray((MAX_INS + 1) * STAGE_COUNT * BUCKET_COUNT);
+    private final AtomicLongArray mByAid = new AtomicLongArray((MAX_AIDS + 1) * STAGE_COUNT * BUCKET_COUNT);
+
+    ApduLatencyStats() {
+        for (int i = 0; i < 256; i++) {
+            mInsSlots.set(i, -1);
+        }
+    }
+
+    public static ApduLatencyStats getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Return the slot used for an AID, assigning one the first time it is seen. Meant to be
+     * called once per SELECT, not per command.
+     *
+     * @param aid Selected AID, may be null
+     * @return Slot to pass to {@link #record(int, int, int, long)}
+     */
+    int aidSlot(byte[] aid) {
+        if (aid == null) {
+            return MAX_AIDS;
+        }
+        byte[][] aids = mAids;
+        for (int i = 0; i < aids.length; i++) {
+            if (Arrays.equals(aids[i], aid)) {
+                return i;
+            }
+        }
+        synchronized (this) {
+            aids = mAids;
+            for (int i = 0; i < aids.length; i++) {
+                if (Arrays.equals(aids[i], aid)) {
+                    return i;
+                }
+            }
+            if (aids.length == MAX_AIDS) {
+                return MAX_AIDS;
+            }
+            byte[][] updated = Arrays.copyOf(aids, aids.length + 1);
+            updated[aids.length] = aid.clone();
+            mAids = updated;
+            return aids.length;
+        }
+    }
+
+    /**
+     * Record one sample.
+     *
+     * @param stage One of the STAGE_ constants
+     * @param ins Instruction byte of the command
+     * @param aidSlot Slot from {@link #aidSlot(byte[])}
+     * @param nanos Duration in nanoseconds
+     */
+    void record(int stage, int ins, int aidSlot, long nanos) {
+        int bucket = bucket(nanos);
+        int offset = stage * BUCKET_COUNT + bucket;
+        mAll.incrementAndGet(offset);
+        mByIns.incrementAndGet(insSlot(ins & 0xFF) * STAGE_COUNT * BUCKET_COUNT + offset);
+        mByAid.incrementAndGet(aidSlot * STAGE_COUNT * BUCKET_COUNT + offset);
+    }
+
+    /**
+     * @return Approximate q-quantile of a stage over all commands, in microseconds
+     */
+    public long percentileMicros(int stage, double q) {
+        return percentile(mAll, 0, stage, q);
+    }
+
+    /**
+     * @return Approximate q-quantile of a stage for one instruction byte, in microseconds, or -1
+     * if that INS has not been seen
+     */
+    public long percentileMicrosForIns(int stage, int ins, double q) {
+        int slot = mInsSlots.get(ins & 0xFF);
+        if (slot < 0) {
+            return -1;
+        }
+        return percentile(mByIns, slot, stage, q);
+    }
+
+    /**
+     * @return Approximate q-quantile of a stage for one AID, in microseconds, or -1 if that AID
+     * has not been selected
+     */
+    public long percentileMicrosForAid(int stage, String aid, double q) {
+        byte[] aidBytes = CardApdu.HexStringToByteArray(aid);
+        byte[][] aids = mAids;
+        for (int i = 0; i < aids.length; i++) {
+            if (Arrays.equals(aids[i], aidBytes)) {
+                return percentile(mByAid, i, stage, q);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Number of samples recorded for a stage over all commands
+     */
+    public long count(int stage) {
+        return count(mAll, 0, stage);
+    }
+
+    /**
+     * Clear every histogram. INS and AID slots are kept.
+     */
+    public void reset() {
+        for (int i = 0; i < mAll.length(); i++) {
+            mAll.set(i, 0);
+        }
+        for (int i = 0; i < mByIns.length(); i++) {
+            mByIns.set(i, 0);
+        }
+        for (int i = 0; i < mByAid.length(); i++) {
+            mByAid.set(i, 0);
+        }
+    }
+
+    /**
+     * @return Human readable p50/p99 per stage, overall, per INS and per AID
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        appendLine(sb, "all", mAll, 0);
+        int insCount;
+        synchronized (this) {
+            insCount = mInsCount;
+        }
+        for (int slot = 0; slot < insCount; slot++) {
+            appendLine(sb, String.format(Locale.US, "INS %02X", mSlotIns[slot]), mByIns, slot);
+        }
+        byte[][] aids = mAids;
+        for (int slot = 0; slot < aids.length; slot++) {
+            appendLine(sb, "AID " + CardApdu.ByteArrayToHexString(aids[slot]), mByAid, slot);
+        }
+        return sb.toString();
+    }
+
+    private void appendLine(StringBuilder sb, String label, AtomicLongArray histograms, int slot) {
+        sb.append(label).append(':');
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            long n = count(histograms, slot, stage);
+            if (n == 0) {
+                continue;
+            }
+            sb.append(String.format(Locale.US, " %s n=%d p50=%dus p99=%dus", STAGE_NAMES[stage], n,
+                    percentile(histograms, slot, stage, 0.5),
+                    percentile(histograms, slot, stage, 0.99)));
+        }
+        sb.append('\n');
+    }
+
+    private int insSlot(int ins) {
+        int slot = mInsSlots.get(ins);
+        if (slot >= 0) {
+            return slot;
+        }
+        synchronized (this) {
+            slot = mInsSlots.get(ins);
+            if (slot >= 0) {
+                return slot;
+            }
+            if (mInsCount == MAX_INS) {
+                return MAX_INS;
+            }
+            slot = mInsCount;
+            mSlotIns[slot] = ins;
+            mInsCount++;
+            mInsSlots.set(ins, slot);
+            return slot;
+        }
+    }
+
+    private static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        if (micros <= 1) {
+            return 0;
+        }
+        return Math.min(BUCKET_COUNT - 1, 63 - Long.numberOfLeadingZeros(micros));
+    }
+
+    private static long count(AtomicLongArray histograms, int slot, int stage) {
+        int base = (slot * STAGE_COUNT + stage) * BUCKET_COUNT;
+        long n = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            n += histograms.get(base + i);
+        }
+        return n;
+    }
+
+    private static long percentile(AtomicLongArray histograms, int slot, int stage, double q) {
+        int base = (slot * STAGE_COUNT + stage) * BUCKET_COUNT;
+        long n = count(histograms, slot, stage);
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += histograms.get(base + i);
+            if (seen >= rank) {
+                // Upper bound of the bucket.
+                return (1L << (i + 1)) - 1;
+            }
+        }
+        return (1L << BUCKET_COUNT) - 1;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer/single-consumer ring of raw command APDUs.
+ *
+ * <p>{@link CardService#processCommandApdu} is the only producer and the APDU handler thread is
+ * the only consumer, so no locks are needed: the producer publishes a slot by advancing the tail
+ * and the consumer releases it by advancing the head. Slots are allocated once and reused for
+ * the lifetime of the service, and commands are kept as the byte arrays handed to us by the NFC
+ * stack, so queueing a command costs no copy and no allocation.
+ */
+class ApduQueue {
+
+    static final class Slot {
+        byte[] command;
+        // True if processCommandApdu already answered the command, e.g. from the cache.
+        boolean answered;
+        // System.nanoTime() when processCommandApdu received the command.
+        long receivedAt;
+        // Arrival order across all queues.
+        long seq;
+        // Tap generation the command arrived in, see CardService#onDeactivated.
+        int generation;
+    }
+
+    private final Slot[] mSlots;
+    private final int mMask;
+    // Next slot to read, only advanced by the consumer.
+    private final AtomicLong mHead = new AtomicLong();
+    // Next slot to write, only advanced by the producer.
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * @param capacity Maximum number of queued commands, rounded up to a power of two
+     */
+    ApduQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mSlots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new Slot();
+        }
+        mMask = size - 1;
+    }
+
+    /**
+     * Queue a command. Must only be called from the producer thread.
+     *
+     * @param command Command APDU to queue
+     * @param answered Whether a response was already returned to the terminal
+     * @param receivedAt System.nanoTime() when the command was received
+     * @param seq Arrival order of the command
+     * @param generation Tap generation the command arrived in
+     * @return false if the ring is full and the command was not queued
+     */
+    boolean offer(byte[] command, boolean answered, long receivedAt, long seq, int generation) {
+        long tail = mTail.get();
+        if (tail - mHead.get() == mSlots.length) {
+            return false;
+        }
+        Slot slot = mSlots[(int) tail & mMask];
+        slot.command = command;
+        slot.answered = answered;
+        slot.receivedAt = receivedAt;
+        slot.seq = seq;
+        slot.generation = generation;
+        // Ordered store: the slot contents become visible before the new tail.
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Look at the oldest queued slot without taking it. The slot stays owned by the consumer
+     * until {@link #release()}. Must only be called from the consumer thread.
+     *
+     * @return Oldest slot, or null if the ring is empty
+     */
+    Slot peek() {
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            return null;
+        }
+        return mSlots[(int) head & mMask];
+    }
+
+    /**
+     * Hand the slot returned by {@link #peek()} back to the producer. Must only be called from
+     * the consumer thread.
+     */
+    void release() {
+        long head = mHead.get();
+        mSlots[(int) head & mMask].command = null;
+        mHead.lazySet(head + 1);
+    }
+
+    boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    int capacity() {
+        return mSlots.length;
+    }
+}
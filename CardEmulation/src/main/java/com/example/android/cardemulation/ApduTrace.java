@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Preallocated ring of binary APDU trace events, written by {@link CardService} and read by
+ * observers such as the app's log screen at their own pace.
+ *
+ * <p>Recording an event claims a sequence number with one atomic increment, copies the APDU into
+ * the slot's preallocated buffer and publishes the slot. It takes no lock, never allocates and
+ * never waits for a reader, so it is safe on the main thread and on the APDU thread alike. If
+ * readers fall behind by more than the capacity, the oldest events are overwritten and the
+ * reader's {@link Cursor} counts them as dropped.
+ *
+ * <p>Slots work like a seqlock. The writer marks the slot unpublished, writes the event and
+ * publishes it; a reader copies the event and only accepts it if the slot still carries the same
+ * sequence afterwards. Event fields live in atomic arrays, written with ordered stores, so the
+ * event cannot become visible before the slot is marked unpublished and a reader never accepts
+ * a torn copy.
+ *
+ * <p>Only the first {@link #MAX_DATA_BYTES} bytes of an APDU are kept; {@link Event#length} is
+ * the full length.
+ */
+public class ApduTrace {
+
+    /** Command received from the terminal. */
+    public static final int TYPE_COMMAND = 0;
+    /** Response sent to the terminal. */
+    public static final int TYPE_RESPONSE = 1;
+    /** Response to the SELECT sent when a logical channel was opened. */
+    public static final int TYPE_SELECT_RESPONSE = 2;
+    /** No logical channel could be opened for the selected AID. */
+    public static final int TYPE_CHANNEL_FAILED = 3;
+
+    public static final int MAX_DATA_BYTES = 64;
+    private static final int DATA_INTS = MAX_DATA_BYTES / 4;
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private static final ApduTrace sInstance = new ApduTrace(DEFAULT_CAPACITY);
+
+    /**
+     * One event as copied out by a {@link Cursor}. Reuse instances across reads.
+     */
+    public static final class Event {
+        public long seq;
+        /** System.nanoTime() when the event was recorded. */
+        public long timestampNanos;
+        public int type;
+        /** Length of the whole APDU, may exceed the bytes kept in {@link #data}. */
+        public int length;
+        /** Status word of a response, -1 for other events. */
+        public int sw;
+        /**
+         * For responses, nanoseconds from the response being ready until it was handed to the
+         * NFC stack, 0 if it was returned straight from processCommandApdu. -1 for other events.
+         */
+        public long deliveryNanos;
+        public final byte[] data = new byte[MAX_DATA_BYTES];
+
+        /**
+         * @return Number of valid bytes in {@link #data}
+         */
+        public int dataLength() {
+            return Math.min(length, MAX_DATA_BYTES);
+        }
+    }
+
+    private final int mMask;
+    private final AtomicLongArray mTimestamps;
+    private final AtomicIntegerArray mTypes;
+    private final AtomicIntegerArray mLengths;
+    private final AtomicIntegerArray mSws;
+    private final AtomicLongArray mDeliveryNanos;
+    // APDU bytes, four to an int, big endian.
+    private final AtomicIntegerArray mData;
+    // Per slot: seq + 1 once the event with that sequence is published, 0 while being written.
+    private final AtomicLongArray mPublished;
+    // Next sequence number to hand out.
+    private final AtomicLong mNext = new AtomicLong();
+
+    /**
+     * @param capacity Number of events kept, rounded up to a power of two
+     */
+    ApduTrace(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mMask = size - 1;
+        mTimestamps = new AtomicLongArray(size);
+        mTypes = new AtomicIntegerArray(size);
+        mLengths = new AtomicIntegerArray(size);
+        mSws = new AtomicIntegerArray(size);
+        mDeliveryNanos = new AtomicLongArray(size);
+        mData = new AtomicIntegerArray(size * DATA_INTS);
+        mPublished = new AtomicLongArray(size);
+    }
+
+    public static ApduTrace getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Record an event. Safe to call from any thread.
+     *
+     * @param type One of the TYPE_ constants
+     * @param apdu APDU bytes, may be null
+     */
+    void record(int type, byte[] apdu) {
+        record(type, apdu, -1);
+    }
+
+    /**
+     * Record an event with its delivery time. Safe to call from any thread.
+     *
+     * @param type One of the TYPE_ constants
+     * @param apdu APDU bytes, may be null
+     * @param deliveryNanos See {@link Event#deliveryNanos}
+     */
+    void record(int type, byte[] apdu, long deliveryNanos) {
+        long seq = mNext.getAndIncrement();
+        int slot = (int) seq & mMask;
+        mPublished.set(slot, 0);
+        int length = apdu == null ? 0 : apdu.length;
+        // Ordered stores: none of them becomes visible before the slot is marked unpublished.
+        mTimestamps.lazySet(slot, System.nanoTime());
+        mTypes.lazySet(slot, type);
+        mLengths.lazySet(slot, length);
+        mSws.lazySet(slot, type == TYPE_RESPONSE && length >= 2
+                ? ((apdu[length - 2] & 0xFF) << 8) | (apdu[length - 1] & 0xFF) : -1);
+        mDeliveryNanos.lazySet(slot, deliveryNanos);
+        int kept = Math.min(length, MAX_DATA_BYTES);
+        int base = slot * DATA_INTS;
+        for (int i = 0; i < kept; i += 4) {
+            int word = 0;
+            for (int j = 0; j < 4; j++) {
+                word = (word << 8) | (i + j < kept ? apdu[i + j] & 0xFF : 0);
+            }
+            mData.lazySet(base + i / 4, word);
+        }
+        // Ordered store: the slot contents become visible before it is marked published.
+        mPublished.lazySet(slot, seq + 1);
+    }
+
+    /**
+     * @return Cursor that starts with the oldest event still in the ring
+     */
+    public Cursor newCursor() {
+        return new Cursor(Math.max(0, mNext.get() - mPublished.length()));
+    }
+
+    /**
+     * Read position of one consumer. Not thread safe, each consumer uses its own.
+     */
+    public final class Cursor {
+        private long mPosition;
+        private long mDropped = 0;
+
+        Cursor(long position) {
+            mPosition = position;
+        }
+
+        /**
+         * Copy published events into {@code batch}, oldest first.
+         *
+         * @return Number of events copied, 0 if there is nothing new
+         */
+        public int read(Event[] batch) {
+            int count = 0;
+            long next = mNext.get();
+            long oldest = next - mPublished.length();
+            if (mPosition < oldest) {
+                // Lapped by the writers.
+                mDropped += oldest - mPosition;
+                mPosition = oldest;
+            }
+            while (count < batch.length && mPosition < next) {
+                long seq = mPosition;
+                int slot = (int) seq & mMask;
+                long published = mPublished.get(slot);
+                if (published > seq + 1) {
+                    // Lapped by the writers since the check above.
+                    mDropped++;
+                    mPosition++;
+                    continue;
+                }
+                if (published != seq + 1) {
+                    // Still being written, pick it up on the next read.
+                    break;
+                }
+                Event event = batch[count];
+                event.seq = seq;
+                event.timestampNanos = mTimestamps.get(slot);
+                event.type = mTypes.get(slot);
+                event.length = mLengths.get(slot);
+                event.sw = mSws.get(slot);
+                event.deliveryNanos = mDeliveryNanos.get(slot);
+                int kept = event.dataLength();
+                int base = slot * DATA_INTS;
+                for (int i = 0; i < kept; i += 4) {
+                    int word = mData.get(base + i / 4);
+                    for (int j = 0; j < 4 && i + j < kept; j++) {
+                        event.data[i + j] = (byte) (word >>> (24 - 8 * j));
+                    }
+                }
+                mPosition++;
+                // Volatile reads are not reordered, so this sees any writer that started before
+                // the copy finished.
+                if (mPublished.get(slot) != seq + 1) {
+                    // Overwritten while we copied it.
+                    mDropped++;
+                    continue;
+                }
+                count++;
+            }
+            return count;
+        }
+
+        /**
+         * @return Events overwritten before this cursor got to them
+         */
+        public long getDropped() {
+            return mDropped;
+        }
+    }
+}
@@ -1,8 +1,6 @@
 package com.example.android.cardemulation;
 
-import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -21,6 +19,35 @@ public class CardApdu {
     //  Key used to store the user's Swipe data in the app's shared preferences
     public static final String SWIPE_DATA_PREF_KEY = "SWIPE_DATA";
 
+    // ISO-DEP command HEADER for selecting an AID.
+    // Format: [Class | Instruction | Parameter 1 | Parameter 2]
+    private static final String SELECT_APDU_HEADER = "00A40400";
+    // EMV data object tags used in the responses below.
+    static final int TAG_FCI_TEMPLATE = 0x6F;
+    static final int TAG_DF_NAME = 0x84;
+    static final int TAG_FCI_PROPRIETARY_TEMPLATE = 0xA5;
+    static final int TAG_FCI_ISSUER_DISCRETIONARY_DATA = 0xBF0C;
+    static final int TAG_DIRECTORY_ENTRY = 0x61;
+    static final int TAG_ADF_NAME = 0x4F;
+    static final int TAG_APPLICATION_PRIORITY_INDICATOR = 0x87;
+    static final int TAG_APPLICATION_LABEL = 0x50;
+    static final int TAG_PDOL = 0x9F38;
+    static final int TAG_RECORD_TEMPLATE = 0x70;
+    static final int TAG_TRACK_2_EQUIVALENT = 0x57;
+    static final int TAG_RESPONSE_FORMAT_1 = 0x80;
+    static final int TAG_RESPONSE_FORMAT_2 = 0x77;
+    static final int TAG_AFL = 0x94;
+    static final int SW_OK = 0x9000;
+    // SELECT P1 for selection by DF name, and the P2 bits choosing which match is selected.
+    private static final byte SELECT_BY_NAME = 0x04;
+    private static final int SELECT_OCCURRENCE_MASK = 0x03;
+    private static final int SELECT_NEXT_OCCURRENCE = 0x02;
+    // Format: [Class | Instruction | Parameter 1 | Parameter 2]
+    private static final String GET_DATA_APDU_HEADER = "00CA0000";
+    // Largest Le of a short and of an extended length APDU.
+    public static final int MAX_SHORT_LE = 256;
+    public static final int MAX_EXTENDED_LE = 65536;
+
     public static final byte[] ISO7816_UNKNOWN_ERROR_RESPONSE = {
             (byte)0x6F, (byte)0x00
     };
@@ -43,35 +70,7 @@ public class CardApdu {
             (byte)0x00 // LE   (max length of expected result, 0 implies 256)
     };
 
-    public static final byte[] PPSE_APDU_SELECT_RESP = {
-            (byte)0x6F,  // FCI Template
-            (byte)0x23,  // length = 35
-            (byte)0x84,  // DF Name
-            (byte)0x0E,  // length("2PAY.SYS.DDF01")
-            // Data (ASCII values of characters used):
-            '2', 'P', 'A', 'Y', '.', 'S', 'Y', 'S', '.', 'D', 'D', 'F', '0', '1',
-            (byte)0xA5, // FCI Proprietary Template
-            (byte)0x11, // length = 17
-            (byte)0xBF, // FCI Issuer Discretionary Data
-            (byte)0x0C, // length = 12
-            (byte)0x0E,
-            (byte)0x61, // Directory Entry
-            (byte)0x0C, // Entry length = 12
-            (byte)0x4F, // ADF Name
-            (byte)0x07, // ADF Length = 7
-            // Tell the POS (point of sale terminal) that we support the standard
-            // Visa credit or debit applet: A0000000031010
-            // Visa's RID (Registered application provider IDentifier) is 5 bytes:
-            (byte)0xA0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x03,
-            // PIX (Proprietary application Identifier eXtension) is the last 2 bytes.
-            // 10 10 (means visa credit or debit)
-            (byte)0x10, (byte)0x10,
-            (byte)0x87,  // Application Priority Indicator
-            (byte)0x01,  // length = 1
-            (byte)0x01,
-            (byte) 0x90, // SW1  (90 00 = Success)
-            (byte) 0x00  // SW2
-    };
+    public static final byte[] PPSE_APDU_SELECT_RESP = buildPpseSelectResponse();
 
     /*
      *  MSD (Magnetic Stripe Data)
@@ -88,26 +87,7 @@ public class CardApdu {
             (byte)0x00   // LE
     };
 
-    public static final byte[] VISA_MSD_SELECT_RESPONSE = {
-            (byte) 0x6F,  // File Control Information (FCI) Template
-            (byte) 0x1E,  // length = 30 (0x1E)
-            (byte) 0x84,  // Dedicated File (DF) Name
-            (byte) 0x07,  // DF length = 7
-
-            // A0000000031010  (Visa debit or credit AID)
-            (byte)0xA0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x03, (byte)0x10, (byte)0x10,
-
-            (byte) 0xA5,  // File Control Information (FCI) Proprietary Template
-            (byte) 0x13,  // length = 19 (0x13)
-            (byte) 0x50,  // Application Label
-            (byte) 0x0B,  // length
-            'V', 'I', 'S', 'A', ' ', 'C', 'R', 'E', 'D', 'I', 'T',
-            (byte) 0x9F, (byte) 0x38,  // Processing Options Data Object List (PDOL)
-            (byte) 0x03,  // length
-            (byte) 0x9F, (byte) 0x66, (byte) 0x02, // PDOL value (Does this request terminal type?)
-            (byte) 0x90,  // SW1
-            (byte) 0x00   // SW2
-    };
+    public static final byte[] VISA_MSD_SELECT_RESPONSE = buildVisaMsdSelectResponse();
 
     /*
      *  GPO (Get Processing Options) command
@@ -166,36 +146,216 @@ public class CardApdu {
 
     public static final Pattern TRACK_2_PATTERN = Pattern.compile(".*;(\\d{12,19}=\\d{1,128})\\?.*");
 
-    /*
-     *  Unlike the upper case commands above, the Read REC response changes depending on the track 2
-     *  portion of the user's magnetic stripe data.
+    /**
+     * @return Number of times the host emulated card has been switched, see
+     * {@link CardProfileStore#getActiveVersion()}
      */
-    public static byte[] readRecResponse = {};
+    public static int getProfileVersion() {
+        return CardProfileStore.getActiveVersion();
+    }
 
+    private static byte[] buildPpseSelectResponse() {
+        byte[] buffer = new byte[64];
+        TlvBuilder tlv = new TlvBuilder(buffer, 0)
+                .open(TAG_FCI_TEMPLATE)
+                // DF Name, "2PAY.SYS.DDF01"
+                .put(TAG_DF_NAME, PPSE_APDU_SELECT, 5, 14)
+                .open(TAG_FCI_PROPRIETARY_TEMPLATE)
+                .open(TAG_FCI_ISSUER_DISCRETIONARY_DATA)
+                .open(TAG_DIRECTORY_ENTRY)
+                // Tell the POS (point of sale terminal) that we support the standard
+                // Visa credit or debit applet: A0000000031010
+                .put(TAG_ADF_NAME, new byte[] {
+                        // Visa's RID (Registered application provider IDentifier) is 5 bytes:
+                        (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x03,
+                        // PIX (Proprietary application Identifier eXtension) is the last 2
+                        // bytes. 10 10 (means visa credit or debit)
+                        (byte) 0x10, (byte) 0x10 })
+                .putByte(TAG_APPLICATION_PRIORITY_INDICATOR, 0x01)
+                .close()
+                .close()
+                .close()
+                .close()
+                .putStatusWord(SW_OK);
+        return Arrays.copyOf(buffer, tlv.length());
+    }
+
+    private static byte[] buildVisaMsdSelectResponse() {
+        byte[] buffer = new byte[64];
+        TlvBuilder tlv = new TlvBuilder(buffer, 0)
+                .open(TAG_FCI_TEMPLATE)
+                // A0000000031010 (Visa debit or credit AID)
+                .put(TAG_DF_NAME, VISA_MSD_SELECT, 5, 7)
+                .open(TAG_FCI_PROPRIETARY_TEMPLATE)
+                .put(TAG_APPLICATION_LABEL, new byte[] {
+                        'V', 'I', 'S', 'A', ' ', 'C', 'R', 'E', 'D', 'I', 'T' })
+                // PDOL value (Does this request terminal type?)
+                .put(TAG_PDOL, new byte[] { (byte) 0x9F, (byte) 0x66, (byte) 0x02 })
+                .close()
+                .close()
+                .putStatusWord(SW_OK);
+        return Arrays.copyOf(buffer, tlv.length());
+    }
+
+    /**
+     * Answer with the card described by {@code swipeData} from now on, without storing it. Use
+     * {@link CardProfileStore} to keep several cards and switch between them.
+     *
+     * @param swipeData Magnetic stripe data, e.g. {@link #DEFAULT_SWIPE_DATA}
+     */
     public static void configureReadRecResponse(String swipeData) {
-        Matcher matcher = TRACK_2_PATTERN.matcher(swipeData);
-        if (matcher.matches()) {
-            String track2EquivData = matcher.group(1);
-            // convert the track 2 data into the required byte representation
-            track2EquivData = track2EquivData.replace('=', 'D');
-            if (track2EquivData.length() % 2 != 0) {
-                // add an 'F' to make the hex string a whole number of bytes wide
-                track2EquivData += "F";
+        CardProfile profile = CardProfile.fromSwipeData(CardProfileStore.DEFAULT_CARD_ID, swipeData);
+        if (profile != null) {
+            CardProfileStore.setActiveProfile(profile);
+        }
+    }
+
+    /**
+     * Build APDU for SELECT AID command. This command indicates which service a reader is
+     * interested in communicating with. See ISO 7816-4.
+     *
+     * @param aid Application ID (AID) to select
+     * @return APDU for SELECT AID command
+     */
+    public static byte[] BuildSelectApdu(String aid) {
+        // Format: [CLASS | INSTRUCTION | PARAMETER 1 | PARAMETER 2 | LENGTH | DATA]
+        return HexStringToByteArray(SELECT_APDU_HEADER + String.format("%02X", aid.length() / 2) + aid);
+    }
+
+    /**
+     * Build APDU for SELECT AID command, same as {@link #BuildSelectApdu(String)} but without
+     * going through a hexadecimal string.
+     *
+     * @param aid Application ID (AID) to select
+     * @return APDU for SELECT AID command, selecting the first occurrence
+     */
+    public static byte[] BuildSelectApdu(byte[] aid) {
+        byte[] apdu = new byte[5 + aid.length];
+        apdu[1] = (byte) 0xA4;
+        apdu[2] = SELECT_BY_NAME;
+        apdu[4] = (byte) aid.length;
+        System.arraycopy(aid, 0, apdu, 5, aid.length);
+        return apdu;
+    }
+
+    /**
+     * @return true if the APDU is a SELECT by DF name (P1 = 04), i.e. selects an application by
+     * its AID or the start of it
+     */
+    public static boolean isSelectByName(byte[] apdu) {
+        return apdu.length >= 4 && apdu[1] == (byte) 0xA4 && apdu[2] == SELECT_BY_NAME;
+    }
+
+    /**
+     * @return true if a SELECT by name asks for the next application matching the name instead
+     * of the first one (P2 = 02)
+     */
+    public static boolean isSelectNextOccurrence(byte[] apdu) {
+        return (apdu[3] & SELECT_OCCURRENCE_MASK) == SELECT_NEXT_OCCURRENCE;
+    }
+
+    /**
+     * Build APDU for GET_DATA command asking for as much as a short APDU can carry. See ISO 7816-4.
+     *
+     * @return APDU for GET_DATA command
+     */
+    public static byte[] BuildGetDataApdu() {
+        return BuildGetDataApdu(MAX_SHORT_LE, false);
+    }
+
+    /**
+     * Build APDU for GET_DATA command. See ISO 7816-4.
+     *
+     * @param le Number of response bytes expected, up to 256 for short and 65536 for extended
+     * @param extended true for extended length encoding, 00 followed by two Le bytes
+     * @return APDU for GET_DATA command
+     */
+    public static byte[] BuildGetDataApdu(int le, boolean extended) {
+        // Format: [CLASS | INSTRUCTION | PARAMETER 1 | PARAMETER 2 | LE]
+        byte[] header = HexStringToByteArray(GET_DATA_APDU_HEADER);
+        if (!extended) {
+            if (le < 1 || le > MAX_SHORT_LE) {
+                throw new IllegalArgumentException("Short Le must be 1 to 256");
             }
+            // 256 is encoded as 00.
+            return ConcatArrays(header, new byte[] { (byte) le });
+        }
+        if (le < 1 || le > MAX_EXTENDED_LE) {
+            throw new IllegalArgumentException("Extended Le must be 1 to 65536");
+        }
+        // 65536 is encoded as 0000.
+        return ConcatArrays(header, new byte[] { 0x00, (byte) (le >> 8), (byte) le });
+    }
+
+    /**
+     * Whether a command uses extended length encoding for Lc or Le. See ISO 7816-3.
+     */
+    public static boolean isExtendedLength(byte[] apdu) {
+        return apdu.length >= 7 && apdu[4] == 0x00;
+    }
 
-            // Each binary byte is represented by 2 4-bit hex characters
-            int track2EquivByteLen = track2EquivData.length()/2;
-            readRecResponse = new byte[6 + track2EquivByteLen];
-            ByteBuffer bb = ByteBuffer.wrap(readRecResponse);
-            bb.put((byte) 0x70);                            // EMV Record Template tag
-            bb.put((byte) (track2EquivByteLen + 2));        // Length with track 2 tag
-            bb.put((byte) 0x57);                                // Track 2 Equivalent Data tag
-            bb.put((byte)track2EquivByteLen);                   // Track 2 data length
-            bb.put(HexStringToByteArray(track2EquivData));           // Track 2 equivalent data
-            bb.put((byte) 0x90);                            // SW1
-            bb.put((byte) 0x00);                            // SW2
+    /**
+     * Offset of the command data field, for commands that carry one.
+     *
+     * @return Offset of the first data byte, or -1 if the command has no data
+     */
+    public static int getCommandDataOffset(byte[] apdu) {
+        if (getCommandDataLength(apdu) == 0) {
+            return -1;
+        }
+        return isExtendedLength(apdu) ? 7 : 5;
+    }
+
+    /**
+     * @return Lc, the length of the command data field, 0 if there is none or the encoding is
+     * inconsistent with the command length
+     */
+    public static int getCommandDataLength(byte[] apdu) {
+        int length = apdu.length;
+        if (length <= 5) {
+            return 0;
+        }
+        if (isExtendedLength(apdu)) {
+            if (length == 7) {
+                // Case 2E, Le only.
+                return 0;
+            }
+            int lc = ((apdu[5] & 0xFF) << 8) | (apdu[6] & 0xFF);
+            return length == 7 + lc || length == 9 + lc ? lc : 0;
         }
+        int lc = apdu[4] & 0xFF;
+        return length == 5 + lc || length == 6 + lc ? lc : 0;
+    }
 
+    /**
+     * @return Ne, the number of response bytes the command asks for, 0 if it carries no Le
+     */
+    public static int getExpectedLength(byte[] apdu) {
+        int length = apdu.length;
+        if (length < 5) {
+            return 0;
+        }
+        if (length == 5) {
+            int le = apdu[4] & 0xFF;
+            return le == 0 ? MAX_SHORT_LE : le;
+        }
+        if (isExtendedLength(apdu)) {
+            int le;
+            if (length == 7) {
+                le = ((apdu[5] & 0xFF) << 8) | (apdu[6] & 0xFF);
+            } else if (length == 9 + getCommandDataLength(apdu)) {
+                le = ((apdu[length - 2] & 0xFF) << 8) | (apdu[length - 1] & 0xFF);
+            } else {
+                return 0;
+            }
+            return le == 0 ? MAX_EXTENDED_LE : le;
+        }
+        int lc = apdu[4] & 0xFF;
+        if (length == 6 + lc) {
+            int le = apdu[length - 1] & 0xFF;
+            return le == 0 ? MAX_SHORT_LE : le;
+        }
+        return 0;
     }
 
     /**
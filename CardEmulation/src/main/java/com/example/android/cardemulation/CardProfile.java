@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.cardemulation;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+
+/**
+ * Prebuilt response images of one host emulated card: the PPSE and application SELECT
+ * responses, the GPO response and the READ RECORD response carrying the card's track 2 data.
+ *
+ * <p>Profiles are immutable. Everything that depends on the card, the track 2 parsing and the
+ * TLV encoding, happens once when the profile is created, so {@link HostEmvResponder} returns
+ * the images as they are. Profiles are kept in a {@link CardProfileStore}, and the one in use is
+ * switched with {@link CardProfileStore#setActiveProfile(CardProfile)}.
+ */
+public final class CardProfile {
+
+    /** Image indexes, in the order the images are stored. */
+    static final int IMAGE_PPSE_SELECT = 0;
+    static final int IMAGE_SELECT = 1;
+    static final int IMAGE_GPO = 2;
+    static final int IMAGE_READ_RECORD = 3;
+    static final int IMAGE_COUNT = 4;
+
+    // Track 2 is at most 19 + 1 + 128 digits, 74 bytes, so the long length form never applies.
+    private static final int MAX_READ_RECORD_LENGTH = 96;
+
+    private final String mCardId;
+    private final byte[][] mImages;
+
+    CardProfile(String cardId, byte[][] images) {
+        if (images.length != IMAGE_COUNT) {
+            throw new IllegalArgumentException("A profile has " + IMAGE_COUNT + " images");
+        }
+        mCardId = cardId;
+        mImages = images;
+    }
+
+    /**
+     * Build the profile of a Visa MSD card from its magnetic stripe data.
+     *
+     * @param cardId Identifier the profile is stored under
+     * @param swipeData Track 1 and 2 as read from the stripe, e.g.
+     *                  {@link CardApdu#DEFAULT_SWIPE_DATA}
+     * @return Profile, or null if the swipe data holds no track 2
+     */
+    public static CardProfile fromSwipeData(String cardId, String swipeData) {
+        Matcher matcher = CardApdu.TRACK_2_PATTERN.matcher(swipeData);
+        if (!matcher.matches()) {
+            return null;
+        }
+        // convert the track 2 data into the required byte representation
+        String track2EquivData = matcher.group(1).replace('=', 'D');
+        if (track2EquivData.length() % 2 != 0) {
+            // add an 'F' to make the hex string a whole number of bytes wide
+            track2EquivData += "F";
+        }
+        byte[] rsp = new byte[MAX_READ_RECORD_LENGTH];
+        TlvBuilder tlv = new TlvBuilder(rsp, 0)
+                .open(CardApdu.TAG_RECORD_TEMPLATE)
+                .put(CardApdu.TAG_TRACK_2_EQUIVALENT, CardApdu.HexStringToByteArray(track2EquivData))
+                .close()
+                .putStatusWord(CardApdu.SW_OK);
+        byte[][] images = new byte[IMAGE_COUNT][];
+        images[IMAGE_PPSE_SELECT] = CardApdu.PPSE_APDU_SELECT_RESP;
+        images[IMAGE_SELECT] = CardApdu.VISA_MSD_SELECT_RESPONSE;
+        images[IMAGE_GPO] = CardApdu.GPO_COMMAND_RESPONSE;
+        images[IMAGE_READ_RECORD] = Arrays.copyOf(rsp, tlv.length());
+        return new CardProfile(cardId, images);
+    }
+
+    public String getCardId() {
+        return mCardId;
+    }
+
+    /**
+     * @return FCI and status word answering SELECT of the PPSE
+     */
+    public byte[] getPpseSelectResponse() {
+        return mImages[IMAGE_PPSE_SELECT];
+    }
+
+    /**
+     * @return FCI and status word answering SELECT of the payment application
+     */
+    public byte[] getSelectResponse() {
+        return mImages[IMAGE_SELECT];
+    }
+
+    /**
+     * @return Response to GET PROCESSING OPTIONS, with the AFL naming the record below
+     */
+    public byte[] getGpoResponse() {
+        return mImages[IMAGE_GPO];
+    }
+
+    /**
+     * @return Record template with the track 2 equivalent data, and the status word
+     */
+    public byte[] getReadRecordResponse() {
+        return mImages[IMAGE_READ_RECORD];
+    }
+
+    byte[] getImage(int index) {
+        return mImages[index];
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.cardemulation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Card profiles kept in a memory-mapped file, indexed by card ID, plus the profile
+ * {@link HostEmvResponder} answers with.
+ *
+ * <p>Each card is one record holding its prebuilt response images (see {@link CardProfile}).
+ * Records are appended; replacing or removing a card marks its old record removed. The header
+ * remembers the active card, so it is active again after a restart. The file is only read and
+ * written here, never on the tap path: activating a card copies its images out of the mapping
+ * into a new {@link CardProfile} and swaps it in with a single volatile write, so a tap sees
+ * either the old card or the new one, never a mix.
+ *
+ * <p>File layout, big endian: a 16 byte header (magic, format version, bytes in use, offset of
+ * the active record or 0), then records of state (1 byte, 1 live, 0 removed), record length
+ * (4), card ID length (2), card ID in UTF-8, and for each image its length (2) and bytes.
+ */
+public final class CardProfileStore {
+
+    /** Name of the store in the app's files directory. */
+    public static final String FILE_NAME = "card_profiles.bin";
+    /** ID of the profile built from {@link CardApdu#DEFAULT_SWIPE_DATA}. */
+    public static final String DEFAULT_CARD_ID = "default";
+
+    // "HCEP"
+    private static final int MAGIC = 0x48434550;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int HEADER_END = 8;
+    private static final int HEADER_ACTIVE = 12;
+    private static final int RECORD_HEADER_SIZE = 7;
+    private static final byte RECORD_LIVE = 1;
+    private static final byte RECORD_REMOVED = 0;
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // One store per file, shared by the service and the app's screens.
+    private static final Map<String, CardProfileStore> sOpenStores =
+            new HashMap<String, CardProfileStore>();
+
+    private static volatile CardProfile sActive =
+            CardProfile.fromSwipeData(DEFAULT_CARD_ID, CardApdu.DEFAULT_SWIPE_DATA);
+    // Bumped on every switch, so cached responses can be dropped.
+    private static final AtomicInteger sVersion = new AtomicInteger();
+
+    private final String mPath;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private MappedByteBuffer mMap;
+    private int mEnd;
+    // Offset of the live record per card ID.
+    private final LinkedHashMap<String, Integer> mIndex = new LinkedHashMap<String, Integer>();
+
+    private CardProfileStore(File file) throws IOException {
+        mPath = file.getAbsolutePath();
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        boolean fresh = mChannel.size() < HEADER_SIZE;
+        mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(INITIAL_CAPACITY, mChannel.size()));
+        if (fresh) {
+            mMap.putInt(0, MAGIC);
+            mMap.putInt(4, FORMAT_VERSION);
+            mMap.putInt(HEADER_END, HEADER_SIZE);
+            mMap.putInt(HEADER_ACTIVE, 0);
+            mMap.force();
+        } else if (mMap.getInt(0) != MAGIC || mMap.getInt(4) != FORMAT_VERSION) {
+            close();
+            throw new IOException("Not a card profile store: " + mPath);
+        }
+        mEnd = mMap.getInt(HEADER_END);
+        buildIndex();
+    }
+
+    /**
+     * Open the store in a file, creating it if needed. Opening the same file again returns the
+     * same store. If the store has an active card, it becomes the active profile.
+     *
+     * @param file Store file, e.g. {@link #FILE_NAME} in the app's files directory
+     * @return Open store
+     * @throws IOException if the file cannot be mapped or is not a profile store
+     */
+    public static CardProfileStore open(File file) throws IOException {
+        synchronized (sOpenStores) {
+            CardProfileStore store = sOpenStores.get(file.getAbsolutePath());
+            if (store == null) {
+                store = new CardProfileStore(file);
+                sOpenStores.put(store.mPath, store);
+                store.restoreActive();
+            }
+            return store;
+        }
+    }
+
+    /**
+     * @return Profile host emulated AIDs are answered with. Never null; the profile built from
+     * {@link CardApdu#DEFAULT_SWIPE_DATA} until another card is activated.
+     */
+    public static CardProfile getActiveProfile() {
+        return sActive;
+    }
+
+    /**
+     * Answer with {@code profile} from the next command on, without storing it.
+     */
+    public static void setActiveProfile(CardProfile profile) {
+        if (profile == null) {
+            throw new IllegalArgumentException("Profile must not be null");
+        }
+        sActive = profile;
+        sVersion.incrementAndGet();
+    }
+
+    /**
+     * @return Number of times the active profile has been switched
+     */
+    public static int getActiveVersion() {
+        return sVersion.get();
+    }
+
+    /**
+     * Store a card, replacing any card with the same ID. If the replaced card is the active one,
+     * the new profile becomes active.
+     *
+     * @throws IOException if the file cannot grow
+     */
+    public synchronized void put(CardProfile profile) throws IOException {
+        byte[] id = profile.getCardId().getBytes(UTF_8);
+        int length = RECORD_HEADER_SIZE + id.length;
+        for (int i = 0; i < CardProfile.IMAGE_COUNT; i++) {
+            length += 2 + profile.getImage(i).length;
+        }
+        ensureCapacity(mEnd + length);
+        int offset = mEnd;
+        ByteBuffer record = mMap.duplicate();
+        record.position(offset);
+        // Written as removed and only marked live once complete.
+        record.put(RECORD_REMOVED);
+        record.putInt(length);
+        record.putShort((short) id.length);
+        record.put(id);
+        for (int i = 0; i < CardProfile.IMAGE_COUNT; i++) {
+            byte[] image = profile.getImage(i);
+            record.putShort((short) image.length);
+            record.put(image);
+        }
+        mMap.put(offset, RECORD_LIVE);
+        Integer previous = mIndex.put(profile.getCardId(), offset);
+        if (previous != null) {
+            mMap.put(previous, RECORD_REMOVED);
+        }
+        mEnd = offset + length;
+        mMap.putInt(HEADER_END, mEnd);
+        if (previous != null && mMap.getInt(HEADER_ACTIVE) == previous) {
+            mMap.putInt(HEADER_ACTIVE, offset);
+            setActiveProfile(profile);
+        }
+        mMap.force();
+    }
+
+    /**
+     * Build a card from its magnetic stripe data and store it.
+     *
+     * @return false if the swipe data holds no track 2
+     * @throws IOException if the file cannot grow
+     */
+    public boolean putSwipeData(String cardId, String swipeData) throws IOException {
+        CardProfile profile = CardProfile.fromSwipeData(cardId, swipeData);
+        if (profile == null) {
+            return false;
+        }
+        put(profile);
+        return true;
+    }
+
+    /**
+     * Remove a card. Removing the active card falls back to the default profile.
+     *
+     * @return false if there is no such card
+     */
+    public synchronized boolean remove(String cardId) {
+        Integer offset = mIndex.remove(cardId);
+        if (offset == null) {
+            return false;
+        }
+        mMap.put(offset, RECORD_REMOVED);
+        if (mMap.getInt(HEADER_ACTIVE) == offset) {
+            mMap.putInt(HEADER_ACTIVE, 0);
+            setActiveProfile(CardProfile.fromSwipeData(DEFAULT_CARD_ID,
+                    CardApdu.DEFAULT_SWIPE_DATA));
+        }
+        mMap.force();
+        return true;
+    }
+
+    /**
+     * Read a card out of the store.
+     *
+     * @return Profile, or null if there is no such card
+     */
+    public synchronized CardProfile get(String cardId) {
+        Integer offset = mIndex.get(cardId);
+        return offset == null ? null : read(offset);
+    }
+
+    /**
+     * Make a stored card the active profile and remember it across restarts.
+     *
+     * @return false if there is no such card
+     */
+    public synchronized boolean activate(String cardId) {
+        Integer offset = mIndex.get(cardId);
+        if (offset == null) {
+            return false;
+        }
+        // Images are copied out first, the switch itself is one volatile write.
+        setActiveProfile(read(offset));
+        mMap.putInt(HEADER_ACTIVE, offset);
+        mMap.force();
+        return true;
+    }
+
+    /**
+     * @return IDs of the stored cards, oldest first
+     */
+    public synchronized List<String> getCardIds() {
+        return new ArrayList<String>(mIndex.keySet());
+    }
+
+    /**
+     * @return ID of the card active across restarts, or null if none was activated
+     */
+    public synchronized String getActiveCardId() {
+        int active = mMap.getInt(HEADER_ACTIVE);
+        return active == 0 ? null : readCardId(active);
+    }
+
+    /**
+     * Unmap and close the file. The active profile stays in use.
+     */
+    public void close() {
+        synchronized (sOpenStores) {
+            if (sOpenStores.get(mPath) == this) {
+                sOpenStores.remove(mPath);
+            }
+        }
+        try {
+            mChannel.close();
+            mFile.close();
+        } catch (IOException e) {
+            // Nothing left to save, the mapping was forced after every change.
+        }
+    }
+
+    private void restoreActive() {
+        int active = mMap.getInt(HEADER_ACTIVE);
+        if (active != 0 && mIndex.containsValue(active)) {
+            setActiveProfile(read(active));
+        }
+    }
+
+    /**
+     * Walk the records and index the live ones. A record cut short, e.g. by a crash while it was
+     * written, ends the walk and is overwritten by the next put.
+     */
+    private void buildIndex() {
+        int offset = HEADER_SIZE;
+        int end = Math.min(mEnd, mMap.capacity());
+        while (offset + RECORD_HEADER_SIZE <= end) {
+            int length = mMap.getInt(offset + 1);
+            if (length < RECORD_HEADER_SIZE || offset + length > end) {
+                break;
+            }
+            if (mMap.get(offset) == RECORD_LIVE) {
+                mIndex.put(readCardId(offset), offset);
+            }
+            offset += length;
+        }
+        mEnd = offset;
+    }
+
+    private String readCardId(int offset) {
+        int idLength = mMap.getShort(offset + 5) & 0xFFFF;
+        byte[] id = new byte[idLength];
+        ByteBuffer record = mMap.duplicate();
+        record.position(offset + RECORD_HEADER_SIZE);
+        record.get(id);
+        return new String(id, UTF_8);
+    }
+
+    private CardProfile read(int offset) {
+        ByteBuffer record = mMap.duplicate();
+        record.position(offset + 5);
+        byte[] id = new byte[record.getShort() & 0xFFFF];
+        record.get(id);
+        byte[][] images = new byte[CardProfile.IMAGE_COUNT][];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = new byte[record.getShort() & 0xFFFF];
+            record.get(images[i]);
+        }
+        return new CardProfile(new String(id, UTF_8), images);
+    }
+
+    private void ensureCapacity(int capacity) throws IOException {
+        if (capacity <= mMap.capacity()) {
+            return;
+        }
+        mMap.force();
+        mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(capacity, mMap.capacity() * 2));
+    }
+}
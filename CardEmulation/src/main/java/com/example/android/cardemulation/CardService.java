@@ -17,24 +17,30 @@
 package com.example.android.cardemulation;
 
 import android.nfc.cardemulation.HostApduService;
+import android.content.Context;
+import android.content.res.XmlResourceParser;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.jeremyliao.liveeventbus.LiveEventBus;
+import com.example.android.cardemulation.SecureElementBackend.Channel;
 
-import org.simalliance.openmobileapi.Channel;
-import org.simalliance.openmobileapi.Reader;
-import org.simalliance.openmobileapi.SEService;
-import org.simalliance.openmobileapi.Session;
+import org.xmlpull.v1.XmlPullParser;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CountDownLatch;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * This is a sample APDU Service which demonstrates how to interface with the card emulation support
@@ -54,38 +60,112 @@ import java.util.concurrent.CountDownLatch;
  */
 public class CardService extends HostApduService {
     private static final String TAG = "CardService";
-    public static final String KEY_TEST_OBSERVE = "key_test_observe";
+    // Per-command logs hex-encode APDUs, which the tap cannot afford. Read once, so set
+    // log.tag.CardService to DEBUG before the service starts to see them.
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
     // next is test aid
     private static final byte[] ISD_AID = new byte[] { (byte) 0xA0, 0x00, 0x00, 0x00, 0x03, 0x00, 0x00, 0x00 };
     // AID for our loyalty card service.
 //    private static final String SAMPLE_LOYALTY_CARD_AID = "A00000015141434C00";
     private static final String SAMPLE_LOYALTY_CARD_AID = "A0000000031010";
-    // AID for our select card service.
-    private static String SELECT_CARD_AID = SAMPLE_LOYALTY_CARD_AID;
-    // ISO-DEP command HEADER for selecting an AID.
-    // Format: [Class | Instruction | Parameter 1 | Parameter 2]
-    private static final String SELECT_APDU_HEADER = "00A40400";
-    // Format: [Class | Instruction | Parameter 1 | Parameter 2]
-    private static final String GET_DATA_APDU_HEADER = "00CA0000";
+    private static final byte[] SAMPLE_LOYALTY_CARD_AID_BYTES = HexStringToByteArray(SAMPLE_LOYALTY_CARD_AID);
+    // Our proprietary applet, the "other" group of aid_list.xml.
+    private static final byte[] PROPRIETARY_AID_BYTES = HexStringToByteArray("A000000632010105");
     // "OK" status word sent in response to SELECT AID command (0x9000)
     private static final byte[] SELECT_OK_SW = HexStringToByteArray("9000");
     // "UNKNOWN" status word sent in response to invalid APDU command (0x0000)
     private static final byte[] UNKNOWN_CMD_SW = HexStringToByteArray("0000");
+    // "File not found" status word sent when the selected applet is not on the SE (0x6A82)
+    private static final byte[] SELECT_NOT_FOUND_SW = HexStringToByteArray("6A82");
     private static final byte[] SELECT_APDU = BuildSelectApdu(SAMPLE_LOYALTY_CARD_AID);
     private static final byte[] GET_DATA_APDU = BuildGetDataApdu();
 
     private HandlerThread apduHandlerThread = null;
     private ApduHandler apduHandler = null;
     private static final int SEND_DATA_APDU = 1;
+    private static final String ANDROID_NS = "http://schemas.android.com/apk/res/android";
     public static final int REPLY_DATA_APDU = 2;
-    SEService _service = null;
-    Session _session = null;
+    SeSessionManager seSessionManager = null;
+    // Channel and AID selected in the current tap. Channels themselves live in the pool.
     Channel _channel = null;
-    SEServiceCallback callback = null;
-    Handler handler = new Handler();
+    String selectedAid = SAMPLE_LOYALTY_CARD_AID;
+    byte[] selectedAidBytes = SAMPLE_LOYALTY_CARD_AID_BYTES;
+    // SIM reader in use and reader the selected AID is routed to, only touched on the APDU thread.
+    private String simReader = se_reader;
+    String selectedReader = simReader;
+    // AID of the latest SELECT as seen by processCommandApdu, only touched on the main thread.
+    private byte[] hostSelectedAid = SAMPLE_LOYALTY_CARD_AID_BYTES;
+    // True while the selected AID is answered by HostEmvResponder, only touched on the main thread.
+    private boolean hostEmulating = false;
+    // Routing table the cached responses were recorded under, only touched on the main thread.
+    private AidRoutingTable hostRoutingTable = aid_routing;
+    // Parses SELECT responses, only touched on the APDU thread.
+    private final TlvReader fciReader = new TlvReader();
+    // AIDs registered in aid_list.xml plus those found on the SE, for partial SELECT by name.
+    private volatile AidTrie knownAids = AidTrie.empty();
+    // SELECTs routed to each backend, indexed by AidRoutingTable.ROUTE_ constants.
+    final AtomicIntegerArray routeDecisions = new AtomicIntegerArray(AidRoutingTable.ROUTE_COUNT);
+    final ResponseCache responseCache = new ResponseCache();
+    final ApduLatencyStats latencyStats = ApduLatencyStats.getInstance();
+    final ApduTrace apduTrace = ApduTrace.getInstance();
+    final StatusWordResolver statusWordResolver = new StatusWordResolver();
+    final ApduBatch apduBatch = new ApduBatch(statusWordResolver);
+    final SePrefetcher prefetcher = new SePrefetcher();
+    // Latency histogram slot of the selected AID, on the APDU thread and on the main thread.
+    int selectedAidSlot = latencyStats.aidSlot(SAMPLE_LOYALTY_CARD_AID_BYTES);
+    private int hostAidSlot = selectedAidSlot;
     protected volatile static boolean ese_service = false;
-    ConcurrentLinkedQueue<String> conLinkedQueue = new ConcurrentLinkedQueue<>();
-    CountDownLatch latch = new CountDownLatch(1);
+    // Secure element reader names, see setSecureElementReader().
+    public static final String READER_SIM = SeSessionManager.DEFAULT_READER_NAME;
+    public static final String READER_SIM1 = "SIM1";
+    public static final String READER_SIM2 = "SIM2";
+    public static final String READER_ESE = "eSE";
+    private volatile static String se_reader = READER_SIM;
+    private volatile static AidRoutingTable aid_routing = AidRoutingTable.simOnly();
+    private volatile static BackendFactory se_backend = SimallianceSeBackend.FACTORY;
+    private volatile static boolean resolve_status_words = true;
+    private volatile static boolean prefetch_enabled = false;
+    private volatile static byte[] session_key_master = null;
+
+    static {
+        // Our own applet takes batch envelopes out of the box. The payment AIDs pass 80EB through.
+        ApduBatch.setEnabled(PROPRIETARY_AID_BYTES, true);
+    }
+    // Maximum number of commands waiting for the APDU thread, per lane.
+    private static final int APDU_QUEUE_CAPACITY = 16;
+    // The APDU thread runs ahead of ordinary app threads, the terminal is waiting on it.
+    private static final int APDU_THREAD_PRIORITY = Process.THREAD_PRIORITY_DISPLAY;
+    // SELECTs have their own lane, so a channel switch is never stuck behind data commands.
+    final ApduQueue selectLane = new ApduQueue(APDU_QUEUE_CAPACITY);
+    final ApduQueue dataLane = new ApduQueue(APDU_QUEUE_CAPACITY);
+    // Arrival counter across both lanes, only touched on the main thread.
+    private long apduSeq = 0;
+    // Bumped by onDeactivated. Queued commands of an older tap are never sent to the SE, and
+    // responses of an older tap are never handed to sendResponseApdu.
+    private volatile int tapGeneration = 0;
+    // Generation of the command the APDU thread is working on, only touched on that thread.
+    private int currentGeneration = 0;
+    private final AtomicInteger staleDrops = new AtomicInteger();
+    // SE transmits whose result nobody was waiting for any more.
+    private final AtomicInteger wastedTransmits = new AtomicInteger();
+    // Entries kept ready, and how few are left before the pool is refilled after a tap.
+    private static final int SESSION_KEY_POOL_CAPACITY = 32;
+    private static final int SESSION_KEY_POOL_LOW_WATER = 8;
+    private static final String SESSION_KEY_POOL_FILE = "session_keys.bin";
+    // Null unless a master key was set before the service was created. Nothing takes from it
+    // yet: the MSD profile has no cryptogram, and every take burns an ATC and rewrites the pool
+    // file. A profile computing one takes an entry per GPO with SessionKeyPool.take().
+    private SessionKeyPool sessionKeyPool;
+    // Set while a SEND_DATA_APDU message is pending, so a burst of commands costs one wakeup.
+    final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+    /**
+     * Creates the secure element backend for a service. Lives here rather than in
+     * {@link SecureElementBackend}, which stays free of Android classes.
+     */
+    public interface BackendFactory {
+        SecureElementBackend create(Context context);
+    }
 
     class  ApduHandler extends Handler {
         ApduHandler(Looper looper) {
@@ -100,19 +180,75 @@ public class CardService extends HostApduService {
             }
             switch (msg.what) {
                 case SEND_DATA_APDU:
+                    // Clear the flag before draining, any command queued after this point
+                    // schedules a new message.
+                    drainScheduled.set(false);
                     sendApduData();
                     break;
             }
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        knownAids = AidTrie.of(loadRegisteredAids());
+        try {
+            // Makes the card activated before the last restart the active one again.
+            CardProfileStore.open(new File(getFilesDir(), CardProfileStore.FILE_NAME));
+        } catch (IOException e) {
+            Log.e(TAG, "Opening card profiles failed: " + e.getMessage());
+        }
+        byte[] masterKey = session_key_master;
+        if (masterKey != null) {
+            sessionKeyPool = new SessionKeyPool(masterKey,
+                    new File(getFilesDir(), SESSION_KEY_POOL_FILE), SESSION_KEY_POOL_CAPACITY,
+                    SESSION_KEY_POOL_LOW_WATER);
+            sessionKeyPool.start();
+        }
+        // Start the APDU thread and bind the SE before the first tap instead of on its first APDU.
+        apduHandlerThread = new HandlerThread("CardService", APDU_THREAD_PRIORITY);
+        apduHandlerThread.start();
+        apduHandler = new ApduHandler(apduHandlerThread.getLooper());
+        seSessionManager = new SeSessionManager(createBackend(), apduHandler,
+                new SeSessionManager.Listener() {
+                    @Override
+                    public void onServiceConnected() {
+                        ese_service = true;
+                        // Dispatch whatever queued up while we were binding.
+                        scheduleDrain();
+                    }
+
+                    @Override
+                    public void onConnectTimeout() {
+                        ese_service = false;
+                        failQueuedCommands();
+                    }
+                });
+        ConnectSeService();
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
         if (apduHandler != null) {
             apduHandler.removeCallbacksAndMessages(null);
+            // The warm session only lives as long as the service.
+            final SeSessionManager manager = seSessionManager;
+            apduHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    closeChannel();
+                    manager.shutdown();
+                }
+            });
             apduHandler = null;
         }
+        ese_service = false;
+        if (sessionKeyPool != null) {
+            sessionKeyPool.shutdown();
+            sessionKeyPool = null;
+        }
         if (apduHandlerThread != null) {
             apduHandlerThread.quitSafely();
             apduHandlerThread = null;
@@ -128,20 +264,43 @@ public class CardService extends HostApduService {
      */
     @Override
     public void onDeactivated(int reason) {
-        Log.i(TAG, "onDeactivated reason: " + reason);
-        if (_channel != null) {
-            _channel.close();
-            _channel = null;
-        }
-        if (_session != null) {
-            _session.close();
-            _session = null;
+        Log.i(TAG, "onDeactivated reason: " + reason + ", round trips saved = "
+                + statusWordResolver.getRoundTripsSaved() + ", batches = " + apduBatch.getBatches()
+                + " (" + apduBatch.getItems() + " items)" + ", prefetched = "
+                + prefetcher.getIssued() + ", hits = " + prefetcher.getHits() + ", misses = "
+                + prefetcher.getMisses() + ", stale drops = " + staleDrops.get()
+                + ", wasted transmits = " + wastedTransmits.get() + ", routed to SIM = "
+                + routeDecisions.get(AidRoutingTable.ROUTE_SIM) + ", eSE = "
+                + routeDecisions.get(AidRoutingTable.ROUTE_ESE) + ", host = "
+                + routeDecisions.get(AidRoutingTable.ROUTE_HOST) + sessionKeyReport());
+        // Whatever is queued or in flight belongs to a tap that is over.
+        tapGeneration++;
+        prefetcher.discard();
+        hostSelectedAid = SAMPLE_LOYALTY_CARD_AID_BYTES;
+        hostEmulating = false;
+        hostAidSlot = latencyStats.aidSlot(SAMPLE_LOYALTY_CARD_AID_BYTES);
+        if (sessionKeyPool != null) {
+            // Idle until the next tap, a good time to derive keys.
+            sessionKeyPool.replenishIfLow();
         }
-        if (_service != null) {
-            _service.shutdown();
-            _service = null;
+        if (apduHandler == null) {
+            return;
         }
-        ese_service = false;
+        // The SE binding, session and pooled channels stay warm for the next tap. Channel and
+        // session belong to the APDU thread, so hand the work over to it.
+        // A pending wakeup would only find stale commands, the purge below takes care of them.
+        apduHandler.removeMessages(SEND_DATA_APDU);
+        drainScheduled.set(false);
+        final SeSessionManager manager = seSessionManager;
+        apduHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Stale commands sit at the head of the lanes, nextLane() drops them.
+                nextLane();
+                closeChannel();
+                manager.release();
+            }
+        });
     }
 
     /**
@@ -166,288 +325,733 @@ public class CardService extends HostApduService {
 
     @Override
     public byte[] processCommandApdu(byte[] commandApdu, Bundle extras) {
-        Log.i(TAG, "Received APDU: " + ByteArrayToHexString(commandApdu));
-        if (apduHandlerThread == null) {
-            apduHandlerThread = new HandlerThread("CardService");
-            apduHandlerThread.start();
-            apduHandler = new ApduHandler(apduHandlerThread.getLooper());
-        }
+        long receivedAt = System.nanoTime();
         if (commandApdu == null || commandApdu.length < 2) {
             return null;
         }
+        if (DEBUG) {
+            Log.d(TAG, "Received APDU: " + ByteArrayToHexString(commandApdu));
+        }
+        apduTrace.record(ApduTrace.TYPE_COMMAND, commandApdu);
+        // Serve SELECT and read-only commands the SE already answered once without leaving this
+        // thread. SELECT is queued anyway, the APDU thread has to switch to the AID's channel.
+        byte[] cached = null;
+        if (CardApdu.isSelectByName(commandApdu)) {
+            byte[] select = resolveSelect(commandApdu);
+            if (select == null) {
+                // Every application matching the name has been selected already.
+                return answeredOnHost(commandApdu, SELECT_NOT_FOUND_SW, receivedAt);
+            }
+            // From here on the command names one complete AID, also for the APDU thread.
+            commandApdu = select;
+            byte[] aid = selectAid(commandApdu);
+            hostSelectedAid = aid != null ? aid : SAMPLE_LOYALTY_CARD_AID_BYTES;
+            hostAidSlot = latencyStats.aidSlot(hostSelectedAid);
+            hostEmulating = false;
+            if (prefetch_enabled) {
+                prefetcher.onSelect(hostSelectedAid);
+            }
+            AidRoutingTable routing = aid_routing;
+            if (routing != hostRoutingTable) {
+                // AIDs may answer from another backend now, nothing cached still applies.
+                hostRoutingTable = routing;
+                responseCache.invalidateAll();
+            }
+            int route = routing.route(aid);
+            routeDecisions.incrementAndGet(route);
+            if (route == AidRoutingTable.ROUTE_HOST) {
+                byte[] rsp = HostEmvResponder.select(aid);
+                if (rsp != null) {
+                    // Host emulated applet, no SE involved for the rest of this selection.
+                    hostEmulating = true;
+                    return answeredOnHost(commandApdu, rsp, receivedAt);
+                }
+            }
+            cached = responseCache.get(hostSelectedAid, commandApdu);
+        } else if (hostEmulating) {
+            return answeredOnHost(commandApdu, HostEmvResponder.process(commandApdu), receivedAt);
+        } else {
+            byte[] prefetched = prefetch_enabled
+                    ? prefetcher.take(hostSelectedAid, commandApdu) : null;
+            if (prefetched != null) {
+                if (DEBUG) {
+                    Log.d(TAG, "Served from prefetch.");
+                }
+                return answeredOnHost(commandApdu, prefetched, receivedAt);
+            }
+            if (ResponseCache.isCacheable(commandApdu)) {
+                cached = responseCache.get(hostSelectedAid, commandApdu);
+                if (cached != null) {
+                    if (DEBUG) {
+                        Log.d(TAG, "Served from cache.");
+                    }
+                    return answeredOnHost(commandApdu, cached, receivedAt);
+                }
+            }
+        }
+        if (cached != null) {
+            answeredOnHost(commandApdu, cached, receivedAt);
+        }
         // queue the apdu, send message to apdu thread
-        conLinkedQueue.offer(ByteArrayToHexString(commandApdu));
-        if (ese_service) {
-            apduHandler.sendEmptyMessage(SEND_DATA_APDU);
+        ApduQueue lane = CardApdu.isSelectByName(commandApdu) ? selectLane : dataLane;
+        if (!lane.offer(commandApdu, cached != null, receivedAt, apduSeq++, tapGeneration)) {
+            Log.e(TAG, "APDU queue is full, dropping command.");
+            apduTrace.record(ApduTrace.TYPE_RESPONSE, CardApdu.ISO7816_UNKNOWN_ERROR_RESPONSE);
+            return CardApdu.ISO7816_UNKNOWN_ERROR_RESPONSE;
+        }
+        if (ese_service && seSessionManager.isConnected()) {
+            scheduleDrain();
         } else {
-            // firstly need connect se service
+            // firstly need connect se service, the command is dispatched once it is connected
             ConnectSeService();
-            apduHandler.sendEmptyMessageDelayed(SEND_DATA_APDU, 100);
         }
-        // just respond null or select id, then respond result after process
-        if ((commandApdu[1] == (byte)0xa4)/* && (commandApdu[4] == (byte)0x06)*/) {
-            LiveEventBus.get()
-                    .with(KEY_TEST_OBSERVE)
-                    .post(ByteArrayToHexString(commandApdu));
-//            LiveEventBus.get()
-//                    .with(CardLogFragment.KEY_TEST_OBSERVE)
-//                    .post("363232323232323230303030303030319000");
-            return HexStringToByteArray("363232323232323230303030303030319000");
+        // just respond null or the cached select response, then respond result after process
+        return cached;
+    }
+
+    /**
+     * Record the latency and trace of a command answered directly from processCommandApdu.
+     */
+    private byte[] answeredOnHost(byte[] commandApdu, byte[] rsp, long receivedAt) {
+        apduTrace.record(ApduTrace.TYPE_RESPONSE, rsp, 0);
+        latencyStats.record(ApduLatencyStats.STAGE_TOTAL, commandApdu[1], hostAidSlot,
+                System.nanoTime() - receivedAt);
+        return rsp;
+    }
+
+    /**
+     * Hand a response to the terminal straight from the APDU thread, recording how long it took
+     * to deliver and how long the whole command took.
+     *
+     * <p>{@link #sendResponseApdu(byte[])} may be called from any thread, so the response is not
+     * posted to the main looper first, where it would wait behind UI work such as the log screen
+     * appending and scrolling.
+     *
+     * @param rsp Response APDU
+     * @param ins Instruction byte of the command being answered
+     * @param receivedAt System.nanoTime() when the command was received
+     */
+    private void deliverResponse(byte[] rsp, int ins, long receivedAt) {
+        long readyAt = System.nanoTime();
+        if (currentGeneration != tapGeneration) {
+            // Deactivated while the response was being produced, it must not reach the
+            // terminal of the next tap. The NFC stack itself drops responses that arrive
+            // between onDeactivated and the next tap's first command.
+            Log.i(TAG, "Tap is over, dropping response.");
+            return;
+        }
+        sendResponseApdu(rsp);
+        long now = System.nanoTime();
+        apduTrace.record(ApduTrace.TYPE_RESPONSE, rsp, now - readyAt);
+        latencyStats.record(ApduLatencyStats.STAGE_DELIVERY, ins, selectedAidSlot, now - readyAt);
+        latencyStats.record(ApduLatencyStats.STAGE_TOTAL, ins, selectedAidSlot, now - receivedAt);
+    }
+
+    /**
+     * Choose the reader APDUs routed to {@link AidRoutingTable#ROUTE_SIM} are forwarded to.
+     * Takes effect the next time a channel is opened.
+     *
+     * @param readerName Reader name or name prefix: {@link #READER_SIM} (first SIM),
+     *                   {@link #READER_SIM1}, {@link #READER_SIM2} or {@link #READER_ESE}
+     */
+    public static void setSecureElementReader(String readerName) {
+        if (TextUtils.isEmpty(readerName)) {
+            throw new IllegalArgumentException("Reader name must not be empty");
+        }
+        se_reader = readerName;
+    }
+
+    /**
+     * Choose how the secure element is reached: {@link SimallianceSeBackend#FACTORY} (default)
+     * or {@link AndroidSeBackend#FACTORY} on Android 9 and later. Takes effect when the service
+     * is next created. A backend the device cannot provide, such as {@link AndroidSeBackend}
+     * below Android 9, falls back to {@link SimallianceSeBackend}.
+     *
+     * @param factory Creates the backend for the service
+     */
+    public static void setSecureElementBackend(BackendFactory factory) {
+        if (factory == null) {
+            throw new IllegalArgumentException("Backend factory must not be null");
+        }
+        se_backend = factory;
+    }
+
+    /**
+     * Use a backend that needs no Context, e.g. a {@link SimulatedSeBackend} to run without any
+     * secure element. Takes effect when the service is next created.
+     *
+     * @param backend Backend every new service instance uses
+     */
+    public static void setSecureElementBackend(final SecureElementBackend backend) {
+        if (backend == null) {
+            throw new IllegalArgumentException("Backend must not be null");
+        }
+        se_backend = new BackendFactory() {
+            @Override
+            public SecureElementBackend create(Context context) {
+                return backend;
+            }
+        };
+    }
+
+    /**
+     * Choose whether 61xx (more data) and 6Cxx (wrong Le) from the secure element are resolved
+     * here with GET RESPONSE and a corrected Le, or passed to the terminal as they are. Resolving
+     * them locally saves an NFC round trip per status word. On by default.
+     *
+     * @param resolveLocally true to return one complete response to the terminal
+     */
+    public static void setResolveStatusWordsLocally(boolean resolveLocally) {
+        resolve_status_words = resolveLocally;
+    }
+
+    /**
+     * Choose whether batch envelopes (CLA 80, INS EB) are run on the SE for an AID, see
+     * {@link ApduBatch} for the format. Enabled for our proprietary AID A000000632010105 by
+     * default; for other AIDs, payment AIDs included, 80EB is passed through to the applet.
+     *
+     * @param aid AID as a hexadecimal string
+     * @param enabled true to run envelopes item by item on the SE channel
+     */
+    public static void setBatchEnabled(String aid, boolean enabled) {
+        ApduBatch.setEnabled(HexStringToByteArray(aid), enabled);
+    }
+
+    /**
+     * Choose whether READ RECORD and GET DATA commands the terminal is likely to send next, from
+     * the AFL of the GPO response and from the previous transaction, are run on the SE ahead of
+     * time. Off by default.
+     *
+     * @param enabled true to prefetch
+     */
+    public static void setPrefetchEnabled(boolean enabled) {
+        prefetch_enabled = enabled;
+    }
+
+    /**
+     * Choose whether an AID is answered on the host from the EMV MSD tables in {@link CardApdu},
+     * or passed through to the secure element. PPSE ("2PAY.SYS.DDF01") and the Visa AID
+     * A0000000031010 can be host emulated. Shorthand for routing the AID to
+     * {@link AidRoutingTable#ROUTE_HOST} in the current table. Takes effect on the next SELECT.
+     *
+     * @param aid AID as a hexadecimal string
+     * @param hostEmulated true to answer on the host, false for SE passthrough
+     */
+    public static synchronized void setHostEmulated(String aid, boolean hostEmulated) {
+        AidRoutingTable routing = aid_routing;
+        AidRoutingTable.Builder builder = routing.toBuilder();
+        if (hostEmulated) {
+            builder.route(aid, AidRoutingTable.ROUTE_HOST);
+        } else if (routing.route(HexStringToByteArray(aid)) == AidRoutingTable.ROUTE_HOST) {
+            builder.remove(aid);
+        }
+        aid_routing = builder.build();
+    }
+
+    /**
+     * Replace the table that decides, per AID or AID prefix, whether a SELECT goes to the SIM,
+     * the embedded SE or the host emulated applets. Can be called at any time and takes effect
+     * on the next SELECT; responses cached under the old table are dropped.
+     *
+     * @param routing New routing table
+     */
+    public static synchronized void setAidRoutingTable(AidRoutingTable routing) {
+        if (routing == null) {
+            throw new IllegalArgumentException("Routing table must not be null");
+        }
+        aid_routing = routing;
+    }
+
+    /**
+     * @return Routing table in use, e.g. to derive a new one with
+     * {@link AidRoutingTable#toBuilder()}
+     */
+    public static AidRoutingTable getAidRoutingTable() {
+        return aid_routing;
+    }
+
+    /**
+     * Set the AES-128 card master key the host emulated card derives its limited use session
+     * keys from. Keys are derived ahead of time in the background, one per transaction counter
+     * value. Takes effect when the service is next created.
+     *
+     * @param masterKey 16 byte key, or null to derive no session keys
+     */
+    public static void setSessionKeyMaster(byte[] masterKey) {
+        if (masterKey != null && masterKey.length != SessionKeyPool.KEY_LENGTH) {
+            throw new IllegalArgumentException("Master key must be 16 bytes");
         }
-        return null;
+        session_key_master = masterKey == null ? null : masterKey.clone();
+    }
+
+    private String sessionKeyReport() {
+        SessionKeyPool pool = sessionKeyPool;
+        if (pool == null) {
+            return "";
+        }
+        return ", session keys left = " + pool.size() + "/" + pool.capacity() + ", taken = "
+                + pool.getTaken() + ", exhausted = " + pool.getExhausted() + ", refills = "
+                + pool.getRefills();
     }
 
     /**
-     * Callback interface if informs that this SEService is connected to the SmartCardService
+     * Create the backend chosen with {@link #setSecureElementBackend(BackendFactory)}, or the
+     * SIMalliance one if this device cannot provide it.
      */
-    public class SEServiceCallback implements SEService.CallBack {
-        public void serviceConnected(SEService service) {
-            Log.i(TAG, "serviceConnected: ");
-            _service = service;
-            ese_service = true;
-            latch.countDown();
+    private SecureElementBackend createBackend() {
+        try {
+            return se_backend.create(this);
+        } catch (UnsupportedOperationException e) {
+            Log.e(TAG, "SE backend not available on API " + Build.VERSION.SDK_INT
+                    + ", falling back to SIMalliance: " + e.getMessage());
+            return SimallianceSeBackend.FACTORY.create(this);
         }
     }
 
     private void ConnectSeService() {
         Log.i(TAG, "ConnectSeService: ");
-        if (callback == null) {
-            callback = new SEServiceCallback();
-        }
-        if (!ese_service) {
+        if (!seSessionManager.isConnected()) {
             Log.i(TAG, "ConnectSeService firstly need connect with SeService.");
-            new SEService(this, callback);
+            seSessionManager.connect();
         }
     }
 
-    private void sendApduData() {
-        Log.i(TAG, "sendApduData: ");
-        try {
-            latch.await();
-        } catch (InterruptedException arg2) {
-            arg2.printStackTrace();
+    /**
+     * Wake the APDU thread, unless a wakeup is already pending.
+     */
+    private void scheduleDrain() {
+        ApduHandler apduHandler = this.apduHandler;
+        if (apduHandler != null && drainScheduled.compareAndSet(false, true)) {
+            apduHandler.sendEmptyMessage(SEND_DATA_APDU);
+        }
+    }
+
+    /**
+     * @return true if neither lane holds a command
+     */
+    private boolean queuesEmpty() {
+        return selectLane.isEmpty() && dataLane.isEmpty();
+    }
+
+    /**
+     * Pick the lane to serve next. A queued SELECT goes first; data commands that arrived before
+     * it were for the previous selection, and the terminal has given up on them by sending the
+     * SELECT, so they are dropped. Commands of an earlier tap are dropped from both lanes.
+     * Runs on the APDU handler thread.
+     *
+     * @return Lane whose head is to be processed, or null if both are empty
+     */
+    private ApduQueue nextLane() {
+        int generation = tapGeneration;
+        ApduQueue.Slot select = selectLane.peek();
+        while (select != null && select.generation != generation) {
+            dropStale(selectLane);
+            select = selectLane.peek();
+        }
+        ApduQueue.Slot data = dataLane.peek();
+        while (data != null && (data.generation != generation
+                || (select != null && data.seq < select.seq))) {
+            dropStale(dataLane);
+            data = dataLane.peek();
+        }
+        if (select != null) {
+            return selectLane;
+        }
+        return data != null ? dataLane : null;
+    }
+
+    private void dropStale(ApduQueue lane) {
+        ApduQueue.Slot slot = lane.peek();
+        if (DEBUG) {
+            Log.d(TAG, "Dropping stale command, INS = " + String.format("%02X", slot.command[1]));
         }
-        if (conLinkedQueue.isEmpty()) {
+        staleDrops.incrementAndGet();
+        lane.release();
+    }
+
+    /**
+     * Drain every queued command, SELECTs first. Runs on the APDU handler thread.
+     */
+    private void sendApduData() {
+        if (queuesEmpty()) {
             Log.e(TAG, "Why queue is empty? Maybe just end. ");
             return;
         }
-        byte[] commandApdu = HexStringToByteArray(conLinkedQueue.poll());
-        if (commandApdu == null) {
-            Log.e(TAG, "Why command Apdu is empty?");
-            return;
+        ApduQueue lane;
+        while ((lane = nextLane()) != null) {
+            if (!seSessionManager.isConnected()) {
+                // The binding died, keep the commands queued until it is back.
+                Log.e(TAG, "Why _service is not connected?");
+                ese_service = false;
+                seSessionManager.connect();
+                return;
+            }
+            ApduQueue.Slot slot = lane.peek();
+            byte[] commandApdu = slot.command;
+            boolean answered = slot.answered;
+            long receivedAt = slot.receivedAt;
+            currentGeneration = slot.generation;
+            lane.release();
+            latencyStats.record(ApduLatencyStats.STAGE_QUEUE, commandApdu[1], selectedAidSlot,
+                    System.nanoTime() - receivedAt);
+            sendApduData(commandApdu, answered, receivedAt);
         }
-        if (_service == null || !_service.isConnected()) {
-            Log.e(TAG, "Why _service is not connected?");
-            LiveEventBus.get()
-                    .with(KEY_TEST_OBSERVE)
-                    .post("Why _service is not connected?");
+        prefetch();
+    }
+
+    /**
+     * Run predicted commands on the SE while the terminal is busy, one at a time and only while
+     * no real command is waiting. Runs on the APDU handler thread.
+     */
+    private void prefetch() {
+        if (!prefetch_enabled) {
             return;
         }
-        if (_channel != null && !_channel.isClosed()) {
-            if ((commandApdu[1] == (byte)0xa4)/* && (commandApdu[4] == (byte)0x06)*/) {
-                Log.i(TAG, "Selection already processed on above step.");
-                LiveEventBus.get()
-                        .with(KEY_TEST_OBSERVE)
-                        .post("Selection already processed on above step.");
-            } else {
-                try {
-                    Log.i(TAG, "process command = " + ByteArrayToHexString(commandApdu));
-                    LiveEventBus.get()
-                            .with(KEY_TEST_OBSERVE)
-                            .post(ByteArrayToHexString(commandApdu));
-                    final byte[] rsp = _channel.transmit(commandApdu);
-                    Log.i(TAG, "process response = " + ByteArrayToHexString(rsp));
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            sendResponseApdu(rsp);
-                        }
-                    });
-                    LiveEventBus.get()
-                            .with(KEY_TEST_OBSERVE)
-                            .post(ByteArrayToHexString(rsp));
-                } catch (Exception arg6) {
-                    arg6.printStackTrace();
+        int generation = currentGeneration;
+        while (queuesEmpty() && _channel != null && !_channel.isClosed()
+                && generation == tapGeneration) {
+            byte[] commandApdu = prefetcher.nextToIssue(selectedAidBytes);
+            if (commandApdu == null) {
+                return;
+            }
+            try {
+                byte[] rsp = resolve_status_words
+                        ? statusWordResolver.transmit(_channel, commandApdu)
+                        : _channel.transmit(commandApdu);
+                if (generation != tapGeneration) {
+                    // The tap ended while the SE was busy.
+                    wastedTransmits.incrementAndGet();
+                    return;
                 }
+                prefetcher.complete(selectedAidBytes, commandApdu, rsp);
+            } catch (Exception e) {
+                Log.e(TAG, "prefetch failed: " + e.getMessage());
+                prefetcher.discard();
+                return;
             }
-            return;
-        }
-        Reader[] readers = _service.getReaders();
-        if (readers == null || readers.length < 1) {
-            Log.e(TAG, "Why readers is empty?");
-            LiveEventBus.get()
-                    .with(KEY_TEST_OBSERVE)
-                    .post("Why readers is not connected?");
-            return;
         }
-        Log.i(TAG, "process readers.length = " + readers.length);
-        for (Reader reader : readers) {
-            if (reader == null || reader.getName() == null) {
-                Log.e(TAG, "Why reader is empty?");
+    }
+
+    /**
+     * The SE never became ready. Answer every queued command with an error so the terminal fails
+     * fast instead of waiting for its own timeout. Runs on the APDU handler thread.
+     */
+    private void failQueuedCommands() {
+        ApduQueue lane;
+        while ((lane = nextLane()) != null) {
+            ApduQueue.Slot slot = lane.peek();
+            byte[] commandApdu = slot.command;
+            boolean answered = slot.answered;
+            long receivedAt = slot.receivedAt;
+            currentGeneration = slot.generation;
+            lane.release();
+            if (answered) {
+                // Already answered from processCommandApdu.
                 continue;
             }
-//            Log.i(TAG, "process reader.getName() = " + reader.getName());
-            if (reader.getName().startsWith("SIM")) {
-                Log.i(TAG, "process reader name = " + reader.getName());
-                if (_session == null || _session.isClosed()) {
-                    try {
-                        _session = reader.openSession();
-                    } catch (Exception arg3) {
-                        arg3.printStackTrace();
-                        LiveEventBus.get()
-                                .with(KEY_TEST_OBSERVE)
-                                .post(arg3.getMessage());
-                    }
+            Log.e(TAG, "SE not ready, failing queued command.");
+            deliverResponse(CardApdu.ISO7816_UNKNOWN_ERROR_RESPONSE, commandApdu[1], receivedAt);
+        }
+    }
+
+    private void sendApduData(byte[] commandApdu, boolean answered, long receivedAt) {
+        if (!se_reader.equals(simReader)) {
+            // Another SIM answers from now on, nothing cached from the old one applies.
+            Log.i(TAG, "SIM reader: " + simReader + " -> " + se_reader);
+            seSessionManager.closeReader(simReader);
+            if (selectedReader.equals(simReader)) {
+                selectedReader = se_reader;
+            }
+            simReader = se_reader;
+            responseCache.invalidateAll();
+        }
+        if (CardApdu.isSelectByName(commandApdu)) {
+            byte[] aid = selectAid(commandApdu);
+            if (aid == null) {
+                Log.e(TAG, "Why SELECT_CARD_AID is empty?");
+                aid = SAMPLE_LOYALTY_CARD_AID_BYTES;
+            }
+            selectedAidBytes = aid;
+            selectedAid = ByteArrayToHexString(aid);
+            apduBatch.discardCarried();
+            selectedAidSlot = latencyStats.aidSlot(aid);
+            // Host routed AIDs only get here when the host has no applet for them.
+            selectedReader = aid_routing.route(aid) == AidRoutingTable.ROUTE_ESE
+                    ? READER_ESE : simReader;
+            if (DEBUG) {
+                Log.d(TAG, "process SELECT_CARD_AID = " + selectedAid + " on " + selectedReader);
+            }
+            _channel = openChannel(selectedAid);
+            if (_channel != null) {
+                // The SE has the applet, later partial SELECTs may resolve to it.
+                addKnownAid(dfName(_channel.getSelectResponse(), aid));
+            }
+            if (answered) {
+                // Answered from the cache, the channel just has to be ready.
+                return;
+            }
+            byte[] rsp;
+            if (_channel == null) {
+                rsp = SELECT_NOT_FOUND_SW;
+            } else {
+                byte[] fci = _channel.getSelectResponse();
+                if (fci != null && fci.length >= 2) {
+                    responseCache.put(aid, commandApdu, fci);
+                    rsp = fci;
+                } else {
+                    rsp = SELECT_OK_SW;
                 }
-                if (_session == null || _session.isClosed()) {
-                    Log.e(TAG, "Why _session is empty?");
-                    continue;
+            }
+            deliverResponse(rsp, commandApdu[1], receivedAt);
+            return;
+        }
+        if (_channel == null || _channel.isClosed()) {
+            _channel = openChannel(selectedAid);
+            if (_channel == null) {
+                // Fail fast rather than leave the terminal waiting for its own timeout.
+                if (!answered) {
+                    deliverResponse(CardApdu.ISO7816_UNKNOWN_ERROR_RESPONSE, commandApdu[1],
+                            receivedAt);
                 }
-//                try {
-//                    byte[] atr = _session.getATR();
-//                    Log.i(TAG, "process getATR = " + ByteArrayToHexString(atr));
-//                } catch (Exception arg2) {
-//                    arg2.printStackTrace();
-//                }
-                if (_channel == null || _channel.isClosed()) {
-                    if ((commandApdu[1] == (byte)0xa4)/* && (commandApdu[4] == (byte)0x06)*/) {
-                        SELECT_CARD_AID = ByteArrayToHexString(commandApdu).substring(10);
-                        if (TextUtils.isEmpty(SELECT_CARD_AID)) {
-                            Log.e(TAG, "Why SELECT_CARD_AID is empty?");
-                            SELECT_CARD_AID = SAMPLE_LOYALTY_CARD_AID;
-                        } else {
-                            Log.i(TAG, "process SELECT_CARD_AID = " + SELECT_CARD_AID);
-                        }
-                    }
-                    try {
-//                        _channel = _session.openBasicChannel(HexStringToByteArray(SELECT_CARD_AID));
-                        _channel = _session.openLogicalChannel(HexStringToByteArray(SELECT_CARD_AID));
-                    } catch (Exception arg5) {
-                        arg5.printStackTrace();
-                        LiveEventBus.get()
-                                .with(KEY_TEST_OBSERVE)
-                                .post(arg5.getMessage());
-                    }
-                    if (_channel == null || _channel.isClosed()) {
-                        Log.e(TAG, "Why _channel is empty?");
-                        continue;
-                    } else {
-                        LiveEventBus.get()
-                                .with(KEY_TEST_OBSERVE)
-                                .post(ByteArrayToHexString(_channel.getSelectResponse()));
-                        Log.i(TAG, "open channel ok, response = " + ByteArrayToHexString(_channel.getSelectResponse()));
-                    }
+                return;
+            }
+        }
+        byte[] rsp = transmitCommand(commandApdu, receivedAt);
+        if (rsp != null && ResponseCache.isCacheable(commandApdu)) {
+            responseCache.put(selectedAidBytes, commandApdu, rsp);
+        }
+        if (rsp != null && prefetch_enabled && CardApdu.isGpoCommand(commandApdu)) {
+            // The AFL tells which records the terminal reads next.
+            prefetcher.onGpoResponse(rsp);
+        }
+    }
+
+    /**
+     * Take a logical channel to the applet from the pool, opening one if needed.
+     *
+     * @return Open channel, or null if none could be opened
+     */
+    private Channel openChannel(String aid) {
+        Channel channel = seSessionManager.openChannel(selectedReader, aid);
+        if (channel == null || channel.isClosed()) {
+            Log.e(TAG, "Why _channel is empty?");
+            apduTrace.record(ApduTrace.TYPE_CHANNEL_FAILED, selectedAidBytes);
+            // A warm session may have died with the previous tap, start from scratch next time.
+            seSessionManager.invalidateSession(selectedReader);
+            return null;
+        }
+        apduTrace.record(ApduTrace.TYPE_SELECT_RESPONSE, channel.getSelectResponse());
+        if (DEBUG) {
+            Log.d(TAG, "open channel ok, response = "
+                    + ByteArrayToHexString(channel.getSelectResponse()));
+        }
+        return channel;
+    }
+
+    /**
+     * Forward a command to the current channel and send the response to the terminal.
+     *
+     * @param commandApdu Command to forward
+     * @param receivedAt System.nanoTime() when the command was received
+     * @return Response from the SE, or null if the transmit failed (the terminal then gets
+     * {@link CardApdu#ISO7816_UNKNOWN_ERROR_RESPONSE}) or the tap is already over
+     */
+    private byte[] transmitCommand(byte[] commandApdu, long receivedAt) {
+        if (currentGeneration != tapGeneration) {
+            // Deactivated since the command was dequeued, keep the SE free for the next tap.
+            staleDrops.incrementAndGet();
+            return null;
+        }
+        try {
+            if (DEBUG) {
+                Log.d(TAG, "process command = " + ByteArrayToHexString(commandApdu));
+            }
+            long transmitStart = System.nanoTime();
+            byte[] rsp;
+            if (ApduBatch.isBatch(selectedAidBytes, commandApdu)) {
+                rsp = apduBatch.execute(_channel, commandApdu, resolve_status_words);
+            } else {
+                // An item that ran in an envelope it did not fit in must not run twice.
+                rsp = apduBatch.takeCarried(commandApdu);
+                if (rsp == null) {
+                    rsp = resolve_status_words
+                            ? statusWordResolver.transmit(_channel, commandApdu)
+                            : _channel.transmit(commandApdu);
                 }
-                if ((commandApdu[1] == (byte)0xa4)/* && (commandApdu[4] == (byte)0x06)*/) {
-                    Log.i(TAG, "Selection already processed on above step.");
-                } else {
-                    try {
-                        Log.i(TAG, "process command = " + ByteArrayToHexString(commandApdu));
-                        LiveEventBus.get()
-                                .with(KEY_TEST_OBSERVE)
-                                .post(ByteArrayToHexString(commandApdu));
-                        final byte[] rsp = _channel.transmit(commandApdu);
-                        Log.i(TAG, "process response = " + ByteArrayToHexString(rsp));
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                Log.i(TAG, "process sendResponseApdu rsp = " + ByteArrayToHexString(rsp));
-                                sendResponseApdu(rsp);
-                            }
-                        });
-                        LiveEventBus.get()
-                                .with(KEY_TEST_OBSERVE)
-                                .post(ByteArrayToHexString(rsp));
-                    } catch (Exception arg6) {
-                        arg6.printStackTrace();
+            }
+            latencyStats.record(ApduLatencyStats.STAGE_TRANSMIT, commandApdu[1], selectedAidSlot,
+                    System.nanoTime() - transmitStart);
+            if (DEBUG) {
+                Log.d(TAG, "process response = " + ByteArrayToHexString(rsp));
+            }
+            if (currentGeneration != tapGeneration) {
+                wastedTransmits.incrementAndGet();
+            }
+            deliverResponse(rsp, commandApdu[1], receivedAt);
+            return rsp;
+        } catch (Exception e) {
+            Log.e(TAG, "transmit failed", e);
+            prefetcher.discard();
+            _channel = null;
+            seSessionManager.closeChannel(selectedReader, selectedAid);
+            seSessionManager.invalidateSession(selectedReader);
+            deliverResponse(CardApdu.ISO7816_UNKNOWN_ERROR_RESPONSE, commandApdu[1], receivedAt);
+            return null;
+        }
+    }
+
+    /**
+     * Forget the channel of the current tap. The channel itself stays open in the pool.
+     */
+    private void closeChannel() {
+        _channel = null;
+        apduBatch.discardCarried();
+        selectedAid = SAMPLE_LOYALTY_CARD_AID;
+        selectedAidBytes = SAMPLE_LOYALTY_CARD_AID_BYTES;
+        selectedAidSlot = latencyStats.aidSlot(SAMPLE_LOYALTY_CARD_AID_BYTES);
+        selectedReader = simReader;
+    }
+
+    /**
+     * Resolve a SELECT by name against the known AIDs. A partial name selects the first known AID
+     * starting with it, or with P2 = 02 the one after the AID selected now. Names no known AID
+     * starts with are passed on as they are, the SE may still have such an applet.
+     *
+     * @param commandApdu SELECT by name from the terminal
+     * @return SELECT of one complete AID, {@code commandApdu} itself if it already is one, or
+     * null if a next occurrence was asked for and there is none
+     */
+    private byte[] resolveSelect(byte[] commandApdu) {
+        int offset = CardApdu.getCommandDataOffset(commandApdu);
+        if (offset < 0) {
+            return commandApdu;
+        }
+        int length = CardApdu.getCommandDataLength(commandApdu);
+        AidTrie aids = knownAids;
+        boolean next = CardApdu.isSelectNextOccurrence(commandApdu);
+        byte[] aid = next
+                ? aids.next(commandApdu, offset, length, hostSelectedAid)
+                : aids.first(commandApdu, offset, length);
+        if (aid == null) {
+            if (next && aids.first(commandApdu, offset, length) != null) {
+                return null;
+            }
+            return commandApdu;
+        }
+        if (!next && aid.length == length) {
+            // The terminal named the complete AID.
+            return commandApdu;
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Partial SELECT resolved to " + ByteArrayToHexString(aid));
+        }
+        return CardApdu.BuildSelectApdu(aid);
+    }
+
+    /**
+     * Take the complete AID from the DF name (tag 84) of an FCI template (tag 6F). The SE may
+     * have matched a partial name, so the selected name is only used when the FCI has none.
+     *
+     * @param fci SELECT response, may be null
+     * @param selected Name sent in the SELECT
+     * @return DF name from the FCI, or {@code selected}
+     */
+    private byte[] dfName(byte[] fci, byte[] selected) {
+        if (fci == null) {
+            return selected;
+        }
+        TlvReader tlv = fciReader.resetResponse(fci);
+        if (!tlv.next() || tlv.tag() != CardApdu.TAG_FCI_TEMPLATE || !tlv.isConstructed()) {
+            return selected;
+        }
+        tlv.enter();
+        if (!tlv.find(CardApdu.TAG_DF_NAME) || tlv.length() < 1 || tlv.length() > 16) {
+            return selected;
+        }
+        return Arrays.copyOfRange(fci, tlv.valueOffset(), tlv.valueOffset() + tlv.length());
+    }
+
+    private synchronized void addKnownAid(byte[] aid) {
+        knownAids = knownAids.with(aid);
+    }
+
+    /**
+     * Read the AIDs this service is registered for from res/xml/aid_list.xml.
+     */
+    private List<byte[]> loadRegisteredAids() {
+        List<byte[]> aids = new ArrayList<byte[]>();
+        XmlResourceParser parser = getResources().getXml(R.xml.aid_list);
+        try {
+            int event;
+            while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (event == XmlPullParser.START_TAG && "aid-filter".equals(parser.getName())) {
+                    String aid = parser.getAttributeValue(ANDROID_NS, "name");
+                    if (aid != null) {
+                        aids.add(HexStringToByteArray(aid));
                     }
                 }
-                break;
             }
+        } catch (Exception e) {
+            Log.e(TAG, "Reading aid_list failed: " + e.getMessage());
+        } finally {
+            parser.close();
         }
+        Log.i(TAG, aids.size() + " registered AIDs.");
+        return aids;
     }
 
     /**
-     * Build APDU for SELECT AID command. This command indicates which service a reader is
-     * interested in communicating with. See ISO 7816-4.
+     * Extract the AID from a SELECT by name command.
      *
-     * @param aid Application ID (AID) to select
-     * @return APDU for SELECT AID command
+     * @param commandApdu SELECT command, [CLA | INS | P1 | P2 | Lc | AID | Le]
+     * @return AID, or null if the command carries none
+     */
+    private static byte[] selectAid(byte[] commandApdu) {
+        int offset = CardApdu.getCommandDataOffset(commandApdu);
+        if (offset < 0) {
+            return null;
+        }
+        return Arrays.copyOfRange(commandApdu, offset,
+                offset + CardApdu.getCommandDataLength(commandApdu));
+    }
+
+
+    /**
+     * Build APDU for SELECT AID command. See {@link CardApdu#BuildSelectApdu(String)}.
      */
     public static byte[] BuildSelectApdu(String aid) {
-        // Format: [CLASS | INSTRUCTION | PARAMETER 1 | PARAMETER 2 | LENGTH | DATA]
-        return HexStringToByteArray(SELECT_APDU_HEADER + String.format("%02X", aid.length() / 2) + aid);
+        return CardApdu.BuildSelectApdu(aid);
     }
 
     /**
-     * Build APDU for GET_DATA command. See ISO 7816-4.
-     *
-     * @return APDU for SELECT AID command
+     * Build APDU for GET_DATA command. See {@link CardApdu#BuildGetDataApdu()}.
      */
     public static byte[] BuildGetDataApdu() {
-        // Format: [CLASS | INSTRUCTION | PARAMETER 1 | PARAMETER 2 | LENGTH | DATA]
-        return HexStringToByteArray(GET_DATA_APDU_HEADER + "0FFF");
+        return CardApdu.BuildGetDataApdu();
     }
 
     /**
-     * Utility method to convert a byte array to a hexadecimal string.
-     *
-     * @param bytes Bytes to convert
-     * @return String, containing hexadecimal representation.
+     * Utility method to convert a byte array to a hexadecimal string. The implementation lives in
+     * {@link CardApdu}, which has no Android dependencies.
      */
     public static String ByteArrayToHexString(byte[] bytes) {
-        final char[] hexArray = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
-        char[] hexChars = new char[bytes.length * 2]; // Each byte has two hex characters (nibbles)
-        int v;
-        for (int j = 0; j < bytes.length; j++) {
-            v = bytes[j] & 0xFF; // Cast bytes[j] to int, treating as unsigned value
-            hexChars[j * 2] = hexArray[v >>> 4]; // Select hex character from upper nibble
-            hexChars[j * 2 + 1] = hexArray[v & 0x0F]; // Select hex character from lower nibble
-        }
-        return new String(hexChars);
+        return CardApdu.ByteArrayToHexString(bytes);
     }
 
     /**
      * Utility method to convert a hexadecimal string to a byte string.
      *
-     * <p>Behavior with input strings containing non-hexadecimal characters is undefined.
-     *
-     * @param s String containing hexadecimal characters to convert
-     * @return Byte array generated from input
      * @throws java.lang.IllegalArgumentException if input length is incorrect
      */
     public static byte[] HexStringToByteArray(String s) throws IllegalArgumentException {
-        int len = s.length();
-        if (len % 2 == 1) {
-            throw new IllegalArgumentException("Hex string must have even number of characters");
-        }
-        byte[] data = new byte[len / 2]; // Allocate 1 byte per 2 hex characters
-        for (int i = 0; i < len; i += 2) {
-            // Convert each character into a integer (base-16), then bit-shift into place
-            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
-                    + Character.digit(s.charAt(i+1), 16));
-        }
-        return data;
+        return CardApdu.HexStringToByteArray(s);
     }
 
     /**
-     * Utility method to concatenate two byte arrays.
-     * @param first First array
-     * @param rest Any remaining arrays
-     * @return Concatenated copy of input arrays
+     * Utility method to concatenate byte arrays.
      */
     public static byte[] ConcatArrays(byte[] first, byte[]... rest) {
-        int totalLength = first.length;
-        for (byte[] array : rest) {
-            totalLength += array.length;
-        }
-        byte[] result = Arrays.copyOf(first, totalLength);
-        int offset = first.length;
-        for (byte[] array : rest) {
-            System.arraycopy(array, 0, result, offset, array.length);
-            offset += array.length;
-        }
-        return result;
+        return CardApdu.ConcatArrays(first, rest);
     }
 
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import java.util.Arrays;
+
+/**
+ * Answers the Visa MSD flow (PPSE, SELECT, GPO, READ RECORD) on the host from the active
+ * {@link CardProfile}, without any secure element I/O.
+ *
+ * <p>Every response is a prebuilt image of the active profile, so
+ * {@link CardService#processCommandApdu} can return it directly and the whole transaction
+ * completes in a few milliseconds. Which AIDs are answered here instead of being passed through
+ * to the SE is chosen by routing them to {@link AidRoutingTable#ROUTE_HOST}.
+ */
+class HostEmvResponder {
+
+    // "2PAY.SYS.DDF01", the name selected by PPSE
+    static final byte[] PPSE_AID = Arrays.copyOfRange(CardApdu.PPSE_APDU_SELECT, 5, 19);
+    // A0000000031010, Visa credit or debit
+    static final byte[] VISA_MSD_AID = Arrays.copyOfRange(CardApdu.VISA_MSD_SELECT, 5, 12);
+
+    // Status words for commands the MSD profile does not know.
+    private static final byte[] RECORD_NOT_FOUND_SW = { (byte) 0x6A, (byte) 0x83 };
+    private static final byte[] INS_NOT_SUPPORTED_SW = { (byte) 0x6D, (byte) 0x00 };
+
+    private static final byte INS_READ_RECORD = (byte) 0xB2;
+
+    private HostEmvResponder() {
+    }
+
+    /**
+     * Answer a SELECT for a host emulated AID.
+     *
+     * @param aid Selected AID
+     * @return FCI and status word, or null if the AID has no host emulated applet
+     */
+    static byte[] select(byte[] aid) {
+        if (Arrays.equals(aid, PPSE_AID)) {
+            return CardProfileStore.getActiveProfile().getPpseSelectResponse();
+        }
+        if (Arrays.equals(aid, VISA_MSD_AID)) {
+            return CardProfileStore.getActiveProfile().getSelectResponse();
+        }
+        return null;
+    }
+
+    /**
+     * Answer a command sent to the selected host emulated applet.
+     *
+     * @param commandApdu Command from the terminal
+     * @return Response including the status word
+     */
+    static byte[] process(byte[] commandApdu) {
+        if (CardApdu.isGpoCommand(commandApdu)) {
+            // MSD answers GPO the same way whatever the PDOL data.
+            return CardProfileStore.getActiveProfile().getGpoResponse();
+        }
+        if (commandApdu.length >= 4 && commandApdu[1] == INS_READ_RECORD) {
+            if (commandApdu[2] != CardApdu.READ_REC_COMMAND[2]
+                    || commandApdu[3] != CardApdu.READ_REC_COMMAND[3]) {
+                // The AFL in GPO_COMMAND_RESPONSE only names SFI 1, record 1.
+                return RECORD_NOT_FOUND_SW;
+            }
+            return CardProfileStore.getActiveProfile().getReadRecordResponse();
+        }
+        return INS_NOT_SUPPORTED_SW;
+    }
+}
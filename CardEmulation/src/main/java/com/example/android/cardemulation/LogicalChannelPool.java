@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import android.util.Log;
+
+import com.example.android.cardemulation.SecureElementBackend.Channel;
+import com.example.android.cardemulation.SecureElementBackend.Session;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of open logical channels, one per AID, in least recently used order.
+ *
+ * <p>Terminals hop between PPSE, a payment AID and our loyalty AID within one tap, and the same
+ * AIDs come back on the next tap. Opening a logical channel means a MANAGE CHANNEL plus a SELECT
+ * on the SE, so channels are kept open and handed out again when the same AID is selected.
+ * The pool never holds more than its cap, and when the SE refuses to open another channel the
+ * least recently used one is closed to make room.
+ *
+ * <p>All channels belong to one {@link Session}. The pool must be cleared with
+ * {@link #closeAll()} whenever that session goes away. Only used from the APDU handler thread.
+ */
+class LogicalChannelPool {
+    private static final String TAG = "LogicalChannelPool";
+
+    private final int mMaxChannels;
+    // Access ordered, so iteration starts at the least recently used channel.
+    private final LinkedHashMap<String, Channel> mChannels =
+            new LinkedHashMap<String, Channel>(8, 0.75f, true);
+
+    private final AtomicInteger mReuses = new AtomicInteger();
+    private final AtomicInteger mOpens = new AtomicInteger();
+    private final AtomicInteger mEvictions = new AtomicInteger();
+
+    /**
+     * @param maxChannels Maximum number of logical channels kept open at once
+     */
+    LogicalChannelPool(int maxChannels) {
+        if (maxChannels < 1) {
+            throw new IllegalArgumentException("Pool needs room for at least one channel");
+        }
+        mMaxChannels = maxChannels;
+    }
+
+    /**
+     * Return an open logical channel to the applet with the given AID, opening one if the pool
+     * has none.
+     *
+     * @param session Session to open new channels on
+     * @param aid AID of the applet, as a hexadecimal string
+     * @return Open channel, or null if the applet could not be selected
+     */
+    Channel acquire(Session session, String aid) {
+        Channel channel = mChannels.get(aid);
+        if (channel != null) {
+            if (!channel.isClosed()) {
+                mReuses.incrementAndGet();
+                return channel;
+            }
+            mChannels.remove(aid);
+        }
+        while (mChannels.size() >= mMaxChannels) {
+            evictEldest();
+        }
+        byte[] aidBytes = CardApdu.HexStringToByteArray(aid);
+        while (true) {
+            try {
+                channel = session.openLogicalChannel(aidBytes);
+            } catch (NoSuchElementException e) {
+                // No such applet on the SE, freeing channels will not help.
+                Log.e(TAG, "No applet for AID " + aid);
+                return null;
+            } catch (SecurityException e) {
+                Log.e(TAG, "Access to AID " + aid + " denied: " + e.getMessage());
+                return null;
+            } catch (RuntimeException e) {
+                // IllegalStateException when the session or service is closed,
+                // IllegalArgumentException for an AID shorter than 5 or longer than 16 bytes (a
+                // terminal's partial SELECT is passed on as it is), UnsupportedOperationException
+                // when the SE has no logical channels. Left to the APDU thread, any of them would
+                // take the whole service down.
+                Log.e(TAG, "openLogicalChannel for AID " + aid + " failed: " + e);
+                return null;
+            } catch (IOException e) {
+                Log.e(TAG, "openLogicalChannel failed: " + e.getMessage());
+                channel = null;
+            }
+            if (channel != null && !channel.isClosed()) {
+                mOpens.incrementAndGet();
+                mChannels.put(aid, channel);
+                return channel;
+            }
+            // The SE has no logical channel left. Give back the least recently used one and
+            // try again, until there is nothing left to give back.
+            if (mChannels.isEmpty()) {
+                return null;
+            }
+            evictEldest();
+        }
+    }
+
+    /**
+     * Close and forget the channel for an AID, e.g. after a transmit on it failed.
+     */
+    void remove(String aid) {
+        Channel channel = mChannels.remove(aid);
+        if (channel != null) {
+            close(channel);
+        }
+    }
+
+    /**
+     * Close every pooled channel.
+     */
+    void closeAll() {
+        for (Channel channel : mChannels.values()) {
+            close(channel);
+        }
+        mChannels.clear();
+    }
+
+    int size() {
+        return mChannels.size();
+    }
+
+    int getReuses() {
+        return mReuses.get();
+    }
+
+    int getOpens() {
+        return mOpens.get();
+    }
+
+    int getEvictions() {
+        return mEvictions.get();
+    }
+
+    private void evictEldest() {
+        Iterator<Map.Entry<String, Channel>> it = mChannels.entrySet().iterator();
+        if (!it.hasNext()) {
+            return;
+        }
+        Map.Entry<String, Channel> eldest = it.next();
+        it.remove();
+        Log.i(TAG, "Evicting channel for AID " + eldest.getKey());
+        mEvictions.incrementAndGet();
+        close(eldest.getValue());
+    }
+
+    private static void close(Channel channel) {
+        try {
+            channel.close();
+        } catch (Exception e) {
+            Log.e(TAG, "close channel failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of SE responses to SELECT and to read-only commands, keyed by the selected AID and the
+ * full command bytes.
+ *
+ * <p>The applet answers SELECT, READ RECORD and GET DATA for a few static EMV tags the same way
+ * every time, so once a response has been seen on the SE, {@link CardService#processCommandApdu}
+ * returns it directly without a trip to the APDU thread. Entries expire after a TTL, and the
+ * whole cache is dropped whenever the card profile changes (see
+ * {@link CardApdu#getProfileVersion()}) or {@link #invalidateAll()} is called.
+ *
+ * <p>Lookups run on the main thread and inserts on the APDU thread, so all access is
+ * synchronized. Lookups reuse one probe key and do not allocate.
+ */
+class ResponseCache {
+    // Default lifetime of a cached response.
+    private static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+    private static final int MAX_ENTRIES = 64;
+
+    private static final byte INS_SELECT = (byte) 0xA4;
+    private static final byte INS_READ_RECORD = (byte) 0xB2;
+    private static final byte INS_GET_DATA = (byte) 0xCA;
+
+    // GET DATA tags whose value is fixed at personalisation, the only ones cached: Log Entry
+    // (9F4D), Log Format (9F4F), Application Currency Code (9F42, 9F51) and Application
+    // Currency Exponent (9F44). Anything else may change between two identical commands, be it
+    // a counter such as the ATC or a proprietary tag like 0000, which the loyalty applet answers
+    // with the next chunk of its payload each time.
+    private static final int[] STATIC_DATA_TAGS = { 0x9F4D, 0x9F4F, 0x9F42, 0x9F51, 0x9F44 };
+
+    private static final class Key {
+        byte[] aid;
+        byte[] command;
+        int hash;
+
+        Key set(byte[] aid, byte[] command) {
+            this.aid = aid;
+            this.command = command;
+            this.hash = 31 * Arrays.hashCode(aid) + Arrays.hashCode(command);
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash
+                    && Arrays.equals(aid, other.aid)
+                    && Arrays.equals(command, other.command);
+        }
+    }
+
+    private static final class Entry {
+        final byte[] response;
+        final long expiresAt;
+
+        Entry(byte[] response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final LinkedHashMap<Key, Entry> mEntries =
+            new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private final Key mProbe = new Key();
+    private long mTtlMs = DEFAULT_TTL_MS;
+    private int mProfileVersion = CardApdu.getProfileVersion();
+    private int mHits = 0;
+    private int mMisses = 0;
+
+    /**
+     * Whether the response to a command may be cached. Only SELECT by name, READ RECORD and
+     * GET DATA for one of {@link #STATIC_DATA_TAGS} qualify. SELECT by file identifier moves the
+     * applet to another file, so it has to reach the SE.
+     */
+    static boolean isCacheable(byte[] commandApdu) {
+        if (commandApdu == null || commandApdu.length < 4) {
+            return false;
+        }
+        byte ins = commandApdu[1];
+        if (ins == INS_SELECT) {
+            return CardApdu.isSelectByName(commandApdu);
+        }
+        if (ins == INS_READ_RECORD) {
+            return true;
+        }
+        if (ins == INS_GET_DATA) {
+            int tag = ((commandApdu[2] & 0xFF) << 8) | (commandApdu[3] & 0xFF);
+            for (int staticTag : STATIC_DATA_TAGS) {
+                if (tag == staticTag) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return false;
+    }
+
+    synchronized void setTtl(long ttlMs) {
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * Look up a cached response.
+     *
+     * @param aid AID selected when the command arrived
+     * @param commandApdu Full command bytes
+     * @return Cached response including the status word, or null
+     */
+    synchronized byte[] get(byte[] aid, byte[] commandApdu) {
+        checkProfile();
+        Entry entry = mEntries.get(mProbe.set(aid, commandApdu));
+        mProbe.set(null, null);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() >= entry.expiresAt) {
+            mEntries.remove(mProbe.set(aid, commandApdu));
+            mProbe.set(null, null);
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.response;
+    }
+
+    /**
+     * Remember a successful response. Anything not ending in 9000 is ignored.
+     *
+     * @param aid AID selected when the command arrived
+     * @param commandApdu Full command bytes
+     * @param response Response including the status word
+     */
+    synchronized void put(byte[] aid, byte[] commandApdu, byte[] response) {
+        int length = response == null ? 0 : response.length;
+        if (length < 2 || response[length - 2] != (byte) 0x90 || response[length - 1] != 0x00) {
+            return;
+        }
+        checkProfile();
+        mEntries.put(new Key().set(aid, commandApdu),
+                new Entry(response, SystemClock.elapsedRealtime() + mTtlMs));
+    }
+
+    /**
+     * Drop every cached response, e.g. after the SE or its applets changed.
+     */
+    synchronized void invalidateAll() {
+        mEntries.clear();
+    }
+
+    synchronized int getHits() {
+        return mHits;
+    }
+
+    synchronized int getMisses() {
+        return mMisses;
+    }
+
+    private void checkProfile() {
+        int profileVersion = CardApdu.getProfileVersion();
+        if (profileVersion != mProfileVersion) {
+            mProfileVersion = profileVersion;
+            mEntries.clear();
+        }
+    }
+}
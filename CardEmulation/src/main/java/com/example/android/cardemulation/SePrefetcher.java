@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Predicts the read-only commands a terminal sends after SELECT and GPO, so {@link CardService}
+ * can run them on the SE while the terminal is still busy with the previous response.
+ *
+ * <p>Predictions come from two places: the AFL in the GPO response, which names every record the
+ * terminal is going to read, and the READ RECORD and GET DATA commands seen after the previous
+ * SELECT of the same AID. Only READ RECORD and GET DATA for the static tags the response cache
+ * accepts are ever prefetched, as they have no side effects and answer the same every time.
+ *
+ * <p>A command matching a prefetched response is answered from it ({@link #take}); a READ RECORD
+ * or GET DATA that was not predicted means the prediction is off, and every prefetched response
+ * is thrown away. Prefetched responses only live until the next SELECT.
+ *
+ * <p>{@link #onSelect}, {@link #take} and {@link #observe} run on the main thread, the rest on
+ * the APDU thread, so all access is synchronized.
+ */
+class SePrefetcher {
+    private static final byte INS_READ_RECORD = (byte) 0xB2;
+    private static final byte INS_GET_DATA = (byte) 0xCA;
+    // Commands remembered per AID for the next transaction.
+    private static final int MAX_HISTORY = 16;
+
+    private byte[] mAid = null;
+    // Commands still to prefetch, in the order the terminal is expected to send them.
+    private final List<byte[]> mPending = new ArrayList<byte[]>();
+    // Prefetched commands and their responses, in the same order.
+    private final List<byte[]> mCommands = new ArrayList<byte[]>();
+    private final List<byte[]> mResponses = new ArrayList<byte[]>();
+    // Commands the terminal sent since the SELECT, never worth prefetching again.
+    private final List<byte[]> mSeen = new ArrayList<byte[]>();
+    private final Map<String, List<byte[]>> mHistory = new HashMap<String, List<byte[]>>();
+
+    private final TlvReader mTlv = new TlvReader();
+
+    private int mIssued = 0;
+    private int mHits = 0;
+    private int mMisses = 0;
+
+    /**
+     * Whether a command is one we prefetch. GET DATA is limited to the static tags of
+     * {@link ResponseCache#isCacheable}, so a chunked GET DATA is never answered twice alike.
+     */
+    static boolean isPrefetchable(byte[] commandApdu) {
+        return commandApdu.length >= 4
+                && (commandApdu[1] == INS_READ_RECORD || commandApdu[1] == INS_GET_DATA)
+                && ResponseCache.isCacheable(commandApdu);
+    }
+
+    /**
+     * A new AID was selected. Drops everything prefetched for the previous selection and
+     * predicts the commands seen after the last SELECT of this AID.
+     */
+    synchronized void onSelect(byte[] aid) {
+        discard();
+        mAid = aid;
+        mSeen.clear();
+        String key = CardApdu.ByteArrayToHexString(aid);
+        List<byte[]> previous = mHistory.get(key);
+        if (previous != null) {
+            mPending.addAll(previous);
+        }
+        mHistory.put(key, new ArrayList<byte[]>());
+    }
+
+    /**
+     * Predict the READ RECORDs named by the AFL of a GPO response, ahead of anything predicted
+     * from history.
+     *
+     * @param gpoResponse Response to GET PROCESSING OPTIONS, including the status word
+     */
+    synchronized void onGpoResponse(byte[] gpoResponse) {
+        // Format 1 (tag 80: AIP then AFL) or format 2 (tag 77 holding tag 94).
+        TlvReader tlv = mTlv.resetResponse(gpoResponse);
+        if (!tlv.next()) {
+            return;
+        }
+        int start;
+        if (tlv.tag() == CardApdu.TAG_RESPONSE_FORMAT_1 && tlv.length() > 2) {
+            start = tlv.valueOffset() + 2;
+        } else if (tlv.tag() == CardApdu.TAG_RESPONSE_FORMAT_2) {
+            tlv.enter();
+            if (!tlv.find(CardApdu.TAG_AFL)) {
+                return;
+            }
+            start = tlv.valueOffset();
+        } else {
+            return;
+        }
+        byte[] afl = tlv.data();
+        int end = tlv.valueOffset() + tlv.length();
+        List<byte[]> reads = new ArrayList<byte[]>();
+        for (int i = start; i + 4 <= end; i += 4) {
+            int sfi = (afl[i] & 0xFF) >> 3;
+            int first = afl[i + 1] & 0xFF;
+            int last = afl[i + 2] & 0xFF;
+            for (int record = first; record <= last && record > 0; record++) {
+                byte[] command = { 0x00, INS_READ_RECORD, (byte) record, (byte) ((sfi << 3) | 4),
+                        0x00 };
+                if (indexOf(mSeen, command) < 0 && indexOf(mPending, command) < 0
+                        && indexOf(mCommands, command) < 0) {
+                    reads.add(command);
+                }
+            }
+        }
+        mPending.addAll(0, reads);
+    }
+
+    /**
+     * @param aid AID the SE channel is currently on
+     * @return Next command to run on the SE ahead of the terminal, or null if there is none for
+     * that AID
+     */
+    synchronized byte[] nextToIssue(byte[] aid) {
+        if (!Arrays.equals(aid, mAid)) {
+            // The terminal already selected another AID, the channel is about to follow.
+            return null;
+        }
+        while (!mPending.isEmpty()) {
+            byte[] command = mPending.remove(0);
+            if (indexOf(mSeen, command) < 0 && indexOf(mCommands, command) < 0) {
+                mIssued++;
+                return command;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keep the SE's response to a prefetched command.
+     *
+     * @param aid AID the command was run for
+     */
+    synchronized void complete(byte[] aid, byte[] commandApdu, byte[] response) {
+        if (!Arrays.equals(aid, mAid) || indexOf(mSeen, commandApdu) >= 0
+                || response == null || response.length < 2) {
+            // The terminal got there first.
+            return;
+        }
+        mCommands.add(commandApdu);
+        mResponses.add(response);
+    }
+
+    /**
+     * Answer a command from the prefetched responses. Also records the command for the next
+     * transaction's predictions.
+     *
+     * @param aid AID selected when the command arrived
+     * @param commandApdu Command from the terminal
+     * @return Prefetched response, or null
+     */
+    synchronized byte[] take(byte[] aid, byte[] commandApdu) {
+        if (!isPrefetchable(commandApdu) || !Arrays.equals(aid, mAid)) {
+            return null;
+        }
+        observe(commandApdu);
+        int index = indexOf(mCommands, commandApdu);
+        if (index >= 0) {
+            mHits++;
+            mCommands.remove(index);
+            return mResponses.remove(index);
+        }
+        if (indexOf(mPending, commandApdu) < 0 && !mCommands.isEmpty()) {
+            // Not what we predicted, the rest is likely off as well.
+            discard();
+        }
+        return null;
+    }
+
+    /**
+     * Drop every prediction and prefetched response, e.g. when the SE session went away.
+     */
+    synchronized void discard() {
+        mMisses += mCommands.size();
+        mCommands.clear();
+        mResponses.clear();
+        mPending.clear();
+    }
+
+    synchronized int getIssued() {
+        return mIssued;
+    }
+
+    synchronized int getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return Prefetched responses that were thrown away unused
+     */
+    synchronized int getMisses() {
+        return mMisses;
+    }
+
+    private void observe(byte[] commandApdu) {
+        if (indexOf(mSeen, commandApdu) >= 0) {
+            return;
+        }
+        mSeen.add(commandApdu);
+        List<byte[]> history = mHistory.get(CardApdu.ByteArrayToHexString(mAid));
+        if (history != null && history.size() < MAX_HISTORY) {
+            history.add(commandApdu);
+        }
+    }
+
+    private static int indexOf(List<byte[]> commands, byte[] command) {
+        for (int i = 0; i < commands.size(); i++) {
+            if (Arrays.equals(commands.get(i), command)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
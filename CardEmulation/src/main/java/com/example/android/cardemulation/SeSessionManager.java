@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.example.android.cardemulation.SecureElementBackend.Channel;
+import com.example.android.cardemulation.SecureElementBackend.Reader;
+import com.example.android.cardemulation.SecureElementBackend.Session;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the {@link SecureElementBackend} binding and the secure element {@link Session} warm
+ * across taps.
+ *
+ * <p>Binding the SmartcardService, listing the readers and opening a session costs hundreds of
+ * milliseconds, so this class keeps them open after {@link CardService#onDeactivated(int)} and
+ * only closes the sessions once no tap has used them for {@link #setIdleTimeout(long)}
+ * milliseconds. If the service or a session turns out to be dead it is dropped and rebuilt on
+ * the next request.
+ *
+ * <p>Each reader, e.g. the SIM and the embedded SE, gets its own session and channel pool, so a
+ * tap that selects AIDs routed to different secure elements does not tear sessions down.
+ *
+ * <p>Readiness is event driven: {@link #connect()} starts a bind and returns, and the
+ * {@link Listener} hears back as soon as the service is connected or when the bind has taken
+ * longer than the connect timeout. Either way the manager is left ready for another
+ * {@link #connect()}.
+ *
+ * <p>Everything except {@link #connect()} and the service callback runs on the APDU handler
+ * thread.
+ */
+class SeSessionManager {
+    private static final String TAG = "SeSessionManager";
+    // Close the warm session after this much time without a tap.
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 60 * 1000;
+    // Give up on a SmartcardService bind that has not completed after this long.
+    private static final long DEFAULT_CONNECT_TIMEOUT_MS = 2000;
+    // SIM reader used unless configured otherwise, matches any reader whose name starts with it.
+    static final String DEFAULT_READER_NAME = "SIM";
+    // Logical channels kept open at once. Most UICCs offer three besides the basic channel.
+    private static final int MAX_LOGICAL_CHANNELS = 3;
+
+    /**
+     * Told when a {@link #connect()} completes or gives up.
+     */
+    interface Listener {
+        /**
+         * The SmartcardService is bound and readers can be used. Called on the main thread.
+         */
+        void onServiceConnected();
+
+        /**
+         * The bind did not complete within the connect timeout. The half-finished binding has
+         * been dropped, so the next {@link #connect()} starts a fresh one. Called on the APDU
+         * thread.
+         */
+        void onConnectTimeout();
+    }
+
+    private final SecureElementBackend mBackend;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final Runnable mIdleClose = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "Session idle for " + mIdleTimeoutMs + " ms, closing.");
+            closeSession();
+        }
+    };
+
+    private final Runnable mConnectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SeSessionManager.this) {
+                if (!mConnecting) {
+                    return;
+                }
+                Log.e(TAG, "SmartcardService bind timed out after " + mConnectTimeoutMs + " ms.");
+                mConnecting = false;
+                mBindId++;
+                mBackend.shutdown();
+            }
+            mListener.onConnectTimeout();
+        }
+    };
+
+    // True between a completed bind and the next shutdown.
+    private volatile boolean mConnected = false;
+    private volatile boolean mConnecting = false;
+    // Identifies the latest bind, so callbacks from abandoned binds can be told apart.
+    private int mBindId = 0;
+    private long mConnectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    // Bumped on every completed bind and on shutdown, readers resolved before are stale.
+    private volatile int mConnectionId = 0;
+    // Per reader name, only touched on the APDU thread.
+    private final HashMap<String, ReaderSessions> mReaders = new HashMap<String, ReaderSessions>();
+    private long mIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    private final AtomicInteger mWarmHits = new AtomicInteger();
+    private final AtomicInteger mColdHits = new AtomicInteger();
+    private final AtomicInteger mServiceBinds = new AtomicInteger();
+    private final AtomicInteger mReconnects = new AtomicInteger();
+    private final AtomicInteger mReaderLookups = new AtomicInteger();
+
+    /**
+     * Reader, session and channels for one reader name.
+     */
+    private static final class ReaderSessions {
+        final String name;
+        final LogicalChannelPool channelPool = new LogicalChannelPool(MAX_LOGICAL_CHANNELS);
+        // Resolved under connection readerConnectionId, dropped on reconnect or SE removal.
+        Reader reader = null;
+        int readerConnectionId;
+        Session session = null;
+
+        ReaderSessions(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * @param backend Secure element backend the sessions are opened on
+     * @param handler Handler of the APDU thread, used for the idle timeout
+     * @param listener Told when the SmartcardService becomes available
+     */
+    SeSessionManager(SecureElementBackend backend, Handler handler, Listener listener) {
+        mBackend = backend;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    void setIdleTimeout(long idleTimeoutMs) {
+        mIdleTimeoutMs = idleTimeoutMs;
+    }
+
+    void setConnectTimeout(long connectTimeoutMs) {
+        mConnectTimeoutMs = connectTimeoutMs;
+    }
+
+    boolean isConnected() {
+        return mConnected && mBackend.isConnected();
+    }
+
+    /**
+     * Bind the SmartcardService unless it is already bound or a bind is in flight. The listener
+     * hears back through {@link Listener#onServiceConnected()}, or through
+     * {@link Listener#onConnectTimeout()} if the bind does not complete in time.
+     */
+    synchronized void connect() {
+        if (isConnected() || mConnecting) {
+            return;
+        }
+        Log.i(TAG, "connect: binding SmartcardService.");
+        mConnecting = true;
+        mServiceBinds.incrementAndGet();
+        mHandler.removeCallbacks(mConnectTimeout);
+        mHandler.postDelayed(mConnectTimeout, mConnectTimeoutMs);
+        final int bindId = ++mBindId;
+        mBackend.connect(new SecureElementBackend.Callback() {
+            @Override
+            public void onConnected() {
+                onServiceConnected(bindId);
+            }
+        });
+    }
+
+    private synchronized void onServiceConnected(int bindId) {
+        Log.i(TAG, "serviceConnected: ");
+        if (bindId != mBindId || !mConnecting) {
+            // A bind we already gave up on, or one superseded by a reconnect.
+            Log.i(TAG, "serviceConnected: stale binding, ignoring.");
+            return;
+        }
+        mHandler.removeCallbacks(mConnectTimeout);
+        mConnected = true;
+        mConnectionId++;
+        mConnecting = false;
+        mListener.onServiceConnected();
+    }
+
+    /**
+     * Return an open session on a reader, reusing the one from a previous tap when it is still
+     * alive. A reader is used when its name equals {@code readerName} or starts with it, so "SIM"
+     * matches "SIM1" and "SIM2".
+     *
+     * @param readerName Reader name or name prefix, e.g. "SIM1", "SIM2" or "eSE"
+     * @return Open session, or null if the reader could not open one
+     */
+    Session acquireSession(String readerName) {
+        mHandler.removeCallbacks(mIdleClose);
+        ReaderSessions sessions = sessionsFor(readerName);
+        if (sessions.session != null && !sessions.session.isClosed()) {
+            mWarmHits.incrementAndGet();
+            return sessions.session;
+        }
+        if (!isConnected()) {
+            Log.e(TAG, "Why _service is not connected?");
+            reconnect();
+            return null;
+        }
+        Reader reader = resolveReader(sessions);
+        if (reader == null) {
+            return null;
+        }
+        try {
+            sessions.session = reader.openSession();
+        } catch (Exception e) {
+            Log.e(TAG, "openSession failed: " + e.getMessage());
+            sessions.session = null;
+        }
+        if (sessions.session != null && !sessions.session.isClosed()) {
+            mColdHits.incrementAndGet();
+            return sessions.session;
+        }
+        Log.e(TAG, "Why _session is empty?");
+        // Look the reader up again next time, it may have been replaced.
+        sessions.reader = null;
+        return null;
+    }
+
+    /**
+     * Return an open logical channel to the applet with the given AID. Channels are pooled per
+     * reader and AID and stay open across selects and across taps for as long as the session
+     * does.
+     *
+     * @param readerName Reader name or name prefix, see {@link #acquireSession(String)}
+     * @param aid AID of the applet, as a hexadecimal string
+     * @return Open channel, or null if there is no session or the applet could not be selected
+     */
+    Channel openChannel(String readerName, String aid) {
+        Session session = acquireSession(readerName);
+        if (session == null) {
+            return null;
+        }
+        return sessionsFor(readerName).channelPool.acquire(session, aid);
+    }
+
+    /**
+     * Close the pooled channel for an AID after it failed.
+     */
+    void closeChannel(String readerName, String aid) {
+        ReaderSessions sessions = mReaders.get(readerName);
+        if (sessions != null) {
+            sessions.channelPool.remove(aid);
+        }
+    }
+
+    /**
+     * Close the session on a reader and forget the reader, e.g. once nothing is routed to it
+     * any more.
+     */
+    void closeReader(String readerName) {
+        ReaderSessions sessions = mReaders.remove(readerName);
+        if (sessions != null) {
+            Log.i(TAG, "closeReader: " + readerName);
+            closeSession(sessions);
+        }
+    }
+
+    private ReaderSessions sessionsFor(String readerName) {
+        ReaderSessions sessions = mReaders.get(readerName);
+        if (sessions == null) {
+            sessions = new ReaderSessions(readerName);
+            mReaders.put(readerName, sessions);
+        }
+        return sessions;
+    }
+
+    /**
+     * Return the reader for a reader name. The reader is looked up once per SmartcardService
+     * connection and cached until its secure element goes away, so a warm tap makes no
+     * getReaders() call.
+     */
+    private Reader resolveReader(ReaderSessions sessions) {
+        Reader reader = sessions.reader;
+        if (reader != null) {
+            if (sessions.readerConnectionId == mConnectionId && reader.isSecureElementPresent()) {
+                return reader;
+            }
+            Log.i(TAG, "Secure element left reader " + reader.getName() + ", looking up again.");
+            sessions.reader = null;
+        }
+        Reader[] readers;
+        try {
+            readers = mBackend.getReaders();
+        } catch (Exception e) {
+            Log.e(TAG, "getReaders failed: " + e.getMessage());
+            reconnect();
+            return null;
+        }
+        if (readers == null || readers.length < 1) {
+            Log.e(TAG, "Why readers is empty?");
+            return null;
+        }
+        mReaderLookups.incrementAndGet();
+        String readerName = sessions.name;
+        for (Reader candidate : readers) {
+            if (candidate == null || candidate.getName() == null) {
+                Log.e(TAG, "Why reader is empty?");
+                continue;
+            }
+            if (!candidate.getName().startsWith(readerName)) {
+                continue;
+            }
+            if (!candidate.isSecureElementPresent()) {
+                Log.i(TAG, "No secure element in reader " + candidate.getName());
+                continue;
+            }
+            Log.i(TAG, "process reader name = " + candidate.getName());
+            sessions.reader = candidate;
+            sessions.readerConnectionId = mConnectionId;
+            return candidate;
+        }
+        Log.e(TAG, "No reader matches " + readerName);
+        return null;
+    }
+
+    /**
+     * The tap is over. Keep the sessions open, but close them if no tap follows within the idle
+     * timeout.
+     */
+    void release() {
+        mHandler.removeCallbacks(mIdleClose);
+        mHandler.postDelayed(mIdleClose, mIdleTimeoutMs);
+        int reuses = 0;
+        int opens = 0;
+        int evictions = 0;
+        for (ReaderSessions sessions : mReaders.values()) {
+            reuses += sessions.channelPool.getReuses();
+            opens += sessions.channelPool.getOpens();
+            evictions += sessions.channelPool.getEvictions();
+        }
+        Log.i(TAG, "release: warm = " + mWarmHits.get() + ", cold = " + mColdHits.get()
+                + ", binds = " + mServiceBinds.get() + ", reconnects = " + mReconnects.get()
+                + ", reader lookups = " + mReaderLookups.get()
+                + ", channels reused = " + reuses + ", opened = " + opens
+                + ", evicted = " + evictions);
+    }
+
+    /**
+     * The session on a reader failed underneath us. Drop it so the next request opens a fresh
+     * one, and rebind the service if the binding died too.
+     */
+    void invalidateSession(String readerName) {
+        ReaderSessions sessions = mReaders.get(readerName);
+        if (sessions != null) {
+            closeSession(sessions);
+        }
+        if (!isConnected()) {
+            reconnect();
+        }
+    }
+
+    /**
+     * Close the session and unbind the SmartcardService.
+     */
+    synchronized void shutdown() {
+        mHandler.removeCallbacks(mIdleClose);
+        mHandler.removeCallbacks(mConnectTimeout);
+        closeSession();
+        mConnected = false;
+        mConnectionId++;
+        mConnecting = false;
+        mBindId++;
+        mBackend.shutdown();
+    }
+
+    int getWarmHits() {
+        return mWarmHits.get();
+    }
+
+    int getColdHits() {
+        return mColdHits.get();
+    }
+
+    int getServiceBinds() {
+        return mServiceBinds.get();
+    }
+
+    int getReconnects() {
+        return mReconnects.get();
+    }
+
+    int getReaderLookups() {
+        return mReaderLookups.get();
+    }
+
+    private void reconnect() {
+        if (mConnecting) {
+            // A bind is already on its way, it either completes or times out.
+            return;
+        }
+        Log.i(TAG, "reconnect: dropping dead SmartcardService binding.");
+        mReconnects.incrementAndGet();
+        shutdown();
+        connect();
+    }
+
+    private void closeSession() {
+        for (ReaderSessions sessions : mReaders.values()) {
+            closeSession(sessions);
+        }
+    }
+
+    private static void closeSession(ReaderSessions sessions) {
+        sessions.channelPool.closeAll();
+        if (sessions.session != null) {
+            try {
+                sessions.session.close();
+            } catch (Exception e) {
+                Log.e(TAG, "close session failed: " + e.getMessage());
+            }
+            sessions.session = null;
+        }
+    }
+}
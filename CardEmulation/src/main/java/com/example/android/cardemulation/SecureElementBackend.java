@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import java.io.IOException;
+
+/**
+ * Secure element access as used by {@link CardService}: bind a service, list readers, open a
+ * session and logical channels, transmit APDUs.
+ *
+ * <p>This mirrors the small part of the Open Mobile API the service needs, so the APDU pipeline
+ * does not care whether it runs on the SIMalliance library ({@link SimallianceSeBackend}), on
+ * the platform {@code android.se.omapi} API of Android 9 and later ({@link AndroidSeBackend}) or
+ * on an in-process simulation ({@link SimulatedSeBackend}). Nothing in here depends on Android,
+ * so the pipeline can be exercised on a plain JVM; creating a backend for a service is up to
+ * {@link CardService.BackendFactory}.
+ *
+ * <p>Exceptions follow OMAPI: {@link IOException} for communication errors,
+ * {@link java.util.NoSuchElementException} when an applet is missing and
+ * {@link SecurityException} when access is denied.
+ */
+public interface SecureElementBackend {
+
+    /**
+     * Told once a {@link #connect(Callback)} has completed.
+     */
+    interface Callback {
+        void onConnected();
+    }
+
+    /**
+     * Start binding the secure element service. Any previous binding is shut down first, and
+     * callbacks for a binding that was shut down are never delivered.
+     */
+    void connect(Callback callback);
+
+    boolean isConnected();
+
+    Reader[] getReaders() throws IOException;
+
+    /**
+     * Release the binding, closing every session and channel opened through it.
+     */
+    void shutdown();
+
+    interface Reader {
+        String getName();
+
+        boolean isSecureElementPresent();
+
+        Session openSession() throws IOException;
+    }
+
+    interface Session {
+        /**
+         * Open a logical channel and select the applet on it.
+         *
+         * @return Open channel, or null if the secure element has no logical channel left
+         */
+        Channel openLogicalChannel(byte[] aid) throws IOException;
+
+        boolean isClosed();
+
+        void close();
+    }
+
+    interface Channel {
+        byte[] transmit(byte[] command) throws IOException;
+
+        /**
+         * @return Response to the SELECT sent when the channel was opened, may be null
+         */
+        byte[] getSelectResponse();
+
+        boolean isClosed();
+
+        void close();
+    }
+}
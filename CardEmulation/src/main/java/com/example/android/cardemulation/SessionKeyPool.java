@@ -0,0 +1,467 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.cardemulation;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Bounded pool of single-use session keys, computed ahead of time on a background thread so a
+ * dynamic transaction does not spend its NFC deadline on key derivation.
+ *
+ * <p>Each entry belongs to one application transaction counter (ATC) value and holds the
+ * session key derived from the card master key for that ATC, plus the AES-CMAC subkeys K1 and
+ * K2 of the session key. Those are everything a cryptogram needs that does not depend on the
+ * terminal, so the tap itself only has to MAC the terminal data.
+ *
+ * <p>{@link #take(Entry)} runs on the main thread and copies the oldest entry out of a
+ * preallocated single-producer/single-consumer ring, the same scheme as {@link ApduQueue}: no
+ * lock, no allocation, constant time. The producer thread refills the ring to capacity when
+ * {@link #replenishIfLow()} finds it at or below the low water mark, which
+ * {@link CardService} calls once a tap is over, so key derivation never competes with a tap.
+ *
+ * <p>The pool is kept in a file so it survives restarts, encrypted with AES-GCM under a key in
+ * the Android Keystore. The next ATC is stored in the clear but authenticated with the entries.
+ * Below Android 6.0 there is no Keystore AES key: only the ATC is stored, and the entries are
+ * computed again after a restart. The file is rewritten after every take, so a taken entry is
+ * not handed out again after a restart.
+ */
+class SessionKeyPool {
+    private static final String TAG = "SessionKeyPool";
+
+    static final int KEY_LENGTH = 16;
+    // The ATC is two bytes, the card is spent once it runs out.
+    private static final int MAX_ATC = 0xFFFF;
+    private static final int FILE_MAGIC = 0x534B5031; // "SKP1"
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_BITS = 128;
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String KEYSTORE_ALIAS = "session_key_pool";
+    // Constant for the CMAC subkey generation, NIST SP 800-38B.
+    private static final int CMAC_RB = 0x87;
+
+    /**
+     * One precomputed entry. Callers keep their own instance and have {@link #take(Entry)} fill
+     * it in.
+     */
+    static final class Entry {
+        int atc;
+        final byte[] sessionKey = new byte[KEY_LENGTH];
+        final byte[] cmacK1 = new byte[KEY_LENGTH];
+        final byte[] cmacK2 = new byte[KEY_LENGTH];
+
+        void copyFrom(Entry other) {
+            atc = other.atc;
+            System.arraycopy(other.sessionKey, 0, sessionKey, 0, KEY_LENGTH);
+            System.arraycopy(other.cmacK1, 0, cmacK1, 0, KEY_LENGTH);
+            System.arraycopy(other.cmacK2, 0, cmacK2, 0, KEY_LENGTH);
+        }
+    }
+
+    private final SecretKeySpec mMasterKey;
+    private final File mFile;
+    private final int mLowWater;
+    private final Entry[] mSlots;
+    private final int mMask;
+    // Next slot to take, only advanced by the consumer.
+    private final AtomicLong mHead = new AtomicLong();
+    // Next slot to fill, only advanced by the producer.
+    private final AtomicLong mTail = new AtomicLong();
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    // Producer thread only.
+    private int mNextAtc = 1;
+    private Cipher mEcb;
+    private final Runnable mRefill = new Runnable() {
+        @Override
+        public void run() {
+            refill();
+        }
+    };
+    private final Runnable mPersist = new Runnable() {
+        @Override
+        public void run() {
+            persist();
+        }
+    };
+
+    private final AtomicInteger mProduced = new AtomicInteger();
+    private final AtomicInteger mTaken = new AtomicInteger();
+    private final AtomicInteger mExhausted = new AtomicInteger();
+    private final AtomicInteger mRefills = new AtomicInteger();
+
+    /**
+     * @param masterKey AES-128 card master key the session keys are derived from
+     * @param file File the pool is kept in
+     * @param capacity Number of entries kept ready, rounded up to a power of two
+     * @param lowWater Refill once no more than this many entries are left
+     */
+    SessionKeyPool(byte[] masterKey, File file, int capacity, int lowWater) {
+        if (masterKey == null || masterKey.length != KEY_LENGTH) {
+            throw new IllegalArgumentException("Master key must be 16 bytes");
+        }
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        if (lowWater < 0 || lowWater >= size) {
+            throw new IllegalArgumentException("Low water mark must be below the capacity");
+        }
+        mMasterKey = new SecretKeySpec(masterKey.clone(), "AES");
+        mFile = file;
+        mLowWater = lowWater;
+        mSlots = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new Entry();
+        }
+        mMask = size - 1;
+    }
+
+    /**
+     * Start the producer thread, load the stored pool and fill it up.
+     */
+    synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                refill();
+            }
+        });
+    }
+
+    /**
+     * Store the pool and stop the producer thread.
+     */
+    synchronized void shutdown() {
+        if (mThread == null) {
+            return;
+        }
+        mHandler.removeCallbacks(mRefill);
+        mHandler.post(mPersist);
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+    }
+
+    /**
+     * Take the oldest entry. Must only be called from one thread, the main thread.
+     *
+     * @param out Filled in with the entry
+     * @return false if the pool is exhausted
+     */
+    boolean take(Entry out) {
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            mExhausted.incrementAndGet();
+            return false;
+        }
+        out.copyFrom(mSlots[(int) head & mMask]);
+        // Ordered store: the entry is copied out before the producer may reuse the slot.
+        mHead.lazySet(head + 1);
+        mTaken.incrementAndGet();
+        Handler handler = mHandler;
+        if (handler != null) {
+            // The taken entry must not come back after a restart.
+            handler.removeCallbacks(mPersist);
+            handler.post(mPersist);
+        }
+        return true;
+    }
+
+    /**
+     * Refill the pool in the background if it is at or below the low water mark. Meant to be
+     * called when the device is idle, e.g. after a tap.
+     */
+    void replenishIfLow() {
+        Handler handler = mHandler;
+        if (handler != null && size() <= mLowWater) {
+            handler.removeCallbacks(mRefill);
+            handler.post(mRefill);
+        }
+    }
+
+    int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    int capacity() {
+        return mSlots.length;
+    }
+
+    int getProduced() {
+        return mProduced.get();
+    }
+
+    int getTaken() {
+        return mTaken.get();
+    }
+
+    /**
+     * @return Number of takes that found the pool empty
+     */
+    int getExhausted() {
+        return mExhausted.get();
+    }
+
+    int getRefills() {
+        return mRefills.get();
+    }
+
+    /**
+     * Derive entries until the ring is full. Runs on the producer thread.
+     */
+    private void refill() {
+        if (size() == mSlots.length) {
+            return;
+        }
+        mRefills.incrementAndGet();
+        try {
+            while (size() < mSlots.length) {
+                if (mNextAtc > MAX_ATC) {
+                    Log.e(TAG, "ATC exhausted, no more session keys.");
+                    break;
+                }
+                long tail = mTail.get();
+                derive(mNextAtc++, mSlots[(int) tail & mMask]);
+                // Ordered store: the entry is complete before the consumer can see it.
+                mTail.lazySet(tail + 1);
+                mProduced.incrementAndGet();
+            }
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Session key derivation failed: " + e.getMessage());
+        }
+        persist();
+    }
+
+    /**
+     * Session key for an ATC: the master key encrypting the ATC padded to one block with zeros,
+     * in the manner of the EMV common session key derivation. Then the CMAC subkeys of that key.
+     */
+    private void derive(int atc, Entry entry) throws GeneralSecurityException {
+        if (mEcb == null) {
+            mEcb = Cipher.getInstance("AES/ECB/NoPadding");
+        }
+        byte[] block = new byte[KEY_LENGTH];
+        block[0] = (byte) (atc >> 8);
+        block[1] = (byte) atc;
+        mEcb.init(Cipher.ENCRYPT_MODE, mMasterKey);
+        mEcb.doFinal(block, 0, KEY_LENGTH, entry.sessionKey, 0);
+        Arrays.fill(block, (byte) 0);
+        mEcb.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(entry.sessionKey, "AES"));
+        byte[] l = mEcb.doFinal(block);
+        subkey(l, entry.cmacK1);
+        subkey(entry.cmacK1, entry.cmacK2);
+        entry.atc = atc;
+    }
+
+    /**
+     * One CMAC subkey step: shift left by one bit, and XOR Rb if the top bit fell off.
+     */
+    private static void subkey(byte[] in, byte[] out) {
+        int carry = 0;
+        for (int i = KEY_LENGTH - 1; i >= 0; i--) {
+            int b = in[i] & 0xFF;
+            out[i] = (byte) ((b << 1) | carry);
+            carry = b >>> 7;
+        }
+        if (carry != 0) {
+            out[KEY_LENGTH - 1] ^= (byte) CMAC_RB;
+        }
+    }
+
+    /**
+     * Write the next ATC and the entries not yet taken. Runs on the producer thread.
+     */
+    private void persist() {
+        long head = mHead.get();
+        long tail = mTail.get();
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(plain);
+        int count = 0;
+        try {
+            SecretKey key = atRestKey();
+            if (key != null) {
+                for (long i = head; i < tail; i++) {
+                    Entry entry = mSlots[(int) i & mMask];
+                    entries.writeInt(entry.atc);
+                    entries.write(entry.sessionKey);
+                    entries.write(entry.cmacK1);
+                    entries.write(entry.cmacK2);
+                    count++;
+                }
+            }
+            // Entries taken while copying must not be stored.
+            int skipped = (int) (mHead.get() - head);
+            int stored = Math.max(0, count - skipped);
+            byte[] sealed = new byte[0];
+            byte[] iv = new byte[GCM_IV_LENGTH];
+            byte[] header = header(stored);
+            if (key != null && stored > 0) {
+                byte[] all = plain.toByteArray();
+                byte[] kept = Arrays.copyOfRange(all, all.length / count * skipped, all.length);
+                new SecureRandom().nextBytes(iv);
+                Cipher gcm = Cipher.getInstance("AES/GCM/NoPadding");
+                gcm.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+                gcm.updateAAD(header);
+                sealed = gcm.doFinal(kept);
+                Arrays.fill(all, (byte) 0);
+                Arrays.fill(kept, (byte) 0);
+            }
+            File tmp = new File(mFile.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+            try {
+                out.write(header);
+                out.write(iv);
+                out.writeInt(sealed.length);
+                out.write(sealed);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("rename failed");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Storing the pool failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read the stored pool, if any, into the empty ring. Runs on the producer thread.
+     */
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(mFile));
+            try {
+                if (in.readInt() != FILE_MAGIC) {
+                    throw new IOException("Not a session key pool");
+                }
+                int nextAtc = in.readInt();
+                int count = in.readInt();
+                byte[] iv = new byte[GCM_IV_LENGTH];
+                in.readFully(iv);
+                byte[] sealed = new byte[in.readInt()];
+                in.readFully(sealed);
+                // Never go back on the ATC, even if the entries cannot be read.
+                mNextAtc = Math.max(mNextAtc, nextAtc);
+                SecretKey key = atRestKey();
+                if (key == null || count == 0) {
+                    return;
+                }
+                Cipher gcm = Cipher.getInstance("AES/GCM/NoPadding");
+                gcm.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+                gcm.updateAAD(header(nextAtc, count));
+                byte[] plain = gcm.doFinal(sealed);
+                DataInputStream entries = new DataInputStream(new ByteArrayInputStream(plain));
+                for (int i = 0; i < count && size() < mSlots.length; i++) {
+                    long tail = mTail.get();
+                    Entry entry = mSlots[(int) tail & mMask];
+                    entry.atc = entries.readInt();
+                    entries.readFully(entry.sessionKey);
+                    entries.readFully(entry.cmacK1);
+                    entries.readFully(entry.cmacK2);
+                    mTail.lazySet(tail + 1);
+                }
+                Arrays.fill(plain, (byte) 0);
+                Log.i(TAG, "Loaded " + size() + " session keys, next ATC " + mNextAtc);
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Loading the pool failed: " + e.getMessage());
+        }
+    }
+
+    private byte[] header(int count) {
+        return header(mNextAtc, count);
+    }
+
+    private static byte[] header(int nextAtc, int count) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(12);
+        DataOutputStream header = new DataOutputStream(bytes);
+        try {
+            header.writeInt(FILE_MAGIC);
+            header.writeInt(nextAtc);
+            header.writeInt(count);
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream.
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return Keystore key the pool is encrypted with, created on first use, or null below
+     * Android 6.0
+     */
+    private static SecretKey atRestKey() throws GeneralSecurityException, IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return null;
+        }
+        return keystoreKey();
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static SecretKey keystoreKey() throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        keyStore.load(null);
+        KeyStore.Entry entry = keyStore.getEntry(KEYSTORE_ALIAS, null);
+        if (entry instanceof KeyStore.SecretKeyEntry) {
+            return ((KeyStore.SecretKeyEntry) entry).getSecretKey();
+        }
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(KEYSTORE_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(128)
+                .build());
+        return generator.generateKey();
+    }
+}
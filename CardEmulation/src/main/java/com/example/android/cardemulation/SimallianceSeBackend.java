@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import android.content.Context;
+
+import org.simalliance.openmobileapi.SEService;
+
+import java.io.IOException;
+
+/**
+ * {@link SecureElementBackend} on the SIMalliance Open Mobile API shipped in
+ * {@code libs/org.simalliance.openmobileapi.jar}. This is the default backend.
+ */
+public class SimallianceSeBackend implements SecureElementBackend {
+
+    public static final CardService.BackendFactory FACTORY = new CardService.BackendFactory() {
+        @Override
+        public SecureElementBackend create(Context context) {
+            return new SimallianceSeBackend(context);
+        }
+    };
+
+    private final Context mContext;
+    private SEService mService = null;
+    // Bumped by every connect and shutdown, so callbacks of dropped bindings can be ignored.
+    private int mConnectId = 0;
+
+    public SimallianceSeBackend(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public synchronized void connect(final Callback callback) {
+        shutdown();
+        final int connectId = ++mConnectId;
+        mService = new SEService(mContext, new SEService.CallBack() {
+            @Override
+            public void serviceConnected(SEService service) {
+                synchronized (SimallianceSeBackend.this) {
+                    if (connectId != mConnectId) {
+                        // Shut down before it connected.
+                        return;
+                    }
+                }
+                callback.onConnected();
+            }
+        });
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return mService != null && mService.isConnected();
+    }
+
+    @Override
+    public Reader[] getReaders() throws IOException {
+        SEService service;
+        synchronized (this) {
+            service = mService;
+        }
+        if (service == null) {
+            throw new IOException("SEService not bound");
+        }
+        org.simalliance.openmobileapi.Reader[] readers;
+        try {
+            readers = service.getReaders();
+        } catch (RuntimeException e) {
+            throw new IOException("getReaders failed", e);
+        }
+        Reader[] result = new Reader[readers == null ? 0 : readers.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = readers[i] == null ? null : new OmapiReader(readers[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        mConnectId++;
+        if (mService != null) {
+            SEService service = mService;
+            mService = null;
+            service.shutdown();
+        }
+    }
+
+    private static class OmapiReader implements Reader {
+        private final org.simalliance.openmobileapi.Reader mReader;
+
+        OmapiReader(org.simalliance.openmobileapi.Reader reader) {
+            mReader = reader;
+        }
+
+        @Override
+        public String getName() {
+            return mReader.getName();
+        }
+
+        @Override
+        public boolean isSecureElementPresent() {
+            return mReader.isSecureElementPresent();
+        }
+
+        @Override
+        public Session openSession() throws IOException {
+            org.simalliance.openmobileapi.Session session = mReader.openSession();
+            return session == null ? null : new OmapiSession(session);
+        }
+    }
+
+    private static class OmapiSession implements Session {
+        private final org.simalliance.openmobileapi.Session mSession;
+
+        OmapiSession(org.simalliance.openmobileapi.Session session) {
+            mSession = session;
+        }
+
+        @Override
+        public Channel openLogicalChannel(byte[] aid) throws IOException {
+            org.simalliance.openmobileapi.Channel channel = mSession.openLogicalChannel(aid);
+            return channel == null ? null : new OmapiChannel(channel);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mSession.isClosed();
+        }
+
+        @Override
+        public void close() {
+            mSession.close();
+        }
+    }
+
+    private static class OmapiChannel implements Channel {
+        private final org.simalliance.openmobileapi.Channel mChannel;
+
+        OmapiChannel(org.simalliance.openmobileapi.Channel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public byte[] transmit(byte[] command) throws IOException {
+            return mChannel.transmit(command);
+        }
+
+        @Override
+        public byte[] getSelectResponse() {
+            return mChannel.getSelectResponse();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mChannel.isClosed();
+        }
+
+        @Override
+        public void close() {
+            mChannel.close();
+        }
+    }
+}
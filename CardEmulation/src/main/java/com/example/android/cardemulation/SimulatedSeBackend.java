@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process {@link SecureElementBackend} that answers from scripted applets, for running the
+ * APDU pipeline without a SIM or eSE, on a device or on a plain JVM.
+ *
+ * <p>Applets are installed with {@link #addApplet(byte[], byte[])} and scripted with
+ * {@link #addResponse(byte[], byte[], byte[])}; a command is answered by the first script entry
+ * whose command is a prefix of it, and with 6D00 if there is none. Binding the service and each
+ * transmit can be given a latency to imitate a real secure element, and the number of logical
+ * channels per reader is capped like on a UICC.
+ *
+ * <p>All configuration may be changed while the backend is in use.
+ */
+public class SimulatedSeBackend implements SecureElementBackend {
+
+    private static final byte[] INS_NOT_SUPPORTED_SW = { (byte) 0x6D, (byte) 0x00 };
+    private static final byte[] FILE_NOT_FOUND_SW = { (byte) 0x6A, (byte) 0x82 };
+    private static final byte INS_SELECT = (byte) 0xA4;
+    // Logical channels besides the basic channel, as on most UICCs.
+    private static final int DEFAULT_MAX_CHANNELS = 3;
+
+    private static final class Applet {
+        final byte[] aid;
+        final byte[] selectResponse;
+        final List<byte[][]> script = new CopyOnWriteArrayList<byte[][]>();
+
+        Applet(byte[] aid, byte[] selectResponse) {
+            this.aid = aid;
+            this.selectResponse = selectResponse;
+        }
+    }
+
+    private final List<String> mReaderNames = new CopyOnWriteArrayList<String>();
+    private final List<Applet> mApplets = new CopyOnWriteArrayList<Applet>();
+    private volatile long mConnectDelayMs = 0;
+    private volatile long mTransmitLatencyNanos = 0;
+    private volatile int mMaxChannels = DEFAULT_MAX_CHANNELS;
+    private volatile boolean mPresent = true;
+
+    private boolean mConnected = false;
+    // Bumped by every connect and shutdown, so callbacks of dropped bindings can be ignored.
+    private int mConnectId = 0;
+    // Sessions opened since the last connect, closed together on shutdown.
+    private final List<SimSession> mSessions = new ArrayList<SimSession>();
+
+    private final AtomicInteger mOpenChannels = new AtomicInteger();
+    private final AtomicInteger mTransmits = new AtomicInteger();
+
+    /**
+     * @param readerNames Names of the simulated readers, e.g. "SIM1" and "eSE1"
+     */
+    public SimulatedSeBackend(String... readerNames) {
+        mReaderNames.addAll(Arrays.asList(readerNames));
+    }
+
+    /**
+     * Install an applet. Selecting an AID that was never installed fails like on a real SE.
+     *
+     * @param aid AID of the applet
+     * @param selectResponse FCI and status word returned to SELECT
+     */
+    public void addApplet(byte[] aid, byte[] selectResponse) {
+        mApplets.add(new Applet(aid.clone(), selectResponse.clone()));
+    }
+
+    /**
+     * Script the response of an installed applet to a command.
+     *
+     * @param aid AID of the applet, see {@link #addApplet(byte[], byte[])}
+     * @param commandPrefix Answer every command starting with these bytes
+     * @param response Response including the status word
+     */
+    public void addResponse(byte[] aid, byte[] commandPrefix, byte[] response) {
+        Applet applet = findApplet(aid);
+        if (applet == null) {
+            throw new IllegalArgumentException("No applet installed for this AID");
+        }
+        applet.script.add(new byte[][] { commandPrefix.clone(), response.clone() });
+    }
+
+    /**
+     * @param connectDelayMs Time until {@link Callback#onConnected()}, 0 to call it from within
+     *                       {@link #connect(Callback)}
+     */
+    public void setConnectDelay(long connectDelayMs) {
+        mConnectDelayMs = connectDelayMs;
+    }
+
+    /**
+     * @param latencyMicros Time every transmit takes
+     */
+    public void setTransmitLatency(long latencyMicros) {
+        mTransmitLatencyNanos = latencyMicros * 1000;
+    }
+
+    public void setMaxChannels(int maxChannels) {
+        mMaxChannels = maxChannels;
+    }
+
+    /**
+     * Insert or remove the secure element in every reader.
+     */
+    public void setSecureElementPresent(boolean present) {
+        mPresent = present;
+    }
+
+    public int getTransmits() {
+        return mTransmits.get();
+    }
+
+    public int getOpenChannels() {
+        return mOpenChannels.get();
+    }
+
+    @Override
+    public void connect(final Callback callback) {
+        final int connectId;
+        synchronized (this) {
+            shutdown();
+            connectId = ++mConnectId;
+        }
+        final long delayMs = mConnectDelayMs;
+        if (delayMs <= 0) {
+            completeConnect(connectId, callback);
+            return;
+        }
+        Thread binder = new Thread("SimulatedSeBackend") {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                completeConnect(connectId, callback);
+            }
+        };
+        binder.setDaemon(true);
+        binder.start();
+    }
+
+    private void completeConnect(int connectId, Callback callback) {
+        synchronized (this) {
+            if (connectId != mConnectId) {
+                return;
+            }
+            mConnected = true;
+        }
+        callback.onConnected();
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public Reader[] getReaders() throws IOException {
+        if (!isConnected()) {
+            throw new IOException("Service not connected");
+        }
+        Reader[] readers = new Reader[mReaderNames.size()];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new SimReader(mReaderNames.get(i));
+        }
+        return readers;
+    }
+
+    @Override
+    public void shutdown() {
+        List<SimSession> sessions;
+        synchronized (this) {
+            mConnectId++;
+            mConnected = false;
+            sessions = new ArrayList<SimSession>(mSessions);
+            mSessions.clear();
+        }
+        for (SimSession session : sessions) {
+            session.close();
+        }
+    }
+
+    private Applet findApplet(byte[] aid) {
+        for (Applet applet : mApplets) {
+            if (Arrays.equals(applet.aid, aid)) {
+                return applet;
+            }
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] command, byte[] prefix) {
+        if (command.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (command[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class SimReader implements Reader {
+        private final String mName;
+
+        SimReader(String name) {
+            mName = name;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public boolean isSecureElementPresent() {
+            return mPresent;
+        }
+
+        @Override
+        public Session openSession() throws IOException {
+            synchronized (SimulatedSeBackend.this) {
+                if (!mConnected) {
+                    throw new IOException("Service not connected");
+                }
+                if (!mPresent) {
+                    throw new IOException("No secure element in " + mName);
+                }
+                SimSession session = new SimSession();
+                mSessions.add(session);
+                return session;
+            }
+        }
+    }
+
+    private class SimSession implements Session {
+        private final List<SimChannel> mChannels = new CopyOnWriteArrayList<SimChannel>();
+        private volatile boolean mClosed = false;
+
+        @Override
+        public Channel openLogicalChannel(byte[] aid) throws IOException {
+            if (mClosed) {
+                throw new IOException("Session closed");
+            }
+            Applet applet = findApplet(aid);
+            if (applet == null) {
+                throw new NoSuchElementException("No applet for this AID");
+            }
+            while (true) {
+                int open = mOpenChannels.get();
+                if (open >= mMaxChannels) {
+                    return null;
+                }
+                if (mOpenChannels.compareAndSet(open, open + 1)) {
+                    break;
+                }
+            }
+            SimChannel channel = new SimChannel(this, applet);
+            mChannels.add(channel);
+            return channel;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mClosed;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+            for (SimChannel channel : mChannels) {
+                channel.close();
+            }
+        }
+    }
+
+    private class SimChannel implements Channel {
+        private final SimSession mSession;
+        private Applet mApplet;
+        private volatile boolean mClosed = false;
+
+        SimChannel(SimSession session, Applet applet) {
+            mSession = session;
+            mApplet = applet;
+        }
+
+        @Override
+        public byte[] transmit(byte[] command) throws IOException {
+            if (mClosed) {
+                throw new IOException("Channel closed");
+            }
+            if (command == null || command.length < 4) {
+                throw new IllegalArgumentException("Command too short");
+            }
+            mTransmits.incrementAndGet();
+            long latency = mTransmitLatencyNanos;
+            if (latency > 0) {
+                LockSupport.parkNanos(latency);
+            }
+            if (command[1] == INS_SELECT && command.length >= 5) {
+                int length = command[4] & 0xFF;
+                Applet applet = findApplet(Arrays.copyOfRange(command, 5,
+                        Math.min(command.length, 5 + length)));
+                if (applet == null) {
+                    return FILE_NOT_FOUND_SW.clone();
+                }
+                mApplet = applet;
+                return applet.selectResponse.clone();
+            }
+            for (byte[][] entry : mApplet.script) {
+                if (startsWith(command, entry[0])) {
+                    return entry[1].clone();
+                }
+            }
+            return INS_NOT_SUPPORTED_SW.clone();
+        }
+
+        @Override
+        public byte[] getSelectResponse() {
+            return mApplet.selectResponse.clone();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mClosed;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mSession.mChannels.remove(this);
+            mOpenChannels.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import com.example.android.cardemulation.SecureElementBackend.Channel;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves the ISO 7816-4 status words 61xx (more data, fetch with GET RESPONSE) and 6Cxx (wrong
+ * Le, reissue with Le = xx) against the secure element, so the terminal gets one complete
+ * response instead of paying an NFC round trip for each step.
+ *
+ * <p>Responses are chained only up to what the terminal can take in one response: 256 data bytes
+ * for a short command, and the command's Le for an extended length one. If the SE has more than
+ * that, the collected part is returned with the SE's last 61xx and the terminal's own
+ * GET RESPONSE continues the chain on the SE where we left off.
+ */
+class StatusWordResolver {
+    private static final byte SW1_MORE_DATA = (byte) 0x61;
+    private static final byte SW1_WRONG_LE = (byte) 0x6C;
+    private static final byte INS_GET_RESPONSE = (byte) 0xC0;
+
+    private final AtomicInteger mRoundTripsSaved = new AtomicInteger();
+
+    /**
+     * Transmit a command and resolve 61xx/6Cxx locally.
+     *
+     * @param channel Channel to the selected applet
+     * @param commandApdu Command from the terminal
+     * @return Complete response including the final status word
+     */
+    byte[] transmit(Channel channel, byte[] commandApdu) throws IOException {
+        byte[] rsp = channel.transmit(commandApdu);
+        if (isStatus(rsp, SW1_WRONG_LE)) {
+            byte[] corrected = withLe(commandApdu, rsp[rsp.length - 1]);
+            if (corrected != null) {
+                rsp = channel.transmit(corrected);
+                mRoundTripsSaved.incrementAndGet();
+            }
+        }
+        if (!isStatus(rsp, SW1_MORE_DATA)) {
+            return rsp;
+        }
+        int maxResponse = CardApdu.isExtendedLength(commandApdu)
+                ? Math.max(CardApdu.MAX_SHORT_LE, CardApdu.getExpectedLength(commandApdu))
+                : CardApdu.MAX_SHORT_LE;
+        byte[] data = Arrays.copyOf(rsp, rsp.length - 2);
+        int length = data.length;
+        while (isStatus(rsp, SW1_MORE_DATA)) {
+            int available = rsp[rsp.length - 1] & 0xFF;
+            if (available == 0) {
+                available = CardApdu.MAX_SHORT_LE;
+            }
+            if (length + available > maxResponse) {
+                // Leave the rest for the terminal to fetch.
+                break;
+            }
+            byte[] getResponse = {
+                    0x00, INS_GET_RESPONSE, 0x00, 0x00,
+                    rsp[rsp.length - 1]
+            };
+            rsp = channel.transmit(getResponse);
+            mRoundTripsSaved.incrementAndGet();
+            if (rsp == null || rsp.length < 2) {
+                throw new IOException("Empty GET RESPONSE");
+            }
+            int chunk = rsp.length - 2;
+            if (length + chunk > data.length) {
+                data = Arrays.copyOf(data, Math.max(length + chunk, data.length * 2));
+            }
+            System.arraycopy(rsp, 0, data, length, chunk);
+            length += chunk;
+        }
+        byte[] result = Arrays.copyOf(data, length + 2);
+        result[length] = rsp[rsp.length - 2];
+        result[length + 1] = rsp[rsp.length - 1];
+        return result;
+    }
+
+    /**
+     * @return NFC round trips the terminal did not have to make
+     */
+    int getRoundTripsSaved() {
+        return mRoundTripsSaved.get();
+    }
+
+    private static boolean isStatus(byte[] rsp, byte sw1) {
+        return rsp != null && rsp.length >= 2 && rsp[rsp.length - 2] == sw1;
+    }
+
+    /**
+     * Copy of a short command with its Le set, or null if the command is not a short APDU.
+     */
+    private static byte[] withLe(byte[] commandApdu, byte le) {
+        int length = commandApdu.length;
+        if (length == 4) {
+            // Case 1, append Le.
+            byte[] corrected = Arrays.copyOf(commandApdu, 5);
+            corrected[4] = le;
+            return corrected;
+        }
+        if (length == 5) {
+            // Case 2, replace Le.
+            byte[] corrected = commandApdu.clone();
+            corrected[4] = le;
+            return corrected;
+        }
+        if (CardApdu.isExtendedLength(commandApdu)) {
+            // Extended length, left to the terminal.
+            return null;
+        }
+        int lc = commandApdu[4] & 0xFF;
+        if (length == 5 + lc) {
+            // Case 3, append Le.
+            byte[] corrected = Arrays.copyOf(commandApdu, length + 1);
+            corrected[length] = le;
+            return corrected;
+        }
+        if (length == 6 + lc) {
+            // Case 4, replace Le.
+            byte[] corrected = commandApdu.clone();
+            corrected[length - 1] = le;
+            return corrected;
+        }
+        return null;
+    }
+}
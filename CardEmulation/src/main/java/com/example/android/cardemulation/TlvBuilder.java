@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.cardemulation;
+
+/**
+ * Writes BER-TLV data objects into a caller supplied buffer.
+ *
+ * <p>Constructed objects are written with {@link #open(int)} and {@link #close()}: open writes
+ * the tag and reserves one length byte, close back-patches the length once the content is known.
+ * Content longer than 127 bytes needs the 81 or 82 length form, in which case close moves the
+ * content up by one or two bytes in place. Nothing is allocated, so a builder and its buffer can
+ * be reused for every response.
+ *
+ * <p>Writing past the end of the buffer throws {@link IndexOutOfBoundsException}. Not thread
+ * safe.
+ */
+public final class TlvBuilder {
+
+    private static final int MAX_DEPTH = 8;
+
+    private byte[] mBuffer;
+    private int mStart;
+    private int mPosition;
+    // Offsets of the reserved length bytes of the open constructed objects.
+    private final int[] mOpen = new int[MAX_DEPTH];
+    private int mDepth;
+
+    public TlvBuilder() {
+    }
+
+    public TlvBuilder(byte[] buffer, int offset) {
+        reset(buffer, offset);
+    }
+
+    /**
+     * Start writing at {@code offset} of {@code buffer}.
+     *
+     * @return This builder
+     */
+    public TlvBuilder reset(byte[] buffer, int offset) {
+        mBuffer = buffer;
+        mStart = offset;
+        mPosition = offset;
+        mDepth = 0;
+        return this;
+    }
+
+    /**
+     * Start a constructed object. Everything written up to the matching {@link #close()} is its
+     * value.
+     *
+     * @param tag Tag of one to three bytes, e.g. 0x6F or 0xBF0C
+     * @return This builder
+     */
+    public TlvBuilder open(int tag) {
+        if (mDepth == MAX_DEPTH) {
+            throw new IllegalStateException("TLV nested too deeply");
+        }
+        putTag(tag);
+        ensure(1);
+        mOpen[mDepth++] = mPosition++;
+        return this;
+    }
+
+    /**
+     * Finish the innermost open constructed object, writing its length.
+     *
+     * @return This builder
+     */
+    public TlvBuilder close() {
+        if (mDepth == 0) {
+            throw new IllegalStateException("No open constructed object");
+        }
+        int lengthAt = mOpen[--mDepth];
+        int contentAt = lengthAt + 1;
+        int length = mPosition - contentAt;
+        int extra = length > 0xFF ? 2 : length > 0x7F ? 1 : 0;
+        if (extra > 0) {
+            ensure(extra);
+            System.arraycopy(mBuffer, contentAt, mBuffer, contentAt + extra, length);
+            mPosition += extra;
+        }
+        writeLength(lengthAt, length, extra);
+        return this;
+    }
+
+    /**
+     * Write a primitive object.
+     *
+     * @return This builder
+     */
+    public TlvBuilder put(int tag, byte[] value, int offset, int length) {
+        putTag(tag);
+        putLength(length);
+        ensure(length);
+        System.arraycopy(value, offset, mBuffer, mPosition, length);
+        mPosition += length;
+        return this;
+    }
+
+    public TlvBuilder put(int tag, byte[] value) {
+        return put(tag, value, 0, value.length);
+    }
+
+    /**
+     * Write a primitive object with a one byte value.
+     *
+     * @return This builder
+     */
+    public TlvBuilder putByte(int tag, int value) {
+        putTag(tag);
+        ensure(2);
+        mBuffer[mPosition++] = 1;
+        mBuffer[mPosition++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Write bytes that are not a data object, e.g. the status word after the last template.
+     *
+     * @return This builder
+     */
+    public TlvBuilder putRaw(byte[] bytes, int offset, int length) {
+        ensure(length);
+        System.arraycopy(bytes, offset, mBuffer, mPosition, length);
+        mPosition += length;
+        return this;
+    }
+
+    /**
+     * Write a two byte status word.
+     *
+     * @return This builder
+     */
+    public TlvBuilder putStatusWord(int sw) {
+        ensure(2);
+        mBuffer[mPosition++] = (byte) (sw >> 8);
+        mBuffer[mPosition++] = (byte) sw;
+        return this;
+    }
+
+    /**
+     * @return Offset of the next byte to be written
+     */
+    public int position() {
+        return mPosition;
+    }
+
+    /**
+     * @return Number of bytes written since the last reset
+     */
+    public int length() {
+        return mPosition - mStart;
+    }
+
+    public byte[] buffer() {
+        return mBuffer;
+    }
+
+    private void putTag(int tag) {
+        if (tag > 0xFFFF) {
+            ensure(3);
+            mBuffer[mPosition++] = (byte) (tag >> 16);
+        } else {
+            ensure(tag > 0xFF ? 2 : 1);
+        }
+        if (tag > 0xFF) {
+            mBuffer[mPosition++] = (byte) (tag >> 8);
+        }
+        mBuffer[mPosition++] = (byte) tag;
+    }
+
+    private void putLength(int length) {
+        int extra = length > 0xFF ? 2 : length > 0x7F ? 1 : 0;
+        ensure(1 + extra);
+        writeLength(mPosition, length, extra);
+        mPosition += 1 + extra;
+    }
+
+    private void writeLength(int at, int length, int extra) {
+        if (length > 0xFFFF) {
+            throw new IllegalArgumentException("TLV value too long: " + length);
+        }
+        if (extra == 0) {
+            mBuffer[at] = (byte) length;
+        } else if (extra == 1) {
+            mBuffer[at] = (byte) 0x81;
+            mBuffer[at + 1] = (byte) length;
+        } else {
+            mBuffer[at] = (byte) 0x82;
+            mBuffer[at + 1] = (byte) (length >> 8);
+            mBuffer[at + 2] = (byte) length;
+        }
+    }
+
+    private void ensure(int bytes) {
+        if (mPosition + bytes > mBuffer.length) {
+            throw new IndexOutOfBoundsException("TLV buffer full at " + mPosition);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.cardemulation;
+
+/**
+ * Cursor over BER-TLV data (ISO/IEC 8825-1 as used by EMV) held in an existing array.
+ *
+ * <p>The reader never copies: {@link #next()} moves to the next data object on the current
+ * level and the caller reads its tag, and the offset and length of its value, straight out of
+ * {@link #data()}. {@link #enter()} descends into a constructed object such as the FCI template
+ * (6F), {@link #exit()} returns to the level above. One reader can be reused with
+ * {@link #reset(byte[], int, int)}, so parsing allocates nothing.
+ *
+ * <p>Tags of up to three bytes and definite lengths of up to three bytes (0x83) are supported.
+ * Anything else, or an object running past the end of its parent, stops {@link #next()} and sets
+ * {@link #isMalformed()}. Not thread safe.
+ */
+public final class TlvReader {
+
+    // Constructed objects nest a handful of levels deep in EMV, 8 is plenty.
+    private static final int MAX_DEPTH = 8;
+
+    private byte[] mData;
+    // Where the next object on the current level starts, and where the level ends.
+    private int mPosition;
+    private int mEnd;
+    // Ends of the enclosing levels and where to continue in each, for exit().
+    private final int[] mEnds = new int[MAX_DEPTH];
+    private final int[] mResume = new int[MAX_DEPTH];
+    private int mDepth;
+    private boolean mMalformed;
+
+    // Current object.
+    private int mTag;
+    private int mTagOffset;
+    private int mValueOffset;
+    private int mLength;
+
+    public TlvReader() {
+    }
+
+    public TlvReader(byte[] data, int offset, int length) {
+        reset(data, offset, length);
+    }
+
+    /**
+     * Start reading a new buffer, e.g. a response APDU without its status word.
+     *
+     * @param data Buffer holding the data objects
+     * @param offset Offset of the first data object
+     * @param length Number of bytes of data objects
+     * @return This reader
+     */
+    public TlvReader reset(byte[] data, int offset, int length) {
+        mData = data;
+        mPosition = offset;
+        mEnd = offset + length;
+        mDepth = 0;
+        mMalformed = false;
+        mTag = 0;
+        mTagOffset = offset;
+        mValueOffset = offset;
+        mLength = 0;
+        return this;
+    }
+
+    /**
+     * Start reading a response APDU, leaving out its two byte status word.
+     *
+     * @return This reader
+     */
+    public TlvReader resetResponse(byte[] response) {
+        return reset(response, 0, Math.max(0, response.length - 2));
+    }
+
+    /**
+     * Move to the next data object on the current level. Padding bytes (00 and FF) between
+     * objects are skipped.
+     *
+     * @return false at the end of the level, or if the data is malformed
+     */
+    public boolean next() {
+        byte[] data = mData;
+        int position = mPosition;
+        int end = mEnd;
+        while (position < end && (data[position] == 0x00 || data[position] == (byte) 0xFF)) {
+            position++;
+        }
+        if (position >= end) {
+            mPosition = end;
+            return false;
+        }
+        int tagOffset = position;
+        int tag = data[position++] & 0xFF;
+        if ((tag & 0x1F) == 0x1F) {
+            // Subsequent tag bytes follow while bit 8 is set, at most two of them.
+            int more = 0;
+            do {
+                if (position >= end || ++more > 2) {
+                    return malformed();
+                }
+                tag = (tag << 8) | (data[position] & 0xFF);
+            } while ((data[position++] & 0x80) != 0);
+        }
+        if (position >= end) {
+            return malformed();
+        }
+        int length = data[position++] & 0xFF;
+        if (length > 0x7F) {
+            int bytes = length & 0x7F;
+            if (bytes < 1 || bytes > 3 || position + bytes > end) {
+                return malformed();
+            }
+            length = 0;
+            for (int i = 0; i < bytes; i++) {
+                length = (length << 8) | (data[position++] & 0xFF);
+            }
+        }
+        if (length > end - position) {
+            return malformed();
+        }
+        mTag = tag;
+        mTagOffset = tagOffset;
+        mValueOffset = position;
+        mLength = length;
+        mPosition = position + length;
+        return true;
+    }
+
+    /**
+     * Move to the next data object with the given tag on the current level.
+     *
+     * @return false if none follows
+     */
+    public boolean find(int tag) {
+        while (next()) {
+            if (mTag == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Descend into the value of the current object, which must be constructed. The next
+     * {@link #next()} returns its first child.
+     */
+    public void enter() {
+        if (!isConstructed()) {
+            throw new IllegalStateException("Tag " + Integer.toHexString(mTag) + " is primitive");
+        }
+        if (mDepth == MAX_DEPTH) {
+            throw new IllegalStateException("TLV nested too deeply");
+        }
+        mEnds[mDepth] = mEnd;
+        mResume[mDepth] = mPosition;
+        mDepth++;
+        mEnd = mValueOffset + mLength;
+        mPosition = mValueOffset;
+    }
+
+    /**
+     * Return to the level above, continuing after the object last entered.
+     */
+    public void exit() {
+        if (mDepth == 0) {
+            throw new IllegalStateException("Not inside a constructed object");
+        }
+        mDepth--;
+        mEnd = mEnds[mDepth];
+        mPosition = mResume[mDepth];
+    }
+
+    /**
+     * @return Tag of the current object, e.g. 0x6F or 0x9F38
+     */
+    public int tag() {
+        return mTag;
+    }
+
+    /**
+     * @return Length of the current object's value
+     */
+    public int length() {
+        return mLength;
+    }
+
+    /**
+     * @return Offset of the current object's value in {@link #data()}
+     */
+    public int valueOffset() {
+        return mValueOffset;
+    }
+
+    /**
+     * @return Offset of the current object's first tag byte in {@link #data()}
+     */
+    public int tagOffset() {
+        return mTagOffset;
+    }
+
+    public byte[] data() {
+        return mData;
+    }
+
+    /**
+     * @return true if the current object holds further data objects (bit 6 of its first tag
+     * byte)
+     */
+    public boolean isConstructed() {
+        return (mData[mTagOffset] & 0x20) != 0;
+    }
+
+    /**
+     * @return Value of the current object read as a big endian unsigned number, for values of up
+     * to four bytes
+     */
+    public int intValue() {
+        int value = 0;
+        for (int i = 0; i < Math.min(mLength, 4); i++) {
+            value = (value << 8) | (mData[mValueOffset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * @return true if reading stopped at malformed data rather than at the end
+     */
+    public boolean isMalformed() {
+        return mMalformed;
+    }
+
+    private boolean malformed() {
+        mMalformed = true;
+        mPosition = mEnd;
+        return false;
+    }
+}
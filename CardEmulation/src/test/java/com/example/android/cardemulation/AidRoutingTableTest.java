@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import static com.example.android.cardemulation.AidRoutingTable.ROUTE_ESE;
+import static com.example.android.cardemulation.AidRoutingTable.ROUTE_HOST;
+import static com.example.android.cardemulation.AidRoutingTable.ROUTE_SIM;
+import static com.example.android.cardemulation.CardApdu.HexStringToByteArray;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AidRoutingTableTest {
+    private static final String VISA_RID = "A000000003";
+    private static final String VISA_CREDIT = "A0000000031010";
+    private static final String VISA_ELECTRON = "A0000000032010";
+    private static final String MASTERCARD = "A0000000041010";
+
+    private static int route(AidRoutingTable table, String aid) {
+        return table.route(HexStringToByteArray(aid));
+    }
+
+    @Test
+    public void simOnlyRoutesEverythingToTheSim() {
+        AidRoutingTable table = AidRoutingTable.simOnly();
+        assertEquals(ROUTE_SIM, route(table, VISA_CREDIT));
+        assertEquals(ROUTE_SIM, table.route(null));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void unmatchedAidsTakeTheDefaultRoute() {
+        AidRoutingTable table = new AidRoutingTable.Builder()
+                .setDefaultRoute(ROUTE_ESE)
+                .route(VISA_CREDIT, ROUTE_HOST)
+                .build();
+        assertEquals(ROUTE_ESE, route(table, MASTERCARD));
+        assertEquals(ROUTE_ESE, table.route(null));
+        assertEquals(ROUTE_ESE, table.route(new byte[0]));
+    }
+
+    @Test
+    public void exactEntryWinsOverPrefix() {
+        AidRoutingTable table = new AidRoutingTable.Builder()
+                .routePrefix(VISA_RID, ROUTE_ESE)
+                .route(VISA_CREDIT, ROUTE_HOST)
+                .build();
+        assertEquals(ROUTE_HOST, route(table, VISA_CREDIT));
+        assertEquals(ROUTE_ESE, route(table, VISA_ELECTRON));
+        // Exact entries do not match longer AIDs.
+        assertEquals(ROUTE_ESE, route(table, VISA_CREDIT + "01"));
+        assertEquals(ROUTE_SIM, route(table, MASTERCARD));
+    }
+
+    @Test
+    public void longestPrefixWins() {
+        AidRoutingTable table = new AidRoutingTable.Builder()
+                .routePrefix("A0", ROUTE_ESE)
+                .routePrefix(VISA_RID, ROUTE_HOST)
+                .routePrefix("A00000000320", ROUTE_SIM)
+                .setDefaultRoute(ROUTE_HOST)
+                .build();
+        assertEquals(ROUTE_SIM, route(table, VISA_ELECTRON));
+        assertEquals(ROUTE_HOST, route(table, VISA_CREDIT));
+        assertEquals(ROUTE_ESE, route(table, MASTERCARD));
+        assertEquals(ROUTE_HOST, route(table, "F222222222"));
+    }
+
+    @Test
+    public void prefixMatchesAnAidOfItsOwnLength() {
+        AidRoutingTable table = new AidRoutingTable.Builder()
+                .routePrefix(VISA_RID, ROUTE_ESE)
+                .build();
+        assertEquals(ROUTE_ESE, route(table, VISA_RID));
+        // Shorter than the prefix.
+        assertEquals(ROUTE_SIM, route(table, "A0000000"));
+    }
+
+    @Test
+    public void sixteenByteEntriesAndLongerAids() {
+        String longAid = "A0000000031010010203040506070809";
+        AidRoutingTable table = new AidRoutingTable.Builder()
+                .route(longAid, ROUTE_HOST)
+                .routePrefix(longAid, ROUTE_ESE)
+                .build();
+        assertEquals(ROUTE_HOST, route(table, longAid));
+        // Past the ISO 7816-4 limit, only the 16 byte prefix can match.
+        assertEquals(ROUTE_ESE, route(table, longAid + "0A"));
+    }
+
+    @Test
+    public void hexCaseDoesNotMatter() {
+        AidRoutingTable table = new AidRoutingTable.Builder()
+                .route("f222222222", ROUTE_HOST)
+                .build();
+        assertEquals(ROUTE_HOST, route(table, "F222222222"));
+    }
+
+    @Test
+    public void laterEntriesReplaceEarlierOnes() {
+        AidRoutingTable table = new AidRoutingTable.Builder()
+                .route(VISA_CREDIT, ROUTE_ESE)
+                .route(VISA_CREDIT, ROUTE_HOST)
+                .build();
+        assertEquals(ROUTE_HOST, route(table, VISA_CREDIT));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void manyEntries() {
+        AidRoutingTable.Builder builder = new AidRoutingTable.Builder();
+        for (int i = 0; i < 200; i++) {
+            builder.route(String.format("A0000000%06X", i), i % 3);
+        }
+        AidRoutingTable table = builder.build();
+        assertEquals(200, table.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i % 3, route(table, String.format("A0000000%06X", i)));
+        }
+        assertEquals(ROUTE_SIM, route(table, "A00000FFFFFF"));
+    }
+
+    @Test
+    public void toBuilderKeepsEveryEntry() {
+        AidRoutingTable table = new AidRoutingTable.Builder()
+                .setDefaultRoute(ROUTE_ESE)
+                .routePrefix(VISA_RID, ROUTE_SIM)
+                .route(VISA_CREDIT, ROUTE_HOST)
+                .build();
+        AidRoutingTable copy = table.toBuilder().build();
+        assertEquals(2, copy.size());
+        assertEquals(ROUTE_ESE, copy.getDefaultRoute());
+        assertEquals(ROUTE_HOST, route(copy, VISA_CREDIT));
+        assertEquals(ROUTE_SIM, route(copy, VISA_ELECTRON));
+
+        AidRoutingTable derived = table.toBuilder().remove(VISA_CREDIT).removePrefix(VISA_RID)
+                .build();
+        assertEquals(ROUTE_ESE, route(derived, VISA_CREDIT));
+        assertEquals(0, derived.size());
+        // The original table is unchanged.
+        assertEquals(ROUTE_HOST, route(table, VISA_CREDIT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownRoute() {
+        new AidRoutingTable.Builder().route(VISA_CREDIT, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyAid() {
+        new AidRoutingTable.Builder().routePrefix("", ROUTE_HOST);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAidLongerThan16Bytes() {
+        new AidRoutingTable.Builder().route("A000000003101001020304050607080910", ROUTE_HOST);
+    }
+}
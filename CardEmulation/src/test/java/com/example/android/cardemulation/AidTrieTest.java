@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import static com.example.android.cardemulation.CardApdu.ByteArrayToHexString;
+import static com.example.android.cardemulation.CardApdu.HexStringToByteArray;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AidTrieTest {
+    private static final String VISA_RID = "A000000003";
+    private static final String VISA_CREDIT = "A0000000031010";
+    private static final String VISA_ELECTRON = "A0000000032010";
+    private static final String VISA_CREDIT_2 = "A000000003101002";
+    private static final String MASTERCARD = "A0000000041010";
+    private static final String LOYALTY = "F222222222";
+
+    private static AidTrie trie(String... aids) {
+        List<byte[]> list = new ArrayList<byte[]>();
+        for (String aid : aids) {
+            list.add(HexStringToByteArray(aid));
+        }
+        return AidTrie.of(list);
+    }
+
+    private static String first(AidTrie trie, String name) {
+        byte[] aid = trie.first(HexStringToByteArray(name), 0, name.length() / 2);
+        return aid == null ? null : ByteArrayToHexString(aid);
+    }
+
+    private static String next(AidTrie trie, String name, String current) {
+        byte[] aid = trie.next(HexStringToByteArray(name), 0, name.length() / 2,
+                current == null ? null : HexStringToByteArray(current));
+        return aid == null ? null : ByteArrayToHexString(aid);
+    }
+
+    @Test
+    public void emptyTrie() {
+        AidTrie trie = AidTrie.empty();
+        assertEquals(0, trie.size());
+        assertNull(first(trie, VISA_RID));
+        assertNull(first(trie, ""));
+        assertNull(next(trie, "", null));
+        assertFalse(trie.contains(HexStringToByteArray(VISA_CREDIT)));
+    }
+
+    @Test
+    public void firstMatchInUnsignedLexicalOrder() {
+        AidTrie trie = trie(MASTERCARD, VISA_ELECTRON, VISA_CREDIT_2, VISA_CREDIT, LOYALTY);
+        assertEquals(VISA_CREDIT, first(trie, VISA_RID));
+        assertEquals(VISA_CREDIT, first(trie, "A0"));
+        assertEquals(VISA_ELECTRON, first(trie, "A00000000320"));
+        // F2 sorts after A0 even though it is negative as a byte.
+        assertEquals(VISA_CREDIT, first(trie, ""));
+        assertEquals(LOYALTY, first(trie, "F2"));
+        assertNull(first(trie, "A000000005"));
+        assertNull(first(trie, VISA_CREDIT + "FF"));
+    }
+
+    @Test
+    public void completeAidMatchesItself() {
+        AidTrie trie = trie(VISA_CREDIT, VISA_CREDIT_2);
+        assertEquals(VISA_CREDIT, first(trie, VISA_CREDIT));
+        assertEquals(VISA_CREDIT_2, first(trie, VISA_CREDIT_2));
+    }
+
+    @Test
+    public void nameAtAnOffsetInTheCommand() {
+        AidTrie trie = trie(VISA_CREDIT, MASTERCARD);
+        byte[] command = HexStringToByteArray("00A4040005" + VISA_RID + "00");
+        assertEquals(VISA_CREDIT, ByteArrayToHexString(trie.first(command, 5, 5)));
+    }
+
+    @Test
+    public void nextOccurrenceStepsThroughEveryMatch() {
+        AidTrie trie = trie(MASTERCARD, VISA_ELECTRON, VISA_CREDIT_2, VISA_CREDIT);
+        // P2 = 02 with nothing selected starts at the first match.
+        assertEquals(VISA_CREDIT, next(trie, VISA_RID, null));
+        // A shorter AID comes before the longer ones it is a prefix of.
+        assertEquals(VISA_CREDIT_2, next(trie, VISA_RID, VISA_CREDIT));
+        assertEquals(VISA_ELECTRON, next(trie, VISA_RID, VISA_CREDIT_2));
+        // The last match has no next occurrence, MasterCard does not start with the name.
+        assertNull(next(trie, VISA_RID, VISA_ELECTRON));
+    }
+
+    @Test
+    public void nextOccurrenceFromAnAidNotMatchingTheName() {
+        AidTrie trie = trie(VISA_CREDIT, VISA_ELECTRON, MASTERCARD);
+        assertEquals(VISA_CREDIT, next(trie, VISA_RID, MASTERCARD));
+        assertEquals(VISA_CREDIT, next(trie, VISA_RID, LOYALTY));
+        assertNull(next(trie, "A000000005", VISA_CREDIT));
+    }
+
+    @Test
+    public void nextOccurrenceOfACompleteAid() {
+        AidTrie trie = trie(VISA_CREDIT, VISA_CREDIT_2);
+        assertEquals(VISA_CREDIT_2, next(trie, VISA_CREDIT, VISA_CREDIT));
+        assertNull(next(trie, VISA_CREDIT, VISA_CREDIT_2));
+        assertNull(next(trie, VISA_CREDIT_2, VISA_CREDIT_2));
+    }
+
+    @Test
+    public void withAddsAnAidAndLeavesTheOriginal() {
+        AidTrie trie = trie(VISA_CREDIT);
+        AidTrie grown = trie.with(HexStringToByteArray(VISA_ELECTRON));
+        assertEquals(1, trie.size());
+        assertEquals(2, grown.size());
+        assertTrue(grown.contains(HexStringToByteArray(VISA_ELECTRON)));
+        assertFalse(trie.contains(HexStringToByteArray(VISA_ELECTRON)));
+        assertEquals(VISA_ELECTRON, next(grown, VISA_RID, VISA_CREDIT));
+    }
+
+    @Test
+    public void withIgnoresDuplicatesAndEmptyAids() {
+        AidTrie trie = trie(VISA_CREDIT);
+        assertSame(trie, trie.with(HexStringToByteArray(VISA_CREDIT)));
+        assertSame(trie, trie.with(new byte[0]));
+        assertSame(trie, trie.with(null));
+        assertEquals(1, trie(VISA_CREDIT, VISA_CREDIT).size());
+    }
+
+    @Test
+    public void prefixOfAKnownAidIsNotContained() {
+        AidTrie trie = trie(VISA_CREDIT);
+        assertFalse(trie.contains(HexStringToByteArray(VISA_RID)));
+        assertTrue(trie.contains(HexStringToByteArray(VISA_CREDIT)));
+    }
+
+    @Test
+    public void withKeepsOrder() {
+        AidTrie trie = AidTrie.empty();
+        String[] aids = { LOYALTY, VISA_ELECTRON, MASTERCARD, VISA_CREDIT_2, VISA_CREDIT };
+        for (String aid : aids) {
+            trie = trie.with(HexStringToByteArray(aid));
+        }
+        String[] expected = { VISA_CREDIT, VISA_CREDIT_2, VISA_ELECTRON, MASTERCARD, LOYALTY };
+        String current = null;
+        for (String aid : expected) {
+            current = next(trie, "", current);
+            assertEquals(aid, current);
+        }
+        assertNull(next(trie, "", current));
+    }
+}
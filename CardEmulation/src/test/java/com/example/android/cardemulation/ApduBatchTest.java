@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import static com.example.android.cardemulation.CardApdu.ByteArrayToHexString;
+import static com.example.android.cardemulation.CardApdu.HexStringToByteArray;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class ApduBatchTest {
+    private static final byte[] AID = HexStringToByteArray("A000000632010105");
+    private static final String READ_1 = "00B2010C00";
+    private static final String READ_2 = "00B2020C00";
+    private static final String READ_3 = "00B2030C00";
+
+    private ScriptedChannel mChannel;
+    private ApduBatch mBatch;
+
+    @Before
+    public void setUp() {
+        ApduBatch.setEnabled(AID, true);
+        mChannel = new ScriptedChannel()
+                .on(READ_1, "7001019000")
+                .on(READ_2, "700202029000")
+                .on(READ_3, "6A83");
+        mBatch = new ApduBatch(new StatusWordResolver());
+    }
+
+    @After
+    public void tearDown() {
+        ApduBatch.setEnabled(AID, false);
+    }
+
+    /**
+     * Short envelope: 80 EB P1 00 Lc [len(2) item]... Le.
+     */
+    private static byte[] envelope(int p1, int le, String... items) {
+        StringBuilder data = new StringBuilder();
+        for (String item : items) {
+            data.append(String.format("%04X", item.length() / 2)).append(item);
+        }
+        return HexStringToByteArray(String.format("80EB%02X00%02X", p1, data.length() / 2)
+                + data + String.format("%02X", le & 0xFF));
+    }
+
+    @Test
+    public void recognisedOnlyForEnabledAids() {
+        byte[] envelope = envelope(0, 0, READ_1);
+        assertTrue(ApduBatch.isBatch(AID, envelope));
+        assertFalse(ApduBatch.isBatch(HexStringToByteArray("A0000000031010"), envelope));
+        assertFalse(ApduBatch.isBatch(AID, HexStringToByteArray(READ_1)));
+        ApduBatch.setEnabled(AID, false);
+        assertFalse(ApduBatch.isBatch(AID, envelope));
+    }
+
+    @Test
+    public void runsEveryItemInOrder() throws IOException {
+        byte[] rsp = mBatch.execute(mChannel, envelope(0, 0, READ_1, READ_2, READ_3), false);
+        assertEquals("00057001019000" + "0006700202029000" + "00026A83" + "9000",
+                ByteArrayToHexString(rsp));
+        assertEquals(3, mChannel.transmitted().size());
+        assertEquals(1, mBatch.getBatches());
+        assertEquals(3, mBatch.getItems());
+    }
+
+    @Test
+    public void stopsAtFirstErrorWhenAsked() throws IOException {
+        byte[] rsp = mBatch.execute(mChannel, envelope(ApduBatch.P1_STOP_ON_ERROR, 0,
+                READ_3, READ_1), false);
+        assertEquals("00026A83" + "6310", ByteArrayToHexString(rsp));
+        assertEquals(1, mChannel.transmitted().size());
+    }
+
+    @Test
+    public void errorInLastItemStillCompletes() throws IOException {
+        byte[] rsp = mBatch.execute(mChannel, envelope(ApduBatch.P1_STOP_ON_ERROR, 0,
+                READ_1, READ_3), false);
+        assertEquals("00057001019000" + "00026A83" + "9000", ByteArrayToHexString(rsp));
+    }
+
+    @Test
+    public void stopsWhenTheNextResponseDoesNotFit() throws IOException {
+        // Le 14 takes the first response with its prefix (7) but not the second (8 more).
+        byte[] rsp = mBatch.execute(mChannel, envelope(0, 14, READ_1, READ_2, READ_3), false);
+        assertEquals("00057001019000" + "6310", ByteArrayToHexString(rsp));
+        assertEquals(2, mChannel.transmitted().size());
+    }
+
+    @Test
+    public void responseThatDidNotFitIsNotRunTwice() throws IOException {
+        mBatch.execute(mChannel, envelope(0, 14, READ_1, READ_2, READ_3), false);
+        byte[] rsp = mBatch.execute(mChannel, envelope(0, 0, READ_2, READ_3), false);
+        assertEquals("0006700202029000" + "00026A83" + "9000", ByteArrayToHexString(rsp));
+        // READ_2 ran once in the first envelope, only READ_3 was added.
+        assertEquals(3, mChannel.transmitted().size());
+        assertEquals(READ_3, mChannel.transmitted().get(2));
+    }
+
+    @Test
+    public void carriedResponseOnlyMatchesTheFirstItem() throws IOException {
+        mBatch.execute(mChannel, envelope(0, 14, READ_1, READ_2), false);
+        mBatch.execute(mChannel, envelope(0, 0, READ_1, READ_2), false);
+        // READ_1 and READ_2 ran again, the kept response was dropped.
+        assertEquals(4, mChannel.transmitted().size());
+        assertNull(mBatch.takeCarried(HexStringToByteArray(READ_2)));
+    }
+
+    @Test
+    public void firstResponseLargerThanLeIsReturnedOnItsOwn() throws IOException {
+        byte[] rsp = mBatch.execute(mChannel, envelope(0, 4, READ_2, READ_1), false);
+        assertEquals("6310", ByteArrayToHexString(rsp));
+        assertEquals(1, mChannel.transmitted().size());
+        // The terminal sends the item as a plain command.
+        assertArrayEquals(HexStringToByteArray("700202029000"),
+                mBatch.takeCarried(HexStringToByteArray(READ_2)));
+        assertEquals(1, mChannel.transmitted().size());
+        assertNull(mBatch.takeCarried(HexStringToByteArray(READ_2)));
+    }
+
+    @Test
+    public void takeCarriedDropsTheResponseForAnyOtherCommand() throws IOException {
+        mBatch.execute(mChannel, envelope(0, 4, READ_2), false);
+        assertNull(mBatch.takeCarried(HexStringToByteArray(READ_1)));
+        assertNull(mBatch.takeCarried(HexStringToByteArray(READ_2)));
+    }
+
+    @Test
+    public void discardCarriedDropsTheResponse() throws IOException {
+        mBatch.execute(mChannel, envelope(0, 4, READ_2), false);
+        mBatch.discardCarried();
+        assertNull(mBatch.takeCarried(HexStringToByteArray(READ_2)));
+    }
+
+    @Test
+    public void malformedEnvelopesRunNothing() throws IOException {
+        // No data, item shorter than a header, item longer than the data field.
+        String[] malformed = { "80EB000000", "80EB0000050003B20100", "80EB0000050009B201" };
+        for (String envelope : malformed) {
+            assertEquals(envelope, "6700", ByteArrayToHexString(
+                    mBatch.execute(mChannel, HexStringToByteArray(envelope), false)));
+        }
+        assertEquals(0, mChannel.transmitted().size());
+    }
+
+    @Test
+    public void extendedLengthEnvelope() throws IOException {
+        byte[] items = HexStringToByteArray("0005" + READ_1 + "0005" + READ_2);
+        byte[] envelope = CardApdu.ConcatArrays(HexStringToByteArray("80EB000000000E"), items,
+                HexStringToByteArray("0400"));
+        byte[] rsp = mBatch.execute(mChannel, envelope, false);
+        assertEquals("00057001019000" + "0006700202029000" + "9000", ByteArrayToHexString(rsp));
+    }
+
+    @Test
+    public void resolvesStatusWordsOfItems() throws IOException {
+        mChannel.on("00CA9F4F", "6103").on("00C0000003", "AABBCC9000");
+        byte[] rsp = mBatch.execute(mChannel, envelope(0, 0, "00CA9F4F00"), true);
+        assertEquals("0005AABBCC9000" + "9000", ByteArrayToHexString(rsp));
+    }
+
+    @Test(expected = IOException.class)
+    public void emptyItemResponseFails() throws IOException {
+        mChannel.on(READ_1, "");
+        mBatch.execute(mChannel, envelope(0, 0, READ_1), false);
+    }
+}
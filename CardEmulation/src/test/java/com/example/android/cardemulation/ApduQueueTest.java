@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ApduQueueTest {
+    private static final byte[] SELECT = { 0x00, (byte) 0xA4, 0x04, 0x00 };
+    private static final byte[] READ = { 0x00, (byte) 0xB2, 0x01, 0x0C };
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(4, new ApduQueue(4).capacity());
+        assertEquals(8, new ApduQueue(5).capacity());
+        assertEquals(16, new ApduQueue(16).capacity());
+        assertEquals(32, new ApduQueue(17).capacity());
+        assertEquals(4, new ApduQueue(1).capacity());
+    }
+
+    @Test
+    public void emptyQueue() {
+        ApduQueue queue = new ApduQueue(4);
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.size());
+        assertNull(queue.peek());
+    }
+
+    @Test
+    public void keepsSlotFieldsAndOrder() {
+        ApduQueue queue = new ApduQueue(4);
+        assertTrue(queue.offer(SELECT, true, 100L, 7L, 2));
+        assertTrue(queue.offer(READ, false, 200L, 8L, 3));
+        assertEquals(2, queue.size());
+
+        ApduQueue.Slot slot = queue.peek();
+        // The command is queued as it is, not copied.
+        assertSame(SELECT, slot.command);
+        assertTrue(slot.answered);
+        assertEquals(100L, slot.receivedAt);
+        assertEquals(7L, slot.seq);
+        assertEquals(2, slot.generation);
+        // Peeking does not take the slot.
+        assertSame(slot, queue.peek());
+        queue.release();
+        assertNull(slot.command);
+
+        slot = queue.peek();
+        assertSame(READ, slot.command);
+        assertFalse(slot.answered);
+        assertEquals(3, slot.generation);
+        queue.release();
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void refusesWhenFull() {
+        ApduQueue queue = new ApduQueue(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(READ, false, 0L, i, 0));
+        }
+        assertFalse(queue.offer(SELECT, false, 0L, 4L, 0));
+        assertEquals(4, queue.size());
+        queue.release();
+        assertTrue(queue.offer(SELECT, false, 0L, 4L, 0));
+    }
+
+    @Test
+    public void wrapsAround() {
+        ApduQueue queue = new ApduQueue(4);
+        for (long seq = 0; seq < 100; seq++) {
+            assertTrue(queue.offer(READ, false, 0L, seq, 0));
+            if (seq % 3 == 2) {
+                // Drain now and then, so the ring runs at different fill levels.
+                while (!queue.isEmpty()) {
+                    queue.release();
+                }
+            }
+            assertTrue(queue.size() <= 3);
+        }
+    }
+
+    @Test
+    public void producerAndConsumerOnTwoThreads() throws InterruptedException {
+        final ApduQueue queue = new ApduQueue(8);
+        final int count = 200000;
+        final byte[][] commands = new byte[16][];
+        for (int i = 0; i < commands.length; i++) {
+            commands[i] = new byte[] { 0x00, (byte) 0xB2, (byte) i, 0x0C };
+        }
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    while (!queue.offer(commands[i % commands.length], false, i, i, i)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+        for (int i = 0; i < count; i++) {
+            ApduQueue.Slot slot;
+            while ((slot = queue.peek()) == null) {
+                Thread.yield();
+            }
+            // Every field written before the tail moved must be visible.
+            assertEquals(i, slot.seq);
+            assertEquals(i, slot.receivedAt);
+            assertEquals(i, slot.generation);
+            assertSame(commands[i % commands.length], slot.command);
+            queue.release();
+        }
+        producer.join();
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import static com.example.android.cardemulation.CardApdu.ByteArrayToHexString;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class CardProfileStoreTest {
+    private static final String SWIPE_DATA = ";4111111111111111=2512101?";
+    private static final String READ_RECORD_RESPONSE =
+            "700E" + "570C4111111111111111D2512101" + "9000";
+
+    private File mFile;
+    private CardProfileStore mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("card_profiles", ".bin");
+        mStore = CardProfileStore.open(mFile);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+        mFile.delete();
+        CardProfileStore.setActiveProfile(CardProfile.fromSwipeData(
+                CardProfileStore.DEFAULT_CARD_ID, CardApdu.DEFAULT_SWIPE_DATA));
+    }
+
+    private CardProfileStore reopen() throws IOException {
+        mStore.close();
+        mStore = CardProfileStore.open(mFile);
+        return mStore;
+    }
+
+    @Test
+    public void emptyStore() {
+        assertTrue(mStore.getCardIds().isEmpty());
+        assertNull(mStore.get("visa"));
+        assertNull(mStore.getActiveCardId());
+        assertFalse(mStore.activate("visa"));
+        assertFalse(mStore.remove("visa"));
+    }
+
+    @Test
+    public void openTwiceReturnsSameStore() throws IOException {
+        assertSame(mStore, CardProfileStore.open(mFile));
+    }
+
+    @Test
+    public void putAndGet() throws IOException {
+        assertTrue(mStore.putSwipeData("visa", SWIPE_DATA));
+        CardProfile profile = mStore.get("visa");
+        assertEquals("visa", profile.getCardId());
+        assertEquals(READ_RECORD_RESPONSE, ByteArrayToHexString(profile.getReadRecordResponse()));
+        assertArrayEquals(CardApdu.PPSE_APDU_SELECT_RESP, profile.getPpseSelectResponse());
+        assertArrayEquals(CardApdu.VISA_MSD_SELECT_RESPONSE, profile.getSelectResponse());
+        assertArrayEquals(CardApdu.GPO_COMMAND_RESPONSE, profile.getGpoResponse());
+    }
+
+    @Test
+    public void swipeDataWithoutTrack2() throws IOException {
+        assertFalse(mStore.putSwipeData("visa", "%B4111111111111111^NAME^2512101?"));
+        assertTrue(mStore.getCardIds().isEmpty());
+    }
+
+    @Test
+    public void cardsSurviveReopen() throws IOException {
+        mStore.putSwipeData("first", SWIPE_DATA);
+        mStore.putSwipeData("second", CardApdu.DEFAULT_SWIPE_DATA);
+        reopen();
+        assertEquals(Arrays.asList("first", "second"), mStore.getCardIds());
+        assertEquals(READ_RECORD_RESPONSE,
+                ByteArrayToHexString(mStore.get("first").getReadRecordResponse()));
+    }
+
+    @Test
+    public void putReplacesCardWithSameId() throws IOException {
+        mStore.putSwipeData("visa", CardApdu.DEFAULT_SWIPE_DATA);
+        mStore.putSwipeData("visa", SWIPE_DATA);
+        assertEquals(Arrays.asList("visa"), mStore.getCardIds());
+        assertEquals(READ_RECORD_RESPONSE,
+                ByteArrayToHexString(mStore.get("visa").getReadRecordResponse()));
+        reopen();
+        assertEquals(Arrays.asList("visa"), mStore.getCardIds());
+        assertEquals(READ_RECORD_RESPONSE,
+                ByteArrayToHexString(mStore.get("visa").getReadRecordResponse()));
+    }
+
+    @Test
+    public void activateSwitchesProfileAndVersion() throws IOException {
+        mStore.putSwipeData("visa", SWIPE_DATA);
+        int version = CardProfileStore.getActiveVersion();
+        assertTrue(mStore.activate("visa"));
+        assertEquals(version + 1, CardProfileStore.getActiveVersion());
+        assertEquals("visa", CardProfileStore.getActiveProfile().getCardId());
+        assertEquals("visa", mStore.getActiveCardId());
+    }
+
+    @Test
+    public void activeCardRestoredOnOpen() throws IOException {
+        mStore.putSwipeData("visa", SWIPE_DATA);
+        mStore.activate("visa");
+        mStore.close();
+        CardProfileStore.setActiveProfile(CardProfile.fromSwipeData(
+                CardProfileStore.DEFAULT_CARD_ID, CardApdu.DEFAULT_SWIPE_DATA));
+        mStore = CardProfileStore.open(mFile);
+        assertEquals("visa", mStore.getActiveCardId());
+        assertEquals(READ_RECORD_RESPONSE, ByteArrayToHexString(
+                CardProfileStore.getActiveProfile().getReadRecordResponse()));
+    }
+
+    @Test
+    public void replacingActiveCardKeepsItActive() throws IOException {
+        mStore.putSwipeData("visa", CardApdu.DEFAULT_SWIPE_DATA);
+        mStore.activate("visa");
+        mStore.putSwipeData("visa", SWIPE_DATA);
+        assertEquals("visa", mStore.getActiveCardId());
+        assertEquals(READ_RECORD_RESPONSE, ByteArrayToHexString(
+                CardProfileStore.getActiveProfile().getReadRecordResponse()));
+    }
+
+    @Test
+    public void removingActiveCardFallsBackToDefault() throws IOException {
+        mStore.putSwipeData("visa", SWIPE_DATA);
+        mStore.activate("visa");
+        assertTrue(mStore.remove("visa"));
+        assertNull(mStore.get("visa"));
+        assertNull(mStore.getActiveCardId());
+        assertEquals(CardProfileStore.DEFAULT_CARD_ID,
+                CardProfileStore.getActiveProfile().getCardId());
+        reopen();
+        assertTrue(mStore.getCardIds().isEmpty());
+        assertNull(mStore.getActiveCardId());
+    }
+
+    @Test
+    public void growsPastInitialMapping() throws IOException {
+        for (int i = 0; i < 500; i++) {
+            mStore.putSwipeData("card" + i, SWIPE_DATA);
+        }
+        assertTrue(mFile.length() > 16 * 1024);
+        reopen();
+        assertEquals(500, mStore.getCardIds().size());
+        assertEquals("card499", mStore.get("card499").getCardId());
+    }
+
+    @Test
+    public void recordCutShortIsDroppedAndOverwritten() throws IOException {
+        mStore.putSwipeData("first", SWIPE_DATA);
+        mStore.putSwipeData("second", SWIPE_DATA);
+        mStore.close();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            // Claim the second record runs past the bytes in use.
+            int second = 16 + readInt(file, 17);
+            file.seek(second + 1);
+            file.writeInt(1 << 20);
+        } finally {
+            file.close();
+        }
+        mStore = CardProfileStore.open(mFile);
+        assertEquals(Arrays.asList("first"), mStore.getCardIds());
+        mStore.putSwipeData("third", SWIPE_DATA);
+        reopen();
+        assertEquals(Arrays.asList("first", "third"), mStore.getCardIds());
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File other = File.createTempFile("not_profiles", ".bin");
+        RandomAccessFile file = new RandomAccessFile(other, "rw");
+        try {
+            file.write(new byte[32]);
+        } finally {
+            file.close();
+        }
+        try {
+            CardProfileStore.open(other);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            other.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullActiveProfile() {
+        CardProfileStore.setActiveProfile(null);
+    }
+
+    private static int readInt(RandomAccessFile file, long offset) throws IOException {
+        file.seek(offset);
+        return file.readInt();
+    }
+}
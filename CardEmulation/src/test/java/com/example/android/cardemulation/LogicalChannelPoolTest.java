@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.example.android.cardemulation.SecureElementBackend.Channel;
+import com.example.android.cardemulation.SecureElementBackend.Session;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+public class LogicalChannelPoolTest {
+    private static final String PPSE = "325041592E5359532E4444463031";
+    private static final String VISA = "A0000000031010";
+    private static final String LOYALTY = "F222222222";
+
+    /**
+     * Session with room for a fixed number of channels, or failing every open with an exception.
+     */
+    private static class FakeSession implements Session {
+        int maxChannels;
+        int open = 0;
+        int opens = 0;
+        RuntimeException failure;
+
+        FakeSession(int maxChannels) {
+            this.maxChannels = maxChannels;
+        }
+
+        @Override
+        public Channel openLogicalChannel(byte[] aid) throws IOException {
+            opens++;
+            if (failure != null) {
+                throw failure;
+            }
+            if (open >= maxChannels) {
+                return null;
+            }
+            open++;
+            return new ScriptedChannel() {
+                @Override
+                public void close() {
+                    if (!isClosed()) {
+                        open--;
+                    }
+                    super.close();
+                }
+            };
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void reusesTheChannelForAnAid() {
+        FakeSession session = new FakeSession(3);
+        LogicalChannelPool pool = new LogicalChannelPool(3);
+        Channel channel = pool.acquire(session, VISA);
+        assertNotNull(channel);
+        assertSame(channel, pool.acquire(session, VISA));
+        assertEquals(1, session.opens);
+        assertEquals(1, pool.getOpens());
+        assertEquals(1, pool.getReuses());
+    }
+
+    @Test
+    public void reopensAClosedChannel() {
+        FakeSession session = new FakeSession(3);
+        LogicalChannelPool pool = new LogicalChannelPool(3);
+        Channel channel = pool.acquire(session, VISA);
+        channel.close();
+        Channel reopened = pool.acquire(session, VISA);
+        assertNotNull(reopened);
+        assertTrue(reopened != channel);
+        assertEquals(2, session.opens);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedAtTheCap() {
+        FakeSession session = new FakeSession(3);
+        LogicalChannelPool pool = new LogicalChannelPool(2);
+        Channel ppse = pool.acquire(session, PPSE);
+        pool.acquire(session, VISA);
+        pool.acquire(session, PPSE);
+        pool.acquire(session, LOYALTY);
+        assertEquals(2, pool.size());
+        assertEquals(1, pool.getEvictions());
+        // VISA was the least recently used.
+        assertSame(ppse, pool.acquire(session, PPSE));
+        assertEquals(2, session.open);
+    }
+
+    @Test
+    public void evictsWhenTheSeRunsOutOfChannels() {
+        FakeSession session = new FakeSession(1);
+        LogicalChannelPool pool = new LogicalChannelPool(3);
+        Channel ppse = pool.acquire(session, PPSE);
+        Channel visa = pool.acquire(session, VISA);
+        assertNotNull(visa);
+        assertTrue(ppse.isClosed());
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void nullWhenNothingCanBeFreed() {
+        LogicalChannelPool pool = new LogicalChannelPool(3);
+        assertNull(pool.acquire(new FakeSession(0), VISA));
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void nullWhenTheOpenThrows() {
+        RuntimeException[] failures = {
+                new NoSuchElementException("no applet"),
+                new SecurityException("access denied"),
+                new IllegalStateException("session closed"),
+                // A partial SELECT of fewer than 5 bytes.
+                new IllegalArgumentException("AID length"),
+                new UnsupportedOperationException("no logical channels"),
+        };
+        for (RuntimeException failure : failures) {
+            FakeSession session = new FakeSession(3);
+            session.failure = failure;
+            LogicalChannelPool pool = new LogicalChannelPool(3);
+            assertNull(failure.getClass().getSimpleName(), pool.acquire(session, "A000"));
+            assertEquals(0, pool.size());
+        }
+    }
+
+    @Test
+    public void removeAndCloseAllCloseChannels() {
+        FakeSession session = new FakeSession(3);
+        LogicalChannelPool pool = new LogicalChannelPool(3);
+        Channel ppse = pool.acquire(session, PPSE);
+        Channel visa = pool.acquire(session, VISA);
+        pool.remove(PPSE);
+        assertTrue(ppse.isClosed());
+        assertEquals(1, pool.size());
+        pool.closeAll();
+        assertTrue(visa.isClosed());
+        assertEquals(0, pool.size());
+        assertEquals(0, session.open);
+    }
+}
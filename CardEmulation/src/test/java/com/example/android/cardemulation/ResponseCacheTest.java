@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import static com.example.android.cardemulation.CardApdu.HexStringToByteArray;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ResponseCacheTest {
+    private static final byte[] AID = HexStringToByteArray("A0000000031010");
+    private static final byte[] OTHER_AID = HexStringToByteArray("A0000000041010");
+    private static final byte[] READ_RECORD = HexStringToByteArray("00B2010C00");
+    private static final byte[] RESPONSE = HexStringToByteArray("70035A01119000");
+
+    @Test
+    public void selectByNameIsCacheable() {
+        assertTrue(ResponseCache.isCacheable(HexStringToByteArray("00A4040007A000000003101000")));
+    }
+
+    @Test
+    public void selectByFileIdentifierIsNotCacheable() {
+        assertFalse(ResponseCache.isCacheable(HexStringToByteArray("00A40000023F00")));
+    }
+
+    @Test
+    public void readRecordIsCacheable() {
+        assertTrue(ResponseCache.isCacheable(READ_RECORD));
+    }
+
+    @Test
+    public void getDataForStaticTagIsCacheable() {
+        assertTrue(ResponseCache.isCacheable(HexStringToByteArray("80CA9F4F00")));
+        assertTrue(ResponseCache.isCacheable(HexStringToByteArray("80CA9F4D00")));
+    }
+
+    @Test
+    public void getDataForCountersIsNotCacheable() {
+        // ATC, Last Online ATC Register, PIN Try Counter
+        assertFalse(ResponseCache.isCacheable(HexStringToByteArray("80CA9F3600")));
+        assertFalse(ResponseCache.isCacheable(HexStringToByteArray("80CA9F1300")));
+        assertFalse(ResponseCache.isCacheable(HexStringToByteArray("80CA9F1700")));
+    }
+
+    @Test
+    public void chunkedGetDataIsNotCacheable() {
+        // The loyalty reader fetches successive chunks with the same command.
+        assertFalse(ResponseCache.isCacheable(HexStringToByteArray("00CA000000")));
+        assertFalse(ResponseCache.isCacheable(HexStringToByteArray("00CA0000000FFF")));
+    }
+
+    @Test
+    public void proprietaryGetDataIsNotCacheable() {
+        assertFalse(ResponseCache.isCacheable(HexStringToByteArray("80CADF0100")));
+        assertFalse(ResponseCache.isCacheable(HexStringToByteArray("80CA010100")));
+    }
+
+    @Test
+    public void otherCommandsAreNotCacheable() {
+        assertFalse(ResponseCache.isCacheable(null));
+        assertFalse(ResponseCache.isCacheable(HexStringToByteArray("00B2")));
+        assertFalse(ResponseCache.isCacheable(HexStringToByteArray("80A8000002830000")));
+        assertFalse(ResponseCache.isCacheable(HexStringToByteArray("00C0000010")));
+    }
+
+    @Test
+    public void prefetcherFollowsCacheableTags() {
+        assertTrue(SePrefetcher.isPrefetchable(READ_RECORD));
+        assertTrue(SePrefetcher.isPrefetchable(HexStringToByteArray("80CA9F4F00")));
+        assertFalse(SePrefetcher.isPrefetchable(HexStringToByteArray("00CA000000")));
+        assertFalse(SePrefetcher.isPrefetchable(HexStringToByteArray("80CA9F3600")));
+        assertFalse(SePrefetcher.isPrefetchable(HexStringToByteArray("00A4040007A000000003101000")));
+    }
+
+    @Test
+    public void returnsWhatWasPut() {
+        ResponseCache cache = new ResponseCache();
+        assertNull(cache.get(AID, READ_RECORD));
+        cache.put(AID, READ_RECORD, RESPONSE);
+        // A copy of the command must hit as well.
+        assertArrayEquals(RESPONSE, cache.get(AID, READ_RECORD.clone()));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void keyedByAid() {
+        ResponseCache cache = new ResponseCache();
+        cache.put(AID, READ_RECORD, RESPONSE);
+        assertNull(cache.get(OTHER_AID, READ_RECORD));
+        assertNull(cache.get(null, READ_RECORD));
+    }
+
+    @Test
+    public void ignoresErrorResponses() {
+        ResponseCache cache = new ResponseCache();
+        cache.put(AID, READ_RECORD, HexStringToByteArray("6A83"));
+        cache.put(AID, READ_RECORD, HexStringToByteArray("6110"));
+        cache.put(AID, READ_RECORD, HexStringToByteArray("90"));
+        cache.put(AID, READ_RECORD, null);
+        assertNull(cache.get(AID, READ_RECORD));
+    }
+
+    @Test
+    public void expiresAfterTtl() {
+        ResponseCache cache = new ResponseCache();
+        cache.setTtl(0);
+        cache.put(AID, READ_RECORD, RESPONSE);
+        assertNull(cache.get(AID, READ_RECORD));
+    }
+
+    @Test
+    public void invalidateAllDropsEverything() {
+        ResponseCache cache = new ResponseCache();
+        cache.put(AID, READ_RECORD, RESPONSE);
+        cache.invalidateAll();
+        assertNull(cache.get(AID, READ_RECORD));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        ResponseCache cache = new ResponseCache();
+        byte[] first = HexStringToByteArray("00B2010C00");
+        cache.put(AID, first, RESPONSE);
+        for (int record = 2; record <= 64; record++) {
+            cache.put(AID, new byte[] { 0x00, (byte) 0xB2, (byte) record, 0x0C, 0x00 }, RESPONSE);
+        }
+        // Touch the first entry so the second one is the eldest.
+        assertArrayEquals(RESPONSE, cache.get(AID, first));
+        cache.put(AID, HexStringToByteArray("00B2011400"), RESPONSE);
+        assertArrayEquals(RESPONSE, cache.get(AID, first));
+        assertNull(cache.get(AID, HexStringToByteArray("00B2020C00")));
+    }
+}
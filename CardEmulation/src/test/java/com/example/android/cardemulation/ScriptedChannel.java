@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import static com.example.android.cardemulation.CardApdu.ByteArrayToHexString;
+import static com.example.android.cardemulation.CardApdu.HexStringToByteArray;
+
+import com.example.android.cardemulation.SecureElementBackend.Channel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Channel answering from a script and recording every command, for tests of the code between
+ * the terminal and the SE.
+ */
+class ScriptedChannel implements Channel {
+    private final Map<String, LinkedList<byte[]>> mScript =
+            new LinkedHashMap<String, LinkedList<byte[]>>();
+    private final List<String> mTransmitted = new ArrayList<String>();
+    private boolean mClosed = false;
+
+    /**
+     * Answer a command starting with {@code commandPrefix} with the given responses in turn, the
+     * last one over and over.
+     */
+    ScriptedChannel on(String commandPrefix, String... responses) {
+        LinkedList<byte[]> queue = new LinkedList<byte[]>();
+        for (String response : responses) {
+            queue.add(HexStringToByteArray(response));
+        }
+        mScript.put(commandPrefix, queue);
+        return this;
+    }
+
+    /**
+     * @return Commands transmitted so far, as hexadecimal strings
+     */
+    List<String> transmitted() {
+        return mTransmitted;
+    }
+
+    @Override
+    public byte[] transmit(byte[] command) throws IOException {
+        if (mClosed) {
+            throw new IOException("Channel closed");
+        }
+        String hex = ByteArrayToHexString(command);
+        mTransmitted.add(hex);
+        for (Map.Entry<String, LinkedList<byte[]>> entry : mScript.entrySet()) {
+            if (hex.startsWith(entry.getKey())) {
+                LinkedList<byte[]> queue = entry.getValue();
+                return queue.size() > 1 ? queue.removeFirst() : queue.getFirst().clone();
+            }
+        }
+        return HexStringToByteArray("6D00");
+    }
+
+    @Override
+    public byte[] getSelectResponse() {
+        return null;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+    }
+}
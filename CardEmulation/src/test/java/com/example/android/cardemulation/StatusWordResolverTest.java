@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import static com.example.android.cardemulation.CardApdu.ByteArrayToHexString;
+import static com.example.android.cardemulation.CardApdu.HexStringToByteArray;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class StatusWordResolverTest {
+    private final StatusWordResolver mResolver = new StatusWordResolver();
+
+    private String transmit(ScriptedChannel channel, String command) throws IOException {
+        return ByteArrayToHexString(mResolver.transmit(channel, HexStringToByteArray(command)));
+    }
+
+    private static String repeat(String hex, int times) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            s.append(hex);
+        }
+        return s.toString();
+    }
+
+    @Test
+    public void passesOtherStatusWordsThrough() throws IOException {
+        ScriptedChannel channel = new ScriptedChannel().on("00B2", "7001019000", "6A83");
+        assertEquals("7001019000", transmit(channel, "00B2010C00"));
+        assertEquals("6A83", transmit(channel, "00B2010C00"));
+        assertEquals(2, channel.transmitted().size());
+        assertEquals(0, mResolver.getRoundTripsSaved());
+    }
+
+    @Test
+    public void fetchesMoreDataWithGetResponse() throws IOException {
+        ScriptedChannel channel = new ScriptedChannel()
+                .on("00B2", "AA6102")
+                .on("00C0000002", "BBCC9000");
+        assertEquals("AABBCC9000", transmit(channel, "00B2010C00"));
+        assertEquals(Arrays.asList("00B2010C00", "00C0000002"), channel.transmitted());
+        assertEquals(1, mResolver.getRoundTripsSaved());
+    }
+
+    @Test
+    public void chainsSeveralGetResponses() throws IOException {
+        ScriptedChannel channel = new ScriptedChannel()
+                .on("00B2", "6101")
+                .on("00C0000001", "AA6101", "BB9000");
+        assertEquals("AABB9000", transmit(channel, "00B2010C00"));
+        assertEquals(2, mResolver.getRoundTripsSaved());
+    }
+
+    @Test
+    public void passesTheFinalErrorOfAChain() throws IOException {
+        ScriptedChannel channel = new ScriptedChannel()
+                .on("00B2", "AA6101")
+                .on("00C0", "6F00");
+        assertEquals("AA6F00", transmit(channel, "00B2010C00"));
+    }
+
+    @Test
+    public void stopsAtWhatAShortResponseCanCarry() throws IOException {
+        // 200 bytes collected, the SE offers 100 more: past 256, left to the terminal.
+        ScriptedChannel channel = new ScriptedChannel()
+                .on("00B2", "61C8")
+                .on("00C00000C8", repeat("AA", 200) + "6164");
+        assertEquals(repeat("AA", 200) + "6164", transmit(channel, "00B2010C00"));
+        assertEquals(2, channel.transmitted().size());
+    }
+
+    @Test
+    public void sw6100MeansAFull256Bytes() throws IOException {
+        ScriptedChannel channel = new ScriptedChannel()
+                .on("00B2", "6100")
+                .on("00C0000000", repeat("AB", 256) + "9000");
+        assertEquals(repeat("AB", 256) + "9000", transmit(channel, "00B2010C00"));
+    }
+
+    @Test
+    public void extendedCommandsChainUpToTheirLe() throws IOException {
+        ScriptedChannel channel = new ScriptedChannel()
+                .on("00B2", "6100")
+                .on("00C0", repeat("AB", 256) + "6100", repeat("CD", 256) + "9000");
+        // Extended Le 0200: both 256 byte responses fit.
+        String rsp = transmit(channel, "00B2010C000200");
+        assertEquals(repeat("AB", 256) + repeat("CD", 256) + "9000", rsp);
+    }
+
+    @Test
+    public void retriesWrongLeWithTheCorrectOne() throws IOException {
+        ScriptedChannel channel = new ScriptedChannel()
+                .on("00B2010C00", "6C05")
+                .on("00B2010C05", "7003AABBCC9000");
+        assertEquals("7003AABBCC9000", transmit(channel, "00B2010C00"));
+        assertEquals(1, mResolver.getRoundTripsSaved());
+    }
+
+    @Test
+    public void wrongLeForEveryCommandCase() throws IOException {
+        // Case 1 and 3 get Le appended, case 2 and 4 replaced.
+        String[][] cases = {
+                { "80CA9F36", "80CA9F3602" },
+                { "80CA9F3600", "80CA9F3602" },
+                { "80A80000028300", "80A8000002830002" },
+                { "80A8000002830000", "80A8000002830002" },
+        };
+        for (String[] c : cases) {
+            ScriptedChannel channel = new ScriptedChannel()
+                    .on(c[1], "00019000")
+                    .on(c[0], "6C02");
+            assertEquals(c[0], "00019000", transmit(channel, c[0]));
+            assertEquals(c[1], channel.transmitted().get(1));
+        }
+    }
+
+    @Test
+    public void wrongLeThenMoreData() throws IOException {
+        ScriptedChannel channel = new ScriptedChannel()
+                .on("00B2010C00", "6C02")
+                .on("00B2010C02", "AA6101")
+                .on("00C0000001", "BB9000");
+        assertEquals("AABB9000", transmit(channel, "00B2010C00"));
+        assertEquals(2, mResolver.getRoundTripsSaved());
+    }
+
+    @Test
+    public void leavesWrongLeOfExtendedCommandsToTheTerminal() throws IOException {
+        ScriptedChannel channel = new ScriptedChannel().on("00B2", "6C05");
+        assertEquals("6C05", transmit(channel, "00B2010C000100"));
+        assertEquals(1, channel.transmitted().size());
+    }
+
+    @Test(expected = IOException.class)
+    public void emptyGetResponseFails() throws IOException {
+        ScriptedChannel channel = new ScriptedChannel()
+                .on("00B2", "6101")
+                .on("00C0", "");
+        transmit(channel, "00B2010C00");
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import static com.example.android.cardemulation.CardApdu.ByteArrayToHexString;
+import static com.example.android.cardemulation.CardApdu.HexStringToByteArray;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class TlvBuilderTest {
+    // The responses as they were written out byte by byte before TlvBuilder.
+    private static final String PPSE_SELECT_RESPONSE = "6F23"
+            + "840E325041592E5359532E4444463031"
+            + "A511" + "BF0C0E" + "610C" + "4F07A0000000031010" + "870101"
+            + "9000";
+    private static final String VISA_MSD_SELECT_RESPONSE = "6F1E"
+            + "8407A0000000031010"
+            + "A513" + "500B5649534120435245444954" + "9F38039F6602"
+            + "9000";
+    private static final String DEFAULT_READ_RECORD_RESPONSE = "7015"
+            + "57134046460664629718D16101210000018100000F"
+            + "9000";
+
+    private static String build(TlvBuilder tlv) {
+        return ByteArrayToHexString(Arrays.copyOf(tlv.buffer(), tlv.position()));
+    }
+
+    private static String repeat(String hex, int times) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            s.append(hex);
+        }
+        return s.toString();
+    }
+
+    @Test
+    public void ppseSelectResponseIsUnchanged() {
+        assertEquals(PPSE_SELECT_RESPONSE, ByteArrayToHexString(CardApdu.PPSE_APDU_SELECT_RESP));
+    }
+
+    @Test
+    public void visaMsdSelectResponseIsUnchanged() {
+        assertEquals(VISA_MSD_SELECT_RESPONSE,
+                ByteArrayToHexString(CardApdu.VISA_MSD_SELECT_RESPONSE));
+    }
+
+    @Test
+    public void readRecordResponseIsUnchanged() {
+        CardProfile profile = CardProfile.fromSwipeData("test", CardApdu.DEFAULT_SWIPE_DATA);
+        assertEquals(DEFAULT_READ_RECORD_RESPONSE,
+                ByteArrayToHexString(profile.getReadRecordResponse()));
+    }
+
+    @Test
+    public void primitivesWithOneTwoAndThreeByteTags() {
+        TlvBuilder tlv = new TlvBuilder(new byte[32], 0)
+                .put(0x57, HexStringToByteArray("AABB"))
+                .putByte(0x9F36, 0x12)
+                .put(0xDF8101, new byte[0]);
+        assertEquals("57" + "02AABB" + "9F360112" + "DF810100", build(tlv));
+        assertEquals(12, tlv.length());
+    }
+
+    @Test
+    public void putWithOffsetAndLength() {
+        TlvBuilder tlv = new TlvBuilder(new byte[8], 0)
+                .put(0x4F, HexStringToByteArray("00A0000000"), 1, 3);
+        assertEquals("4F03A00000", build(tlv));
+    }
+
+    @Test
+    public void longLengthForms() {
+        byte[] value128 = new byte[128];
+        byte[] value256 = new byte[256];
+        assertEquals("578180" + repeat("00", 128),
+                build(new TlvBuilder(new byte[200], 0).put(0x57, value128)));
+        assertEquals("57820100" + repeat("00", 256),
+                build(new TlvBuilder(new byte[300], 0).put(0x57, value256)));
+        // 127 still fits the short form.
+        assertEquals("577F" + repeat("00", 127),
+                build(new TlvBuilder(new byte[200], 0).put(0x57, new byte[127])));
+    }
+
+    @Test
+    public void closeMovesLongContentUp() {
+        TlvBuilder tlv = new TlvBuilder(new byte[400], 0)
+                .open(0x70)
+                .put(0x57, new byte[200])
+                .close();
+        assertEquals("7081CB" + "5781C8" + repeat("00", 200), build(tlv));
+
+        tlv = new TlvBuilder(new byte[400], 0)
+                .open(0x77)
+                .open(0x70)
+                .put(0x57, new byte[300])
+                .close()
+                .putByte(0x9F36, 0x01)
+                .close();
+        assertEquals("77820138" + "70820130" + "5782012C" + repeat("00", 300) + "9F360101",
+                build(tlv));
+    }
+
+    @Test
+    public void writesAtAnOffsetAndResets() {
+        byte[] buffer = new byte[16];
+        TlvBuilder tlv = new TlvBuilder(buffer, 4).putByte(0x87, 1);
+        assertEquals(3, tlv.length());
+        assertEquals(7, tlv.position());
+        assertEquals("870101", ByteArrayToHexString(Arrays.copyOfRange(buffer, 4, 7)));
+        assertSame(tlv, tlv.reset(buffer, 0));
+        assertEquals(0, tlv.length());
+        tlv.putStatusWord(0x9000).putRaw(HexStringToByteArray("6A82"), 0, 2);
+        assertEquals("90006A82", ByteArrayToHexString(Arrays.copyOf(buffer, 4)));
+    }
+
+    @Test
+    public void emptyConstructedObject() {
+        assertEquals("A500", build(new TlvBuilder(new byte[4], 0).open(0xA5).close()));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void bufferTooSmall() {
+        new TlvBuilder(new byte[4], 0).put(0x57, new byte[3]);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void bufferTooSmallForLongLengthOnClose() {
+        new TlvBuilder(new byte[131], 0).open(0x70).put(0x57, new byte[127]).close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closeWithoutOpen() {
+        new TlvBuilder(new byte[4], 0).close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void nestedTooDeeply() {
+        TlvBuilder tlv = new TlvBuilder(new byte[64], 0);
+        for (int i = 0; i < 9; i++) {
+            tlv.open(0x70);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void valueTooLong() {
+        new TlvBuilder(new byte[70000], 0).put(0x57, new byte[65536]);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import static com.example.android.cardemulation.CardApdu.HexStringToByteArray;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TlvReaderTest {
+    private static TlvReader read(String hex) {
+        byte[] data = HexStringToByteArray(hex);
+        return new TlvReader(data, 0, data.length);
+    }
+
+    @Test
+    public void walksPpseSelectResponse() {
+        TlvReader tlv = new TlvReader().resetResponse(CardApdu.PPSE_APDU_SELECT_RESP);
+        assertTrue(tlv.next());
+        assertEquals(0x6F, tlv.tag());
+        assertEquals(0x23, tlv.length());
+        assertTrue(tlv.isConstructed());
+        tlv.enter();
+        assertTrue(tlv.next());
+        assertEquals(0x84, tlv.tag());
+        assertFalse(tlv.isConstructed());
+        assertEquals(14, tlv.length());
+        assertEquals(4, tlv.valueOffset());
+        assertTrue(tlv.find(0xA5));
+        tlv.enter();
+        assertTrue(tlv.find(0xBF0C));
+        assertEquals(20, tlv.tagOffset());
+        tlv.enter();
+        assertTrue(tlv.find(0x61));
+        tlv.enter();
+        assertTrue(tlv.find(0x87));
+        assertEquals(1, tlv.intValue());
+        assertFalse(tlv.next());
+        assertFalse(tlv.isMalformed());
+        tlv.exit();
+        tlv.exit();
+        tlv.exit();
+        tlv.exit();
+        // The status word is not part of the data objects.
+        assertFalse(tlv.next());
+        assertFalse(tlv.isMalformed());
+    }
+
+    @Test
+    public void exitContinuesAfterEnteredObject() {
+        TlvReader tlv = read("A503" + "870101" + "9F360102");
+        assertTrue(tlv.next());
+        tlv.enter();
+        tlv.exit();
+        assertTrue(tlv.next());
+        assertEquals(0x9F36, tlv.tag());
+        assertEquals(2, tlv.intValue());
+    }
+
+    @Test
+    public void findMissingTag() {
+        TlvReader tlv = read("870101" + "500141");
+        assertFalse(tlv.find(0x4F));
+        assertFalse(tlv.isMalformed());
+    }
+
+    @Test
+    public void threeByteTag() {
+        TlvReader tlv = read("DF810102ABCD");
+        assertTrue(tlv.next());
+        assertEquals(0xDF8101, tlv.tag());
+        assertEquals(0xABCD, tlv.intValue());
+    }
+
+    @Test
+    public void skipsPadding() {
+        TlvReader tlv = read("00FF" + "870101" + "0000" + "5A0112" + "FFFF");
+        assertTrue(tlv.next());
+        assertEquals(0x87, tlv.tag());
+        assertTrue(tlv.next());
+        assertEquals(0x5A, tlv.tag());
+        assertFalse(tlv.next());
+        assertFalse(tlv.isMalformed());
+    }
+
+    @Test
+    public void longLengths() {
+        StringBuilder hex = new StringBuilder("5781C8");
+        for (int i = 0; i < 200; i++) {
+            hex.append("00");
+        }
+        hex.append("82020100" + "9F028200021234");
+        TlvReader tlv = read(hex.toString());
+        assertTrue(tlv.next());
+        assertEquals(200, tlv.length());
+        assertEquals(3, tlv.valueOffset());
+        assertTrue(tlv.next());
+        assertEquals(0x82, tlv.tag());
+        assertEquals(2, tlv.length());
+        assertEquals(0x0100, tlv.intValue());
+        assertTrue(tlv.next());
+        assertEquals(0x9F02, tlv.tag());
+        assertEquals(0x1234, tlv.intValue());
+        assertFalse(tlv.next());
+        assertFalse(tlv.isMalformed());
+    }
+
+    @Test
+    public void intValueReadsAtMostFourBytes() {
+        TlvReader tlv = read("9F0206000000012345");
+        assertTrue(tlv.next());
+        assertEquals(0x00000001, tlv.intValue());
+    }
+
+    @Test
+    public void lengthPastEnd() {
+        TlvReader tlv = read("5705AABB");
+        assertFalse(tlv.next());
+        assertTrue(tlv.isMalformed());
+    }
+
+    @Test
+    public void lengthPastParent() {
+        TlvReader tlv = read("7003" + "5703AABBCC");
+        assertTrue(tlv.next());
+        tlv.enter();
+        assertFalse(tlv.next());
+        assertTrue(tlv.isMalformed());
+    }
+
+    @Test
+    public void truncatedTagAndLength() {
+        TlvReader tlv = read("9F");
+        assertFalse(tlv.next());
+        assertTrue(tlv.isMalformed());
+        tlv = read("57");
+        assertFalse(tlv.next());
+        assertTrue(tlv.isMalformed());
+        tlv = read("5782AA");
+        assertFalse(tlv.next());
+        assertTrue(tlv.isMalformed());
+    }
+
+    @Test
+    public void unsupportedLengthForms() {
+        TlvReader tlv = read("5780");
+        assertFalse(tlv.next());
+        assertTrue(tlv.isMalformed());
+        tlv = read("578400000001AA");
+        assertFalse(tlv.next());
+        assertTrue(tlv.isMalformed());
+    }
+
+    @Test
+    public void tagLongerThanThreeBytes() {
+        TlvReader tlv = read("DF81818101AA");
+        assertFalse(tlv.next());
+        assertTrue(tlv.isMalformed());
+    }
+
+    @Test
+    public void resetClearsMalformed() {
+        TlvReader tlv = read("5705");
+        assertFalse(tlv.next());
+        assertTrue(tlv.isMalformed());
+        byte[] data = HexStringToByteArray("870101");
+        tlv.reset(data, 0, data.length);
+        assertFalse(tlv.isMalformed());
+        assertTrue(tlv.next());
+    }
+
+    @Test
+    public void resetResponseOnStatusWordOnly() {
+        TlvReader tlv = new TlvReader().resetResponse(HexStringToByteArray("9000"));
+        assertFalse(tlv.next());
+        assertFalse(tlv.isMalformed());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void enterPrimitive() {
+        TlvReader tlv = read("870101");
+        assertTrue(tlv.next());
+        tlv.enter();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void exitAtTopLevel() {
+        read("870101").exit();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void nestedTooDeeply() {
+        String hex = "7000";
+        for (int i = 0; i < 8; i++) {
+            hex = String.format("70%02X", hex.length() / 2) + hex;
+        }
+        TlvReader tlv = read(hex);
+        for (int i = 0; i < 9; i++) {
+            assertTrue(tlv.next());
+            tlv.enter();
+        }
+    }
+}
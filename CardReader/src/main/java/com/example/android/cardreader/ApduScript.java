@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.cardreader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs a script of APDUs into batch envelopes and unpacks the answers, so a whole script costs
+ * one NFC exchange per envelope instead of one per command.
+ *
+ * <p>Envelope: {@code 80 EB P1 00 Lc [len(2) APDU]... Le}, response:
+ * {@code [len(2) response]... SW}. SW 9000 means every item ran, 6310 that the card stopped
+ * early and the remaining items have to be sent again. Bit 1 of P1 asks the card to stop at the
+ * first item that does not answer 9000.
+ */
+public class ApduScript {
+    private static final byte CLA_BATCH = (byte) 0x80;
+    private static final byte INS_BATCH = (byte) 0xEB;
+    private static final int P1_STOP_ON_ERROR = 0x01;
+    // Envelope header plus the longest Lc and Le encodings.
+    private static final int ENVELOPE_OVERHEAD = 4 + 3 + 2;
+
+    public static final int SW_OK = 0x9000;
+    public static final int SW_INCOMPLETE = 0x6310;
+
+    /**
+     * Responses unpacked from one envelope.
+     */
+    public static class Result {
+        public final List<byte[]> responses;
+        public final int sw;
+
+        Result(List<byte[]> responses, int sw) {
+            this.responses = responses;
+            this.sw = sw;
+        }
+    }
+
+    private ApduScript() {
+    }
+
+    /**
+     * Pack as many commands as fit, starting at {@code from}.
+     *
+     * @param commands Script to run
+     * @param from Index of the first command to pack
+     * @param maxTransceiveLength Longest APDU the reader can send or receive
+     * @param extended Whether extended length APDUs may be used
+     * @param stopOnError Ask the card to stop at the first item not answering 9000
+     * @param packed Receives the number of commands packed in element 0
+     * @return Envelope APDU
+     * @throws IllegalArgumentException if the command at {@code from} does not fit on its own
+     */
+    public static byte[] buildEnvelope(List<byte[]> commands, int from, int maxTransceiveLength,
+            boolean extended, boolean stopOnError, int[] packed) {
+        int maxData = extended
+                ? Math.min(65535, maxTransceiveLength - ENVELOPE_OVERHEAD)
+                : Math.min(255, maxTransceiveLength - 6);
+        int dataLength = 0;
+        int count = 0;
+        for (int i = from; i < commands.size(); i++) {
+            int itemLength = 2 + commands.get(i).length;
+            if (dataLength + itemLength > maxData) {
+                break;
+            }
+            dataLength += itemLength;
+            count++;
+        }
+        if (count == 0) {
+            throw new IllegalArgumentException("Command " + from + " does not fit in an envelope");
+        }
+        byte[] envelope = new byte[4 + (extended ? 3 : 1) + dataLength + (extended ? 2 : 1)];
+        envelope[0] = CLA_BATCH;
+        envelope[1] = INS_BATCH;
+        envelope[2] = (byte) (stopOnError ? P1_STOP_ON_ERROR : 0);
+        envelope[3] = 0x00;
+        int offset;
+        if (extended) {
+            envelope[4] = 0x00;
+            envelope[5] = (byte) (dataLength >> 8);
+            envelope[6] = (byte) dataLength;
+            offset = 7;
+        } else {
+            envelope[4] = (byte) dataLength;
+            offset = 5;
+        }
+        for (int i = from; i < from + count; i++) {
+            byte[] command = commands.get(i);
+            envelope[offset] = (byte) (command.length >> 8);
+            envelope[offset + 1] = (byte) command.length;
+            System.arraycopy(command, 0, envelope, offset + 2, command.length);
+            offset += 2 + command.length;
+        }
+        // Le: as much as the reader takes, the card stops before overrunning it.
+        if (extended) {
+            int le = Math.min(65536, maxTransceiveLength - 2);
+            envelope[offset] = (byte) (le >> 8);
+            envelope[offset + 1] = (byte) le;
+        } else {
+            envelope[offset] = 0x00;
+        }
+        packed[0] = count;
+        return envelope;
+    }
+
+    /**
+     * Unpack the response to an envelope.
+     *
+     * @return Item responses and overall status word, or null if the response is not a batch
+     * response, e.g. because the card does not know the envelope. A bare 9000 counts as such: an
+     * envelope always holds at least one item, so a card that ran it answers with at least one
+     * response or with 6310.
+     */
+    public static Result parseResponse(byte[] response) {
+        if (response == null || response.length < 2) {
+            return null;
+        }
+        int end = response.length - 2;
+        int sw = ((response[end] & 0xFF) << 8) | (response[end + 1] & 0xFF);
+        if (sw != SW_OK && sw != SW_INCOMPLETE) {
+            return null;
+        }
+        List<byte[]> responses = new ArrayList<byte[]>();
+        int offset = 0;
+        while (offset < end) {
+            if (offset + 2 > end) {
+                return null;
+            }
+            int itemLength = ((response[offset] & 0xFF) << 8) | (response[offset + 1] & 0xFF);
+            if (itemLength < 2 || offset + 2 + itemLength > end) {
+                return null;
+            }
+            byte[] item = new byte[itemLength];
+            System.arraycopy(response, offset + 2, item, 0, itemLength);
+            responses.add(item);
+            offset += 2 + itemLength;
+        }
+        if (sw == SW_OK && responses.isEmpty()) {
+            return null;
+        }
+        return new Result(responses, sw);
+    }
+}
@@ -26,7 +26,9 @@ import com.example.android.common.logger.Log;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Callback class, invoked when an NFC card is scanned while the device is running in reader mode.
@@ -44,8 +46,11 @@ public class LoyaltyCardReader implements NfcAdapter.ReaderCallback {
     private static final String GET_DATA_APDU_HEADER = "00CA0000";
     // "OK" status word sent in response to SELECT AID command (0x9000)
     private static final byte[] SELECT_OK_SW = {(byte) 0x90, (byte) 0x00};
-
-    String gotData = "", finalGotData = "";
+    // "Wrong length" status word, the card cannot handle the Le we asked for (0x6700)
+    private static final byte[] WRONG_LENGTH_SW = {(byte) 0x67, (byte) 0x00};
+    // Largest Le of a short and of an extended length APDU.
+    private static final int MAX_SHORT_LE = 256;
+    private static final int MAX_EXTENDED_LE = 65536;
 
     long timeTaken = 0;
 
@@ -85,6 +90,10 @@ public class LoyaltyCardReader implements NfcAdapter.ReaderCallback {
                 isoDep.setTimeout(3600);
                 Log.i(TAG, "Timeout = " + isoDep.getTimeout());
                 Log.i(TAG, "MaxTransceiveLength = " + isoDep.getMaxTransceiveLength());
+                boolean extended = isoDep.isExtendedLengthApduSupported();
+                int le = getDataLe(extended, isoDep.getMaxTransceiveLength());
+                extended = le > MAX_SHORT_LE;
+                Log.i(TAG, "Extended length = " + extended + ", Le = " + le);
 
                 // Build SELECT AID command for our loyalty card service.
                 // This command tells the remote device which service we wish to communicate with.
@@ -106,24 +115,34 @@ public class LoyaltyCardReader implements NfcAdapter.ReaderCallback {
                     // Inform CardReaderFragment of received account number
                     if (true) {
                         timeTaken = System.currentTimeMillis();
-                        while (!(gotData.contains("END"))) {
-                            byte[] getCommand = BuildGetDataApdu();
+                        PayloadAssembler assembler = new PayloadAssembler();
+                        byte[] getCommand = BuildGetDataApdu(le, extended);
+                        while (!assembler.isComplete()) {
                             Log.i(TAG, "Sending: " + ByteArrayToHexString(getCommand));
-                            result = isoDep.transceive(getCommand);
-                            resultLength = result.length;
-                            Log.i(TAG, "Received length : " + resultLength);
-                            byte[] statusWordNew = {result[resultLength - 2], result[resultLength - 1]};
-                            payload = Arrays.copyOf(result, resultLength - 2);
-                            if (Arrays.equals(SELECT_OK_SW, statusWordNew)) {
-                                gotData = new String(payload, "UTF-8");
-                                Log.i(TAG, "Received: " + gotData);
-                                finalGotData = finalGotData + gotData;
-                                Log.i(TAG, "Data transferred : " + finalGotData.length());
+                            try {
+                                result = isoDep.transceive(getCommand);
+                            } catch (IOException e) {
+                                if (!extended) {
+                                    throw e;
+                                }
+                                result = WRONG_LENGTH_SW;
+                            }
+                            Log.i(TAG, "Received length : " + result.length);
+                            if (extended && Arrays.equals(WRONG_LENGTH_SW, result)) {
+                                // The card or the NFC stack on the other side cannot do it,
+                                // continue with short APDUs.
+                                Log.i(TAG, "Extended length refused, falling back to short APDUs");
+                                extended = false;
+                                getCommand = BuildGetDataApdu(MAX_SHORT_LE, false);
+                                continue;
+                            }
+                            if (assembler.append(result)) {
+                                Log.i(TAG, "Received: " + assembler.getLastChunk());
+                                Log.i(TAG, "Data transferred : " + assembler.length());
                                 Log.i(TAG, "Time taken: " + (System.currentTimeMillis() - timeTaken));
-
                             }
                         }
-                        mAccountCallback.get().onAccountReceived(gotData);
+                        mAccountCallback.get().onAccountReceived(assembler.getLastChunk());
 
                     }
                     //mAccountCallback.get().onAccountReceived(accountNumber);
@@ -144,6 +163,73 @@ public class LoyaltyCardReader implements NfcAdapter.ReaderCallback {
         }
     }
 
+    /**
+     * Run a script of APDUs against the selected applet, packed into as few batch envelopes as
+     * the reader's transceive limit allows (see {@link ApduScript}). If the card does not take
+     * envelopes, the commands are sent one by one instead.
+     *
+     * @param isoDep Connected tag, with the applet already selected
+     * @param commands Commands to run, in order
+     * @param stopOnError Stop at the first command not answering 9000
+     * @return One response per command that ran, each including its status word
+     * @throws IOException if communication with the card fails
+     */
+    public static List<byte[]> executeScript(IsoDep isoDep, List<byte[]> commands,
+            boolean stopOnError) throws IOException {
+        List<byte[]> responses = new ArrayList<byte[]>(commands.size());
+        boolean extended = isoDep.isExtendedLengthApduSupported();
+        int maxTransceiveLength = isoDep.getMaxTransceiveLength();
+        int[] packed = new int[1];
+        int next = 0;
+        while (next < commands.size()) {
+            byte[] envelope = ApduScript.buildEnvelope(commands, next, maxTransceiveLength,
+                    extended, stopOnError, packed);
+            ApduScript.Result result = ApduScript.parseResponse(isoDep.transceive(envelope));
+            if (result == null || (result.sw == ApduScript.SW_OK && result.responses.isEmpty())) {
+                // Unknown to the card, or ignored and answered with a bare 9000.
+                Log.i(TAG, "Batch envelope not supported, sending commands one by one");
+                return executeOneByOne(isoDep, commands, next, stopOnError, responses);
+            }
+            responses.addAll(result.responses);
+            next += result.responses.size();
+            if (result.sw == ApduScript.SW_OK) {
+                continue;
+            }
+            byte[] last;
+            if (result.responses.isEmpty()) {
+                // The first command's response does not fit in what the envelope can return,
+                // e.g. with a short Le. Send it on its own, then go on batching the rest.
+                last = isoDep.transceive(commands.get(next));
+                responses.add(last);
+                next++;
+            } else {
+                last = result.responses.get(result.responses.size() - 1);
+            }
+            if (stopOnError && !isOk(last)) {
+                break;
+            }
+        }
+        return responses;
+    }
+
+    private static List<byte[]> executeOneByOne(IsoDep isoDep, List<byte[]> commands, int from,
+            boolean stopOnError, List<byte[]> responses) throws IOException {
+        for (int i = from; i < commands.size(); i++) {
+            byte[] response = isoDep.transceive(commands.get(i));
+            responses.add(response);
+            if (stopOnError && !isOk(response)) {
+                break;
+            }
+        }
+        return responses;
+    }
+
+    private static boolean isOk(byte[] response) {
+        int length = response.length;
+        return length >= 2 && response[length - 2] == SELECT_OK_SW[0]
+                && response[length - 1] == SELECT_OK_SW[1];
+    }
+
     /**
      * Build APDU for SELECT AID command. This command indicates which service a reader is
      * interested in communicating with. See ISO 7816-4.
@@ -157,13 +243,44 @@ public class LoyaltyCardReader implements NfcAdapter.ReaderCallback {
     }
 
     /**
-     * Build APDU for GET_DATA command. See ISO 7816-4.
+     * Build APDU for GET_DATA command asking for as much as a short APDU can carry. See ISO 7816-4.
      *
-     * @return APDU for SELECT AID command
+     * @return APDU for GET_DATA command
      */
     public static byte[] BuildGetDataApdu() {
-        // Format: [CLASS | INSTRUCTION | PARAMETER 1 | PARAMETER 2 | LENGTH | DATA]
-        return HexStringToByteArray(GET_DATA_APDU_HEADER + "0FFF");
+        return BuildGetDataApdu(MAX_SHORT_LE, false);
+    }
+
+    /**
+     * Build APDU for GET_DATA command. See ISO 7816-4.
+     *
+     * @param le Number of response bytes expected, up to 256 for short and 65536 for extended
+     * @param extended true for extended length encoding, 00 followed by two Le bytes
+     * @return APDU for GET_DATA command
+     */
+    public static byte[] BuildGetDataApdu(int le, boolean extended) {
+        // Format: [CLASS | INSTRUCTION | PARAMETER 1 | PARAMETER 2 | LE]
+        if (!extended) {
+            // 256 is encoded as 00.
+            return HexStringToByteArray(GET_DATA_APDU_HEADER + String.format("%02X", le & 0xFF));
+        }
+        // 65536 is encoded as 0000.
+        return HexStringToByteArray(GET_DATA_APDU_HEADER + "00" + String.format("%04X", le & 0xFFFF));
+    }
+
+    /**
+     * Largest Le for GET DATA that fits the reader's transceive limit, leaving room for the status
+     * word.
+     *
+     * @param extendedSupported Whether the reader supports extended length APDUs
+     * @param maxTransceiveLength IsoDep.getMaxTransceiveLength()
+     * @return Le, above 256 only if extended length should be used
+     */
+    static int getDataLe(boolean extendedSupported, int maxTransceiveLength) {
+        if (!extendedSupported) {
+            return MAX_SHORT_LE;
+        }
+        return Math.max(MAX_SHORT_LE, Math.min(MAX_EXTENDED_LE, maxTransceiveLength - 2));
     }
 
     /**
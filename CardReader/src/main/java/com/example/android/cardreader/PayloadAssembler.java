@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.cardreader;
+
+import com.example.android.common.AESHelper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.GeneralSecurityException;
+
+/**
+ * Collects the chunks returned by repeated GET DATA commands into one payload.
+ *
+ * <p>Each response carries a UTF-8 chunk followed by the status word; the card sends a chunk
+ * containing "END" as the last one. Chunks are decoded with one decoder, so a character split
+ * across two chunks comes out whole. If the payload is encrypted in the chunked mode of
+ * {@link AESHelper}, each chunk is decrypted as it arrives from its offset in the payload; no
+ * card sends that yet, so {@link LoyaltyCardReader} reads plain payloads only. Kept free of
+ * Android classes so it can be benchmarked on a plain JVM.
+ */
+public class PayloadAssembler {
+    private static final String END_MARKER = "END";
+    // "OK" status word (0x9000)
+    private static final byte[] OK_SW = {(byte) 0x90, (byte) 0x00};
+
+    private final StringBuilder mPayload = new StringBuilder();
+    private String mLastChunk = "";
+    // Seed and nonce of an encrypted payload, null for a plain one.
+    private final String mSeed;
+    private final byte[] mNonce;
+    // Bytes received so far, the offset of the next chunk.
+    private long mPosition = 0;
+    private byte[] mClear = new byte[0];
+    private final CharsetDecoder mDecoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    // Leading bytes of a character the previous chunk ended in, at most three for UTF-8.
+    private final byte[] mPending = new byte[4];
+    private int mPendingLength = 0;
+
+    public PayloadAssembler() {
+        this(null, null);
+    }
+
+    /**
+     * @param seed Seed the payload was encrypted with in the chunked mode of {@link AESHelper},
+     * or null if it is not encrypted
+     * @param nonce Nonce of the payload, ignored if seed is null
+     */
+    public PayloadAssembler(String seed, byte[] nonce) {
+        mSeed = seed;
+        mNonce = nonce;
+    }
+
+    /**
+     * Add one GET DATA response. Responses not ending in 9000 are ignored.
+     *
+     * @param response Response including the status word
+     * @return true if the response was accepted
+     */
+    public boolean append(byte[] response) throws IOException {
+        int length = response.length;
+        if (length < 2 || response[length - 2] != OK_SW[0] || response[length - 1] != OK_SW[1]) {
+            return false;
+        }
+        byte[] chunk = response;
+        if (mSeed != null) {
+            if (mClear.length < length - 2) {
+                mClear = new byte[length - 2];
+            }
+            try {
+                AESHelper.decryptChunk(mSeed, mNonce, mPosition, response, 0, length - 2,
+                        mClear, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Decrypting chunk failed", e);
+            }
+            chunk = mClear;
+        }
+        mPosition += length - 2;
+        mLastChunk = decode(chunk, length - 2);
+        mPayload.append(mLastChunk);
+        return true;
+    }
+
+    /**
+     * Decode a chunk after the bytes left over from the previous one, keeping the bytes of a
+     * character that is cut off at its end for the next chunk.
+     */
+    private String decode(byte[] chunk, int length) {
+        ByteBuffer in;
+        if (mPendingLength == 0) {
+            in = ByteBuffer.wrap(chunk, 0, length);
+        } else {
+            in = ByteBuffer.allocate(mPendingLength + length);
+            in.put(mPending, 0, mPendingLength).put(chunk, 0, length);
+            in.flip();
+        }
+        CharBuffer out = CharBuffer.allocate(in.remaining());
+        mDecoder.decode(in, out, false);
+        mPendingLength = in.remaining();
+        in.get(mPending, 0, mPendingLength);
+        out.flip();
+        return out.toString();
+    }
+
+    /**
+     * @return true once the chunk carrying the end marker has been received. The marker may
+     * start in the previous chunk, since encrypted chunks are cut at any byte.
+     */
+    public boolean isComplete() {
+        int from = mPayload.length() - mLastChunk.length() - (END_MARKER.length() - 1);
+        return mPayload.indexOf(END_MARKER, Math.max(0, from)) >= 0;
+    }
+
+    public String getLastChunk() {
+        return mLastChunk;
+    }
+
+    public String getPayload() {
+        return mPayload.toString();
+    }
+
+    public int length() {
+        return mPayload.length();
+    }
+}
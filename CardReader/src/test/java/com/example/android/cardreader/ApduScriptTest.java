@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.cardreader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ApduScriptTest {
+    private static final byte[] READ_1 = hex("00B2010C00");
+    private static final byte[] READ_2 = hex("00B2020C00");
+
+    private static byte[] hex(String s) {
+        byte[] data = new byte[s.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return data;
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder s = new StringBuilder();
+        for (byte b : bytes) {
+            s.append(String.format("%02X", b));
+        }
+        return s.toString();
+    }
+
+    @Test
+    public void packsShortEnvelope() {
+        int[] packed = new int[1];
+        byte[] envelope = ApduScript.buildEnvelope(Arrays.asList(READ_1, READ_2), 0, 261, false,
+                true, packed);
+        assertEquals("80EB01000E" + "0005" + "00B2010C00" + "0005" + "00B2020C00" + "00",
+                hex(envelope));
+        assertEquals(2, packed[0]);
+    }
+
+    @Test
+    public void packsExtendedEnvelope() {
+        int[] packed = new int[1];
+        byte[] envelope = ApduScript.buildEnvelope(Arrays.asList(READ_1, READ_2), 1, 1026, true,
+                false, packed);
+        assertEquals("80EB000000" + "0007" + "0005" + "00B2020C00" + "0400", hex(envelope));
+        assertEquals(1, packed[0]);
+    }
+
+    @Test
+    public void packsOnlyWhatFits() {
+        List<byte[]> commands = new ArrayList<byte[]>();
+        for (int i = 0; i < 40; i++) {
+            commands.add(READ_1);
+        }
+        int[] packed = new int[1];
+        byte[] envelope = ApduScript.buildEnvelope(commands, 0, 261, false, false, packed);
+        // 255 bytes of data hold 36 items of 7 bytes.
+        assertEquals(36, packed[0]);
+        assertEquals(5 + 36 * 7 + 1, envelope.length);
+        ApduScript.buildEnvelope(commands, 36, 261, false, false, packed);
+        assertEquals(4, packed[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void commandTooLongForAnEnvelope() {
+        ApduScript.buildEnvelope(Arrays.asList(new byte[260]), 0, 261, false, false, new int[1]);
+    }
+
+    @Test
+    public void parsesCompleteResponse() {
+        ApduScript.Result result = ApduScript.parseResponse(
+                hex("00057001019000" + "00026A83" + "9000"));
+        assertNotNull(result);
+        assertEquals(ApduScript.SW_OK, result.sw);
+        assertEquals(2, result.responses.size());
+        assertArrayEquals(hex("7001019000"), result.responses.get(0));
+        assertArrayEquals(hex("6A83"), result.responses.get(1));
+    }
+
+    @Test
+    public void parsesIncompleteResponse() {
+        ApduScript.Result result = ApduScript.parseResponse(hex("00057001019000" + "6310"));
+        assertNotNull(result);
+        assertEquals(ApduScript.SW_INCOMPLETE, result.sw);
+        assertEquals(1, result.responses.size());
+    }
+
+    @Test
+    public void incompleteWithNothingRunIsAResult() {
+        // The first response does not fit, the reader sends that command on its own.
+        ApduScript.Result result = ApduScript.parseResponse(hex("6310"));
+        assertNotNull(result);
+        assertEquals(0, result.responses.size());
+    }
+
+    @Test
+    public void bareOkIsNotABatchResponse() {
+        // A card ignoring the envelope would otherwise make the reader resend it forever.
+        assertNull(ApduScript.parseResponse(hex("9000")));
+    }
+
+    @Test
+    public void errorsAreNotBatchResponses() {
+        assertNull(ApduScript.parseResponse(hex("6D00")));
+        assertNull(ApduScript.parseResponse(hex("6E00")));
+        assertNull(ApduScript.parseResponse(hex("90")));
+        assertNull(ApduScript.parseResponse(null));
+    }
+
+    @Test
+    public void malformedResponsesAreRejected() {
+        // Item longer than the response, item shorter than a status word, dangling length byte.
+        assertNull(ApduScript.parseResponse(hex("0009700101" + "9000")));
+        assertNull(ApduScript.parseResponse(hex("000190" + "9000")));
+        assertNull(ApduScript.parseResponse(hex("00026A8300" + "9000")));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.cardreader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.example.android.common.AESHelper;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+public class PayloadAssemblerTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SEED = "PRESHAREDKEY";
+    private static final byte[] NONCE = { 8, 7, 6, 5, 4, 3, 2, 1 };
+    // 1, 2, 3 and 4 byte characters.
+    private static final String PAYLOAD = "6222 été €42 😀 loyalty END";
+
+    private static byte[] withOk(byte[] chunk, int offset, int length) {
+        byte[] response = Arrays.copyOfRange(chunk, offset, offset + length + 2);
+        response[length] = (byte) 0x90;
+        response[length + 1] = 0x00;
+        return response;
+    }
+
+    private static String assemble(PayloadAssembler assembler, byte[] payload, int chunkSize)
+            throws IOException {
+        for (int offset = 0; offset < payload.length; offset += chunkSize) {
+            assertFalse(assembler.isComplete());
+            assertTrue(assembler.append(withOk(payload, offset,
+                    Math.min(chunkSize, payload.length - offset))));
+        }
+        return assembler.getPayload();
+    }
+
+    @Test
+    public void keepsCharactersSplitAcrossChunks() throws IOException {
+        byte[] payload = PAYLOAD.getBytes(UTF_8);
+        for (int chunkSize = 1; chunkSize <= payload.length; chunkSize++) {
+            PayloadAssembler assembler = new PayloadAssembler();
+            assertEquals("chunk size " + chunkSize, PAYLOAD, assemble(assembler, payload,
+                    chunkSize));
+            assertTrue(assembler.isComplete());
+        }
+    }
+
+    @Test
+    public void decryptsChunksAtTheirOffset() throws IOException, GeneralSecurityException {
+        byte[] payload = PAYLOAD.getBytes(UTF_8);
+        AESHelper.encryptChunk(SEED, NONCE, 0, payload, 0, payload.length, payload, 0);
+        for (int chunkSize : new int[] { 1, 3, 16, 17, payload.length }) {
+            PayloadAssembler assembler = new PayloadAssembler(SEED, NONCE);
+            assertEquals("chunk size " + chunkSize, PAYLOAD, assemble(assembler, payload,
+                    chunkSize));
+        }
+    }
+
+    @Test
+    public void ignoresResponsesNotEndingIn9000() throws IOException {
+        PayloadAssembler assembler = new PayloadAssembler();
+        assertFalse(assembler.append(new byte[] { 'E', 'N', 'D', 0x6A, (byte) 0x82 }));
+        assertFalse(assembler.append(new byte[] { (byte) 0x90 }));
+        assertFalse(assembler.isComplete());
+        assertEquals(0, assembler.length());
+    }
+
+    @Test
+    public void emptyChunk() throws IOException {
+        PayloadAssembler assembler = new PayloadAssembler();
+        assertTrue(assembler.append(new byte[] { (byte) 0x90, 0x00 }));
+        assertEquals("", assembler.getLastChunk());
+        assertFalse(assembler.isComplete());
+    }
+
+    @Test
+    public void completeOnceTheLastChunkCarriesTheMarker() throws IOException {
+        PayloadAssembler assembler = new PayloadAssembler();
+        assembler.append(withOk("abc ".getBytes(UTF_8), 0, 4));
+        assertFalse(assembler.isComplete());
+        assembler.append(withOk("xyz END".getBytes(UTF_8), 0, 7));
+        assertTrue(assembler.isComplete());
+        assertEquals("xyz END", assembler.getLastChunk());
+        assertEquals("abc xyz END", assembler.getPayload());
+    }
+}
@@ -2,8 +2,6 @@ package com.example.android;
 
 import android.app.Application;
 
-import com.jeremyliao.liveeventbus.LiveEventBus;
-
 /**
  * Created by call on 2019/8/6.
  */
@@ -12,9 +10,5 @@ public class DemoApplication extends Application {
     @Override
     public void onCreate() {
         super.onCreate();
-        LiveEventBus.get()
-                .config()
-                .supportBroadcast(this)
-                .lifecycleObserverAlwaysActive(true);
     }
 }
@@ -36,6 +36,8 @@ public class AccountStorage {
     private static final String DEFAULT_ACCOUNT_NUMBER = "6222222200000001";
     private static final String TAG = "AccountStorage";
     private static String sAccount = null;
+    // Encrypted form of sAccount, the same every time for the same account.
+    private static String sAccountEncrypted = null;
     private static final Object sAccountLock = new Object();
 
     public static void SetAccount(Context c, String s) {
@@ -44,6 +46,7 @@ public class AccountStorage {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c);
             prefs.edit().putString(PREF_ACCOUNT_NUMBER, s).commit();
             sAccount = s;
+            sAccountEncrypted = null;
         }
     }
 
@@ -55,10 +58,15 @@ public class AccountStorage {
                 sAccount = account;
             }
 
+            if (sAccountEncrypted != null) {
+                return sAccountEncrypted;
+            }
+
             String seedVal = "PRESHAREDKEY";
             String encodedString = "fail";
             try {
                 encodedString = AESHelper.encrypt(seedVal, sAccount);
+                sAccountEncrypted = encodedString;
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -1,9 +1,7 @@
 package com.example.android.cardemulation;
 
-import android.arch.lifecycle.Observer;
-import android.content.Context;
 import android.os.Bundle;
-import android.support.annotation.Nullable;
+import android.os.Handler;
 import android.support.v4.app.Fragment;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -12,7 +10,7 @@ import android.widget.LinearLayout;
 import android.widget.ScrollView;
 import android.widget.TextView;
 
-import com.jeremyliao.liveeventbus.LiveEventBus;
+import java.util.Locale;
 
 /**
  * Created by call on 2019/8/6.
@@ -20,8 +18,23 @@ import com.jeremyliao.liveeventbus.LiveEventBus;
 
 public class CardLogFragment extends Fragment {
 
+    // How often the trace ring is polled while the fragment is visible.
+    private static final long POLL_INTERVAL_MS = 250;
+    private static final String[] TYPE_LABELS = { "C-APDU ", "R-APDU ", "FCI ", "No channel for " };
+
     TextView _textview = null;
     ScrollView _scrollview = null;
+    private final Handler handler = new Handler();
+    private final ApduTrace.Event[] batch = new ApduTrace.Event[32];
+    private ApduTrace.Cursor cursor = null;
+    private long reportedDrops = 0;
+    private final Runnable poll = new Runnable() {
+        @Override
+        public void run() {
+            drainTrace();
+            handler.postDelayed(this, POLL_INTERVAL_MS);
+        }
+    };
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -39,22 +52,49 @@ public class CardLogFragment extends Fragment {
     }
 
     @Override
-    public void onAttach(Context context) {
-        super.onAttach(context);
-        LiveEventBus.get()
-                .with(CardService.KEY_TEST_OBSERVE, String.class)
-                .observe(this, new Observer<String>() {
-                    @Override
-                    public void onChanged(@Nullable String s) {
-                        logText(s);
-                    }
-                });
+    public void onResume() {
+        super.onResume();
+        if (cursor == null) {
+            cursor = ApduTrace.getInstance().newCursor();
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = new ApduTrace.Event();
+            }
+        }
+        handler.post(poll);
+    }
+
+    @Override
+    public void onPause() {
+        handler.removeCallbacks(poll);
+        super.onPause();
     }
 
-    private static String bytesToString(byte[] bytes) {
-        StringBuffer sb = new StringBuffer();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x ", b & 0xFF));
+    /**
+     * Append every trace event recorded since the last poll.
+     */
+    private void drainTrace() {
+        int count;
+        while ((count = cursor.read(batch)) > 0) {
+            for (int i = 0; i < count; i++) {
+                logText(format(batch[i]));
+            }
+        }
+        if (cursor.getDropped() != reportedDrops) {
+            logText((cursor.getDropped() - reportedDrops) + " events dropped");
+            reportedDrops = cursor.getDropped();
+        }
+    }
+
+    private static String format(ApduTrace.Event event) {
+        StringBuilder sb = new StringBuilder(TYPE_LABELS[event.type]);
+        for (int i = 0; i < event.dataLength(); i++) {
+            sb.append(String.format(Locale.US, "%02X", event.data[i] & 0xFF));
+        }
+        if (event.length > event.dataLength()) {
+            sb.append("... (").append(event.length).append(" bytes)");
+        }
+        if (event.deliveryNanos > 0) {
+            sb.append(String.format(Locale.US, " [delivered in %d us]", event.deliveryNanos / 1000));
         }
         return sb.toString();
     }
@@ -3,29 +3,268 @@ package com.example.android.common;
 /**
  * Created by arnav on 11/8/14.
  */
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * AES with a key derived from a seed string.
+ *
+ * <p>Deriving the key seeds a SHA1PRNG and runs a KeyGenerator, which costs far more than the
+ * encryption itself, so keys are derived once per seed and cached. Each thread keeps its own
+ * Cipher and only initializes it again when the key or the direction changes. Besides the hex
+ * string methods there are byte[] and ByteBuffer overloads that work on the caller's buffers.
+ * The output is the same as before for the same seed and input.
+ *
+ * <p>Large payloads can use the chunked mode instead, AES/CTR with a counter block of a per
+ * payload nonce followed by the block index. Any range of the payload can then be encrypted or
+ * decrypted on its own from its offset, the ciphertext is as long as the cleartext, and the
+ * sender can encrypt each GET DATA response as it is asked for while the reader decrypts each
+ * one as it arrives.
+ */
 public class AESHelper {
 
+    private static final int BLOCK_SIZE = 16;
+    // Seeds are few in practice, the cache is only bounded against misuse.
+    private static final int MAX_CACHED_KEYS = 16;
+    /** Length of the nonce of a chunked payload, the rest of the counter block is the index. */
+    public static final int CHUNK_NONCE_LENGTH = 8;
+
+    private static final ConcurrentHashMap<String, SecretKeySpec> sKeys =
+            new ConcurrentHashMap<String, SecretKeySpec>();
+
+    private static final class CipherState {
+        Cipher cipher;
+        // Key the cipher is initialized with, cleared when an operation fails since not every
+        // provider resets the cipher then.
+        SecretKeySpec key;
+        int mode;
+    }
+
+    private static final ThreadLocal<CipherState> sCipher = new ThreadLocal<CipherState>() {
+        @Override
+        protected CipherState initialValue() {
+            return new CipherState();
+        }
+    };
+
+    private static final class CtrState {
+        Cipher cipher;
+        final byte[] counter = new byte[BLOCK_SIZE];
+        // Keystream bytes before the offset, within its block, are run through here.
+        final byte[] skip = new byte[BLOCK_SIZE];
+    }
+
+    private static final ThreadLocal<CtrState> sCtrCipher = new ThreadLocal<CtrState>() {
+        @Override
+        protected CtrState initialValue() {
+            return new CtrState();
+        }
+    };
+
     public static String encrypt(String seed, String cleartext) throws Exception {
-        byte[] rawKey = getRawKey(seed.getBytes());
-        byte[] result = encrypt(rawKey, cleartext.getBytes());
+        byte[] result = encrypt(seed, cleartext.getBytes());
         return toHex(result);
     }
 
     public static String decrypt(String seed, String encrypted) throws Exception {
-        byte[] rawKey = getRawKey(seed.getBytes());
         byte[] enc = toByte(encrypted);
-        byte[] result = decrypt(rawKey, enc);
+        byte[] result = decrypt(seed, enc);
         return new String(result);
     }
 
-    private static byte[] getRawKey(byte[] seed) throws Exception {
+    public static byte[] encrypt(String seed, byte[] clear) throws GeneralSecurityException {
+        Cipher cipher = cipher(seed, Cipher.ENCRYPT_MODE);
+        try {
+            return cipher.doFinal(clear);
+        } catch (GeneralSecurityException e) {
+            sCipher.get().key = null;
+            throw e;
+        }
+    }
+
+    public static byte[] decrypt(String seed, byte[] encrypted) throws GeneralSecurityException {
+        Cipher cipher = cipher(seed, Cipher.DECRYPT_MODE);
+        try {
+            return cipher.doFinal(encrypted);
+        } catch (GeneralSecurityException e) {
+            sCipher.get().key = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Encrypt into a caller supplied buffer, which needs room for
+     * {@link #getEncryptedLength(int)} bytes.
+     *
+     * @return Number of bytes written to out
+     */
+    public static int encrypt(String seed, byte[] in, int inOffset, int inLength, byte[] out,
+            int outOffset) throws GeneralSecurityException {
+        Cipher cipher = cipher(seed, Cipher.ENCRYPT_MODE);
+        try {
+            return cipher.doFinal(in, inOffset, inLength, out, outOffset);
+        } catch (GeneralSecurityException e) {
+            sCipher.get().key = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Decrypt into a caller supplied buffer, which needs room for inLength bytes.
+     *
+     * @return Number of bytes written to out
+     */
+    public static int decrypt(String seed, byte[] in, int inOffset, int inLength, byte[] out,
+            int outOffset) throws GeneralSecurityException {
+        Cipher cipher = cipher(seed, Cipher.DECRYPT_MODE);
+        try {
+            return cipher.doFinal(in, inOffset, inLength, out, outOffset);
+        } catch (GeneralSecurityException e) {
+            sCipher.get().key = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Encrypt the remaining bytes of in into out. Both positions are advanced.
+     *
+     * @return Number of bytes written to out
+     */
+    public static int encrypt(String seed, ByteBuffer in, ByteBuffer out)
+            throws GeneralSecurityException {
+        Cipher cipher = cipher(seed, Cipher.ENCRYPT_MODE);
+        try {
+            return cipher.doFinal(in, out);
+        } catch (GeneralSecurityException e) {
+            sCipher.get().key = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Decrypt the remaining bytes of in into out. Both positions are advanced.
+     *
+     * @return Number of bytes written to out
+     */
+    public static int decrypt(String seed, ByteBuffer in, ByteBuffer out)
+            throws GeneralSecurityException {
+        Cipher cipher = cipher(seed, Cipher.DECRYPT_MODE);
+        try {
+            return cipher.doFinal(in, out);
+        } catch (GeneralSecurityException e) {
+            sCipher.get().key = null;
+            throw e;
+        }
+    }
+
+    /**
+     * @return Length of the ciphertext for clearLength bytes of cleartext, padding included
+     */
+    public static int getEncryptedLength(int clearLength) {
+        return (clearLength / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    /**
+     * @return Random nonce for a new chunked payload, never to be used for another payload
+     * under the same seed
+     */
+    public static byte[] newChunkNonce() {
+        byte[] nonce = new byte[CHUNK_NONCE_LENGTH];
+        new SecureRandom().nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * Encrypt one chunk of a payload in the chunked mode. Output is as long as the input and
+     * may overwrite it.
+     *
+     * @param nonce Nonce of the payload, see {@link #newChunkNonce()}
+     * @param position Offset of the chunk within the payload
+     * @return Number of bytes written to out
+     */
+    public static int encryptChunk(String seed, byte[] nonce, long position, byte[] in,
+            int inOffset, int length, byte[] out, int outOffset) throws GeneralSecurityException {
+        return cryptChunk(seed, nonce, position, in, inOffset, length, out, outOffset);
+    }
+
+    /**
+     * Decrypt one chunk of a payload in the chunked mode, see
+     * {@link #encryptChunk(String, byte[], long, byte[], int, int, byte[], int)}.
+     *
+     * @return Number of bytes written to out
+     */
+    public static int decryptChunk(String seed, byte[] nonce, long position, byte[] in,
+            int inOffset, int length, byte[] out, int outOffset) throws GeneralSecurityException {
+        return cryptChunk(seed, nonce, position, in, inOffset, length, out, outOffset);
+    }
+
+    // Encryption and decryption are the same in counter mode.
+    private static int cryptChunk(String seed, byte[] nonce, long position, byte[] in,
+            int inOffset, int length, byte[] out, int outOffset) throws GeneralSecurityException {
+        if (nonce == null || nonce.length != CHUNK_NONCE_LENGTH) {
+            throw new IllegalArgumentException("Nonce must be " + CHUNK_NONCE_LENGTH + " bytes");
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position " + position);
+        }
+        SecretKeySpec key = getKey(seed);
+        CtrState state = sCtrCipher.get();
+        if (state.cipher == null) {
+            state.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        }
+        long block = position / BLOCK_SIZE;
+        System.arraycopy(nonce, 0, state.counter, 0, CHUNK_NONCE_LENGTH);
+        for (int i = BLOCK_SIZE - 1; i >= CHUNK_NONCE_LENGTH; i--) {
+            state.counter[i] = (byte) block;
+            block >>>= 8;
+        }
+        state.cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(state.counter));
+        int skip = (int) (position % BLOCK_SIZE);
+        if (skip > 0) {
+            state.cipher.update(state.skip, 0, skip, state.skip, 0);
+        }
+        return state.cipher.doFinal(in, inOffset, length, out, outOffset);
+    }
+
+    private static Cipher cipher(String seed, int mode) throws GeneralSecurityException {
+        SecretKeySpec key = getKey(seed);
+        CipherState state = sCipher.get();
+        if (state.cipher == null) {
+            state.cipher = Cipher.getInstance("AES");
+        }
+        // doFinal leaves the cipher initialized with the same key and mode.
+        if (state.key != key || state.mode != mode) {
+            state.cipher.init(mode, key);
+            state.key = key;
+            state.mode = mode;
+        }
+        return state.cipher;
+    }
+
+    private static SecretKeySpec getKey(String seed) throws GeneralSecurityException {
+        SecretKeySpec key = sKeys.get(seed);
+        if (key == null) {
+            key = new SecretKeySpec(getRawKey(seed.getBytes()), "AES");
+            if (sKeys.size() >= MAX_CACHED_KEYS) {
+                sKeys.clear();
+            }
+            SecretKeySpec raced = sKeys.putIfAbsent(seed, key);
+            if (raced != null) {
+                key = raced;
+            }
+        }
+        return key;
+    }
+
+    private static byte[] getRawKey(byte[] seed) throws GeneralSecurityException {
         KeyGenerator kgen = KeyGenerator.getInstance("AES");
         SecureRandom sr = SecureRandom.getInstance("SHA1PRNG");
         sr.setSeed(seed);
@@ -35,23 +274,6 @@ public class AESHelper {
         return raw;
     }
 
-
-    private static byte[] encrypt(byte[] raw, byte[] clear) throws Exception {
-        SecretKeySpec skeySpec = new SecretKeySpec(raw, "AES");
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.ENCRYPT_MODE, skeySpec);
-        byte[] encrypted = cipher.doFinal(clear);
-        return encrypted;
-    }
-
-    private static byte[] decrypt(byte[] raw, byte[] encrypted) throws Exception {
-        SecretKeySpec skeySpec = new SecretKeySpec(raw, "AES");
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.DECRYPT_MODE, skeySpec);
-        byte[] decrypted = cipher.doFinal(encrypted);
-        return decrypted;
-    }
-
     public static String toHex(String txt) {
         return toHex(txt.getBytes());
     }
@@ -59,27 +281,41 @@ public class AESHelper {
         return new String(toByte(hex));
     }
 
+    /**
+     * @throws IllegalArgumentException if the length is odd, or a NumberFormatException if a
+     * character is not a hexadecimal digit
+     */
     public static byte[] toByte(String hexString) {
+        if (hexString.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd length hex string: " + hexString.length());
+        }
         int len = hexString.length()/2;
         byte[] result = new byte[len];
         for (int i = 0; i < len; i++)
-            result[i] = Integer.valueOf(hexString.substring(2*i, 2*i+2), 16).byteValue();
+            result[i] = (byte) ((hexDigit(hexString, 2*i) << 4) | hexDigit(hexString, 2*i+1));
         return result;
     }
 
+    private static int hexDigit(String hexString, int index) {
+        int digit = Character.digit(hexString.charAt(index), 16);
+        if (digit < 0) {
+            throw new NumberFormatException("Not a hex digit at " + index + ": "
+                    + hexString.charAt(index));
+        }
+        return digit;
+    }
+
     public static String toHex(byte[] buf) {
         if (buf == null)
             return "";
-        StringBuffer result = new StringBuffer(2*buf.length);
+        char[] result = new char[2*buf.length];
         for (int i = 0; i < buf.length; i++) {
-            appendHex(result, buf[i]);
+            result[2*i] = HEX[(buf[i]>>4)&0x0f];
+            result[2*i+1] = HEX[buf[i]&0x0f];
         }
-        return result.toString();
-    }
-    private final static String HEX = "0123456789ABCDEF";
-    private static void appendHex(StringBuffer sb, byte b) {
-        sb.append(HEX.charAt((b>>4)&0x0f)).append(HEX.charAt(b&0x0f));
+        return new String(result);
     }
+    private final static char[] HEX = "0123456789ABCDEF".toCharArray();
 
 
-}
\ No newline at end of file
+}
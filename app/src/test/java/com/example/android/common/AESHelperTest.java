@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class AESHelperTest {
+    private static final String SEED = "PRESHAREDKEY";
+    private static final byte[] NONCE = { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+    private static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        new Random(length).nextBytes(payload);
+        return payload;
+    }
+
+    private static byte[] encryptWhole(byte[] clear) throws GeneralSecurityException {
+        byte[] encrypted = new byte[clear.length];
+        AESHelper.encryptChunk(SEED, NONCE, 0, clear, 0, clear.length, encrypted, 0);
+        return encrypted;
+    }
+
+    @Test
+    public void chunkRoundTrip() throws GeneralSecurityException {
+        byte[] clear = payload(1000);
+        byte[] encrypted = encryptWhole(clear);
+        assertEquals(clear.length, encrypted.length);
+        assertFalse(Arrays.equals(clear, encrypted));
+        byte[] decrypted = new byte[clear.length];
+        assertEquals(clear.length, AESHelper.decryptChunk(SEED, NONCE, 0, encrypted, 0,
+                encrypted.length, decrypted, 0));
+        assertArrayEquals(clear, decrypted);
+    }
+
+    @Test
+    public void chunksMatchTheWholePayloadAtAnyOffset() throws GeneralSecurityException {
+        byte[] clear = payload(5000);
+        byte[] whole = encryptWhole(clear);
+        // Within a block, on block boundaries, and past 256 blocks so the counter carries.
+        int[] chunkSizes = { 1, 7, 15, 16, 17, 253, 4096 };
+        for (int chunkSize : chunkSizes) {
+            byte[] chunked = new byte[clear.length];
+            for (int offset = 0; offset < clear.length; offset += chunkSize) {
+                int length = Math.min(chunkSize, clear.length - offset);
+                AESHelper.encryptChunk(SEED, NONCE, offset, clear, offset, length, chunked, offset);
+            }
+            assertArrayEquals("chunk size " + chunkSize, whole, chunked);
+        }
+    }
+
+    @Test
+    public void decryptsChunksOutOfOrder() throws GeneralSecurityException {
+        byte[] clear = payload(600);
+        byte[] whole = encryptWhole(clear);
+        byte[] decrypted = new byte[clear.length];
+        AESHelper.decryptChunk(SEED, NONCE, 300, whole, 300, 300, decrypted, 300);
+        AESHelper.decryptChunk(SEED, NONCE, 0, whole, 0, 300, decrypted, 0);
+        assertArrayEquals(clear, decrypted);
+    }
+
+    @Test
+    public void encryptsInPlace() throws GeneralSecurityException {
+        byte[] clear = payload(100);
+        byte[] buffer = clear.clone();
+        AESHelper.encryptChunk(SEED, NONCE, 0, buffer, 0, buffer.length, buffer, 0);
+        assertArrayEquals(encryptWhole(clear), buffer);
+        AESHelper.decryptChunk(SEED, NONCE, 0, buffer, 0, buffer.length, buffer, 0);
+        assertArrayEquals(clear, buffer);
+    }
+
+    @Test
+    public void emptyChunk() throws GeneralSecurityException {
+        assertEquals(0, AESHelper.encryptChunk(SEED, NONCE, 32, new byte[0], 0, 0, new byte[0],
+                0));
+    }
+
+    @Test
+    public void nonceAndSeedChangeTheKeystream() throws GeneralSecurityException {
+        byte[] clear = payload(64);
+        byte[] other = new byte[clear.length];
+        AESHelper.encryptChunk(SEED, AESHelper.newChunkNonce(), 0, clear, 0, clear.length,
+                other, 0);
+        assertFalse(Arrays.equals(encryptWhole(clear), other));
+        AESHelper.encryptChunk("OTHERKEY", NONCE, 0, clear, 0, clear.length, other, 0);
+        assertFalse(Arrays.equals(encryptWhole(clear), other));
+    }
+
+    @Test
+    public void newChunkNoncesDiffer() {
+        byte[] nonce = AESHelper.newChunkNonce();
+        assertEquals(AESHelper.CHUNK_NONCE_LENGTH, nonce.length);
+        assertFalse(Arrays.equals(nonce, AESHelper.newChunkNonce()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortNonce() throws GeneralSecurityException {
+        AESHelper.encryptChunk(SEED, new byte[4], 0, new byte[16], 0, 16, new byte[16], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingNonce() throws GeneralSecurityException {
+        AESHelper.decryptChunk(SEED, null, 0, new byte[16], 0, 16, new byte[16], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativePosition() throws GeneralSecurityException {
+        AESHelper.encryptChunk(SEED, NONCE, -1, new byte[16], 0, 16, new byte[16], 0);
+    }
+
+    @Test
+    public void stringRoundTrip() throws Exception {
+        String encrypted = AESHelper.encrypt(SEED, "6222222200000001");
+        // Two blocks after padding, as hex.
+        assertEquals(64, encrypted.length());
+        assertEquals(encrypted, AESHelper.encrypt(SEED, "6222222200000001"));
+        assertEquals("6222222200000001", AESHelper.decrypt(SEED, encrypted));
+        assertEquals("6222222200000001", AESHelper.decrypt(SEED, encrypted.toLowerCase()));
+    }
+
+    @Test
+    public void bufferOverloadsMatch() throws GeneralSecurityException {
+        byte[] clear = payload(40);
+        byte[] expected = AESHelper.encrypt(SEED, clear);
+        assertEquals(expected.length, AESHelper.getEncryptedLength(clear.length));
+
+        byte[] out = new byte[AESHelper.getEncryptedLength(clear.length) + 3];
+        assertEquals(expected.length, AESHelper.encrypt(SEED, clear, 0, clear.length, out, 3));
+        assertArrayEquals(expected, Arrays.copyOfRange(out, 3, out.length));
+
+        ByteBuffer encrypted = ByteBuffer.allocate(expected.length);
+        AESHelper.encrypt(SEED, ByteBuffer.wrap(clear), encrypted);
+        assertArrayEquals(expected, encrypted.array());
+
+        encrypted.flip();
+        ByteBuffer decrypted = ByteBuffer.allocate(expected.length);
+        assertEquals(clear.length, AESHelper.decrypt(SEED, encrypted, decrypted));
+        assertArrayEquals(clear, Arrays.copyOf(decrypted.array(), clear.length));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void wrongSeedFailsAndLeavesTheCipherUsable() throws GeneralSecurityException {
+        byte[] encrypted = AESHelper.encrypt(SEED, payload(20));
+        try {
+            AESHelper.decrypt("OTHERKEY", encrypted);
+        } finally {
+            assertArrayEquals(payload(20), AESHelper.decrypt(SEED, encrypted));
+        }
+    }
+
+    @Test
+    public void hexRoundTrip() {
+        byte[] bytes = { 0x00, 0x7F, (byte) 0x80, (byte) 0xFF, 0x0A };
+        assertEquals("007F80FF0A", AESHelper.toHex(bytes));
+        assertArrayEquals(bytes, AESHelper.toByte("007F80FF0A"));
+        assertArrayEquals(bytes, AESHelper.toByte("007f80ff0a"));
+        assertEquals(0, AESHelper.toByte("").length);
+        assertEquals("", AESHelper.toHex((byte[]) null));
+    }
+
+    @Test
+    public void toByteRejectsNonHexDigits() {
+        String[] invalid = { "0G", "G0", "  ", "0x", "-1" };
+        for (String hex : invalid) {
+            try {
+                AESHelper.toByte(hex);
+                fail("Accepted " + hex);
+            } catch (IllegalArgumentException expected) {
+                // NumberFormatException, as before with Integer.valueOf
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void toByteRejectsOddLength() {
+        AESHelper.toByte("ABC");
+    }
+}
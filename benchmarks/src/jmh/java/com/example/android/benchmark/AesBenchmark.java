@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.benchmark;
+
+import com.example.android.common.AESHelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * {@link AESHelper} as used for the stored account number, against the previous implementation
+ * that derived the key and created a Cipher on every call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AesBenchmark {
+
+    private static final String SEED = "PRESHAREDKEY";
+
+    // Account number, one GET DATA chunk.
+    @Param({"16", "1024"})
+    int size;
+
+    String clearText;
+    String cipherText;
+    byte[] clearBytes;
+    byte[] cipherBytes;
+    byte[] out;
+    ByteBuffer clearBuffer;
+    ByteBuffer outBuffer;
+    byte[] nonce;
+
+    @Setup
+    public void setUp() throws Exception {
+        char[] chars = new char[size];
+        Arrays.fill(chars, '7');
+        clearText = new String(chars);
+        cipherText = AESHelper.encrypt(SEED, clearText);
+        if (!cipherText.equals(legacyEncrypt(SEED, clearText))) {
+            throw new IllegalStateException("AESHelper output differs from the old implementation");
+        }
+        clearBytes = clearText.getBytes();
+        cipherBytes = AESHelper.toByte(cipherText);
+        out = new byte[AESHelper.getEncryptedLength(size)];
+        clearBuffer = ByteBuffer.allocateDirect(size);
+        clearBuffer.put(clearBytes).flip();
+        outBuffer = ByteBuffer.allocateDirect(out.length);
+        nonce = AESHelper.newChunkNonce();
+    }
+
+    @Benchmark
+    public String encrypt() throws Exception {
+        return AESHelper.encrypt(SEED, clearText);
+    }
+
+    @Benchmark
+    public String decrypt() throws Exception {
+        return AESHelper.decrypt(SEED, cipherText);
+    }
+
+    @Benchmark
+    public int encryptIntoArray() throws Exception {
+        return AESHelper.encrypt(SEED, clearBytes, 0, clearBytes.length, out, 0);
+    }
+
+    @Benchmark
+    public int decryptIntoArray() throws Exception {
+        return AESHelper.decrypt(SEED, cipherBytes, 0, cipherBytes.length, out, 0);
+    }
+
+    @Benchmark
+    public int encryptDirectBuffer() throws Exception {
+        clearBuffer.rewind();
+        outBuffer.clear();
+        return AESHelper.encrypt(SEED, clearBuffer, outBuffer);
+    }
+
+    @Benchmark
+    public int encryptChunk() throws Exception {
+        // Mid-block offset, as for a GET DATA chunk that does not start on a block boundary.
+        return AESHelper.encryptChunk(SEED, nonce, 4099, clearBytes, 0, clearBytes.length, out, 0);
+    }
+
+    @Benchmark
+    public String encryptLegacy() throws Exception {
+        return legacyEncrypt(SEED, clearText);
+    }
+
+    @Benchmark
+    public String decryptLegacy() throws Exception {
+        return legacyDecrypt(SEED, cipherText);
+    }
+
+    // The previous AESHelper: key derivation and Cipher.getInstance on every call.
+
+    private static String legacyEncrypt(String seed, String cleartext) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(legacyRawKey(seed.getBytes()), "AES"));
+        return AESHelper.toHex(cipher.doFinal(cleartext.getBytes()));
+    }
+
+    private static String legacyDecrypt(String seed, String encrypted) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(legacyRawKey(seed.getBytes()), "AES"));
+        return new String(cipher.doFinal(AESHelper.toByte(encrypted)));
+    }
+
+    private static byte[] legacyRawKey(byte[] seed) throws Exception {
+        KeyGenerator kgen = KeyGenerator.getInstance("AES");
+        SecureRandom sr = SecureRandom.getInstance("SHA1PRNG");
+        sr.setSeed(seed);
+        kgen.init(128, sr);
+        return kgen.generateKey().getEncoded();
+    }
+}
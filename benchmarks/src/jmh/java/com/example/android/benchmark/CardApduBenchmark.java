@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.benchmark;
+
+import com.example.android.cardemulation.CardApdu;
+import com.example.android.cardemulation.CardProfileStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * APDU building and parsing helpers from {@link CardApdu}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CardApduBenchmark {
+
+    private static final String LOYALTY_AID = "F222222222";
+
+    byte[] gpoCommand = CardApdu.GPO_COMMAND.clone();
+    byte[] readRecCommand = CardApdu.READ_REC_COMMAND.clone();
+    byte[] header = {(byte) 0x70, (byte) 0x81};
+    byte[] body = CardApdu.VISA_MSD_SELECT_RESPONSE.clone();
+    byte[] statusWord = {(byte) 0x90, (byte) 0x00};
+
+    @Benchmark
+    public byte[] configureReadRecResponse() {
+        CardApdu.configureReadRecResponse(CardApdu.DEFAULT_SWIPE_DATA);
+        return CardProfileStore.getActiveProfile().getReadRecordResponse();
+    }
+
+    @Benchmark
+    public byte[] activeProfileReadRecord() {
+        // What the tap path does since profiles are prebuilt: one volatile read.
+        return CardProfileStore.getActiveProfile().getReadRecordResponse();
+    }
+
+    @Benchmark
+    public boolean isGpoCommandMatch() {
+        return CardApdu.isGpoCommand(gpoCommand);
+    }
+
+    @Benchmark
+    public boolean isGpoCommandMismatch() {
+        return CardApdu.isGpoCommand(readRecCommand);
+    }
+
+    @Benchmark
+    public byte[] concatArrays() {
+        return CardApdu.ConcatArrays(header, body, statusWord);
+    }
+
+    @Benchmark
+    public byte[] buildSelectApdu() {
+        return CardApdu.BuildSelectApdu(LOYALTY_AID);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.benchmark;
+
+import com.example.android.cardemulation.CardApdu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hex conversion as done for every logged APDU. CardService.ByteArrayToHexString and
+ * HexStringToByteArray delegate to the {@link CardApdu} versions measured here.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HexBenchmark {
+
+    // Short command, typical response, largest short APDU.
+    @Param({"16", "64", "256"})
+    int size;
+
+    byte[] bytes;
+    String hex;
+
+    @Setup
+    public void setUp() {
+        bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        hex = CardApdu.ByteArrayToHexString(bytes);
+    }
+
+    @Benchmark
+    public String byteArrayToHexString() {
+        return CardApdu.ByteArrayToHexString(bytes);
+    }
+
+    @Benchmark
+    public byte[] hexStringToByteArray() {
+        return CardApdu.HexStringToByteArray(hex);
+    }
+}
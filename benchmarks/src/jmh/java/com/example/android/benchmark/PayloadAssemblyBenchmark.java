@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.benchmark;
+
+import com.example.android.cardreader.PayloadAssembler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The reader's assembly of a payload from GET DATA responses, one whole transfer per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PayloadAssemblyBenchmark {
+
+    // Payload bytes per GET DATA response.
+    private static final int CHUNK_SIZE = 256;
+
+    @Param({"4", "64"})
+    int chunks;
+
+    byte[][] responses;
+
+    @Setup
+    public void setUp() {
+        responses = new byte[chunks][];
+        for (int i = 0; i < chunks; i++) {
+            byte[] response = new byte[CHUNK_SIZE + 2];
+            Arrays.fill(response, 0, CHUNK_SIZE, (byte) 'x');
+            if (i == chunks - 1) {
+                response[0] = 'E';
+                response[1] = 'N';
+                response[2] = 'D';
+            }
+            response[CHUNK_SIZE] = (byte) 0x90;
+            response[CHUNK_SIZE + 1] = 0x00;
+            responses[i] = response;
+        }
+    }
+
+    @Benchmark
+    public String assemble() throws Exception {
+        PayloadAssembler assembler = new PayloadAssembler();
+        for (byte[] response : responses) {
+            assembler.append(response);
+        }
+        return assembler.getPayload();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.benchmark;
+
+import com.example.android.cardemulation.CardApdu;
+import com.example.android.cardemulation.TlvBuilder;
+import com.example.android.cardemulation.TlvReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TlvReader} and {@link TlvBuilder} against the approaches they replaced: a fresh
+ * {@link ByteBuffer} per READ RECORD response, and AFL parsing that copied values out with
+ * {@link Arrays#copyOfRange(byte[], int, int)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TlvBenchmark {
+
+    // Format 2 GPO response: 77 { 82 AIP, 94 AFL with two entries }, then 9000.
+    byte[] gpoResponse = CardApdu.HexStringToByteArray("770E8202000094080801010010010200" + "9000");
+    byte[] fci = CardApdu.VISA_MSD_SELECT_RESPONSE.clone();
+    byte[] track2 = CardApdu.HexStringToByteArray("4046460664629718D16101210000018100000F");
+    byte[] statusWord = { (byte) 0x90, (byte) 0x00 };
+
+    final TlvReader reader = new TlvReader();
+    final TlvBuilder builder = new TlvBuilder();
+    final byte[] out = new byte[256];
+
+    @Benchmark
+    public byte[] readRecordByteBuffer() {
+        byte[] rsp = new byte[6 + track2.length];
+        ByteBuffer bb = ByteBuffer.wrap(rsp);
+        bb.put((byte) 0x70);
+        bb.put((byte) (track2.length + 2));
+        bb.put((byte) 0x57);
+        bb.put((byte) track2.length);
+        bb.put(track2);
+        bb.put(statusWord);
+        return rsp;
+    }
+
+    @Benchmark
+    public int readRecordTlvBuilder() {
+        return builder.reset(out, 0)
+                .open(0x70)
+                .put(0x57, track2)
+                .close()
+                .putRaw(statusWord, 0, 2)
+                .length();
+    }
+
+    @Benchmark
+    public byte[] aflCopying() {
+        // The parsing SePrefetcher did before: copy the template, then the AFL.
+        int length = gpoResponse[1] & 0xFF;
+        byte[] template = Arrays.copyOfRange(gpoResponse, 2, 2 + length);
+        int offset = 0;
+        while (offset < template.length) {
+            int tag = template[offset++] & 0xFF;
+            int valueLength = template[offset++] & 0xFF;
+            if (tag == 0x94) {
+                return Arrays.copyOfRange(template, offset, offset + valueLength);
+            }
+            offset += valueLength;
+        }
+        return null;
+    }
+
+    @Benchmark
+    public int aflTlvReader() {
+        TlvReader tlv = reader.resetResponse(gpoResponse);
+        if (!tlv.next()) {
+            return -1;
+        }
+        tlv.enter();
+        return tlv.find(0x94) ? tlv.valueOffset() : -1;
+    }
+
+    @Benchmark
+    public int pdolTlvReader() {
+        // 6F { 84, A5 { 50, 9F38 } }
+        TlvReader tlv = reader.resetResponse(fci);
+        if (!tlv.find(0x6F)) {
+            return -1;
+        }
+        tlv.enter();
+        if (!tlv.find(0xA5)) {
+            return -1;
+        }
+        tlv.enter();
+        return tlv.find(0x9F38) ? tlv.length() : -1;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.cardemulation;
+
+import com.example.android.cardemulation.SecureElementBackend.Channel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The APDU thread's side of a tap, {@link ApduQueue} through {@link StatusWordResolver} and
+ * {@link ApduBatch}, against a {@link SimulatedSeBackend} with a per transmit latency, so the
+ * pipeline's throughput and latency can be tracked without a device. One call is one tap: a
+ * GET DATA and four READ RECORDs whose responses come back as 61xx and are fetched with
+ * GET RESPONSE, sent one by one or in one batch envelope.
+ *
+ * <p>Lives in the service's package because the pipeline classes are package-private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SePipelineBenchmark {
+
+    private static final byte[] AID = CardApdu.HexStringToByteArray("A000000632010105");
+    private static final byte[] OK_SW = {(byte) 0x90, (byte) 0x00};
+    private static final int RECORDS = 4;
+
+    // Time every SE transmit takes, 0 for the pipeline's own overhead.
+    @Param({"0", "200"})
+    long latencyMicros;
+
+    @Param({"false", "true"})
+    boolean batched;
+
+    SimulatedSeBackend backend;
+    Channel channel;
+    ApduQueue queue;
+    StatusWordResolver resolver;
+    ApduBatch batch;
+    byte[][] commands;
+    long seq;
+
+    @Setup
+    public void setUp() throws IOException {
+        backend = new SimulatedSeBackend("SIM1");
+        backend.addApplet(AID, OK_SW);
+        backend.addResponse(AID, new byte[] {0x00, (byte) 0xB2}, new byte[] {0x61, 0x10});
+        backend.addResponse(AID, new byte[] {0x00, (byte) 0xC0}, withOk(16));
+        backend.addResponse(AID, new byte[] {0x00, (byte) 0xCA}, withOk(32));
+        backend.setTransmitLatency(latencyMicros);
+        backend.connect(new SecureElementBackend.Callback() {
+            @Override
+            public void onConnected() {
+            }
+        });
+        channel = backend.getReaders()[0].openSession().openLogicalChannel(AID);
+        queue = new ApduQueue(16);
+        resolver = new StatusWordResolver();
+        batch = new ApduBatch(resolver);
+        ApduBatch.setEnabled(AID, true);
+
+        byte[][] items = new byte[RECORDS + 1][];
+        items[0] = CardApdu.HexStringToByteArray("00CA9F7F00");
+        for (int i = 1; i <= RECORDS; i++) {
+            items[i] = new byte[] {0x00, (byte) 0xB2, (byte) i, 0x0C, 0x00};
+        }
+        commands = batched ? new byte[][] {envelope(items)} : items;
+    }
+
+    @TearDown
+    public void tearDown() {
+        backend.shutdown();
+    }
+
+    @Benchmark
+    public int tap() throws IOException {
+        // processCommandApdu's side: queue the tap's commands.
+        for (byte[] command : commands) {
+            queue.offer(command, false, System.nanoTime(), seq++, 0);
+        }
+        // The APDU thread's side: drain and run them on the SE.
+        int responseBytes = 0;
+        ApduQueue.Slot slot;
+        while ((slot = queue.peek()) != null) {
+            byte[] command = slot.command;
+            byte[] rsp = ApduBatch.isBatch(AID, command)
+                    ? batch.execute(channel, command, true)
+                    : resolver.transmit(channel, command);
+            queue.release();
+            responseBytes += rsp.length;
+        }
+        return responseBytes;
+    }
+
+    private static byte[] withOk(int length) {
+        byte[] response = new byte[length + 2];
+        Arrays.fill(response, 0, length, (byte) 0x5A);
+        response[length] = OK_SW[0];
+        response[length + 1] = OK_SW[1];
+        return response;
+    }
+
+    /**
+     * Short batch envelope with Le = 00, see {@link ApduBatch}.
+     */
+    private static byte[] envelope(byte[][] items) {
+        int dataLength = 0;
+        for (byte[] item : items) {
+            dataLength += 2 + item.length;
+        }
+        byte[] envelope = new byte[5 + dataLength + 1];
+        envelope[0] = ApduBatch.CLA_BATCH;
+        envelope[1] = ApduBatch.INS_BATCH;
+        envelope[4] = (byte) dataLength;
+        int offset = 5;
+        for (byte[] item : items) {
+            envelope[offset] = (byte) (item.length >> 8);
+            envelope[offset + 1] = (byte) item.length;
+            System.arraycopy(item, 0, envelope, offset + 2, item.length);
+            offset += 2 + item.length;
+        }
+        return envelope;
+    }
+}